@@ -0,0 +1,114 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared setup of the JMH benchmarks, mirrors the setup of the tests: the tiny model must be in the working directory and the natives are
+ * loaded from <code>whisperjni-build</code> when present.
+ */
+final class Benchmarks {
+	
+	static final Path MODEL = Path.of("ggml-tiny.bin");
+	static final Path JFK = Path.of("src/main/native/whisper/samples/jfk.wav");
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(Benchmarks.class);
+	private static WhisperJNI whisper;
+	private static float[] jfk;
+	
+	private Benchmarks()
+	{
+	}
+	
+	/**
+	 * Gets a {@link WhisperJNI} instance, loading the natives on first use.
+	 */
+	static synchronized WhisperJNI whisper() throws IOException
+	{
+		if(whisper == null)
+		{
+			if(!Files.isRegularFile(MODEL))
+			{
+				throw new IOException("Missing model file: " + MODEL.toAbsolutePath());
+			}
+			WhisperJNI instance = new WhisperJNI();
+			Path whisperJNIBuild = Path.of("whisperjni-build");
+			if(Files.isDirectory(whisperJNIBuild))
+			{
+				LibraryUtils.findAndLoadVulkanRuntime();
+				LibraryUtils.loadLibrary(LOGGER, whisperJNIBuild);
+			}
+			else
+			{
+				instance.loadLibrary(LOGGER);
+			}
+			whisper = instance;
+		}
+		return whisper;
+	}
+	
+	/**
+	 * Creates quiet params, whisper.cpp console output would dominate the short benchmarks.
+	 */
+	static WhisperFullParams params(String strategy, int threads)
+	{
+		var params = new WhisperFullParams("GREEDY".equals(strategy) ? WhisperSamplingStrategy.GREEDY : WhisperSamplingStrategy.BEAM_SEARCH);
+		params.nThreads = threads;
+		params.printProgress = false;
+		params.printTimestamps = false;
+		params.printRealtime = false;
+		params.printSpecial = false;
+		return params;
+	}
+	
+	/**
+	 * Gets the JFK sample repeated or cut to the requested duration.
+	 */
+	static synchronized float[] clip(int seconds) throws IOException
+	{
+		if(jfk == null)
+		{
+			jfk = readSamples(JFK);
+		}
+		return tile(jfk, seconds * WhisperJNI.SAMPLE_RATE);
+	}
+	
+	static float[] tile(float[] samples, int length)
+	{
+		float[] tiled = new float[length];
+		for(int offset = 0; offset < length; offset += samples.length)
+		{
+			System.arraycopy(samples, 0, tiled, offset, Math.min(samples.length, length - offset));
+		}
+		return tiled;
+	}
+	
+	static float[] readSamples(Path path) throws IOException
+	{
+		// 16 bit int 16000hz little endian wav file
+		try(AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(path.toFile()))
+		{
+			ByteBuffer captureBuffer = ByteBuffer.wrap(audioInputStream.readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+			var shortBuffer = captureBuffer.asShortBuffer();
+			float[] samples = new float[shortBuffer.remaining()];
+			for(int i = 0; i < samples.length; i++)
+			{
+				samples[i] = Float.max(-1f, Float.min(((float) shortBuffer.get(i)) / (float) Short.MAX_VALUE, 1f));
+			}
+			return samples;
+		} catch(UnsupportedAudioFileException e)
+		{
+			throw new IOException(e);
+		}
+	}
+}
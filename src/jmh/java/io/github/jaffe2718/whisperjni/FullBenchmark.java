@@ -0,0 +1,82 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+/**
+ * End to end transcription with the tiny model, and the same transcription preceded by voice activity detection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FullBenchmark {
+	
+	@Param({"5", "11", "30"})
+	public int clipSeconds;
+	
+	@Param({"1", "2", "4"})
+	public int threads;
+	
+	@Param({"GREEDY", "BEAM_SEARCH"})
+	public String strategy;
+	
+	private WhisperJNI whisper;
+	private WhisperContext context;
+	private WhisperState state;
+	private WhisperFullParams params;
+	private WhisperFullParams vadParams;
+	private WhisperVADContextParams vadContextParams;
+	private float[] samples;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		whisper = Benchmarks.whisper();
+		context = whisper.initNoState(Benchmarks.MODEL);
+		state = whisper.initState(context);
+		params = Benchmarks.params(strategy, threads);
+		vadParams = Benchmarks.params(strategy, threads);
+		vadParams.vad = true;
+		vadParams.vad_model_path = LibraryUtils.exportVADModel(LoggerFactory.getLogger(FullBenchmark.class)).toString();
+		vadContextParams = new WhisperVADContextParams();
+		vadContextParams.n_threads = threads;
+		samples = Benchmarks.clip(clipSeconds);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		state.close();
+		context.close();
+	}
+	
+	@Benchmark
+	public int full()
+	{
+		return whisper.fullWithState(context, state, params, samples, samples.length);
+	}
+	
+	@Benchmark
+	public String vad()
+	{
+		return whisper.vadState(context, state, vadParams, vadContextParams, samples, samples.length);
+	}
+}
@@ -0,0 +1,64 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link WhisperGrammar#assertValidGrammar(String)} on generated catalogue grammars, where every rule is an alternative referencing the
+ * next one. The validation is linear, so the time per rule should stay flat across the sizes. Runs without the natives.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GrammarBenchmark {
+	
+	@Param({"10000", "50000", "100000"})
+	public int rules;
+	
+	private String grammar;
+	
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		grammar = catalogue(rules);
+	}
+	
+	@Benchmark
+	public void validate() throws ParseException
+	{
+		WhisperGrammar.assertValidGrammar(grammar);
+	}
+	
+	/**
+	 * Builds a synthetic catalogue grammar.
+	 *
+	 * @param rules number of item rules
+	 * @return the GBNF text
+	 */
+	static String catalogue(int rules)
+	{
+		StringBuilder grammar = new StringBuilder("root ::= \" Order \" item0 \".\"\n");
+		for(int i = 0; i < rules; i++)
+		{
+			String next = i + 1 < rules ? " | item" + (i + 1) : "";
+			grammar.append("item").append(i).append(" ::= \"product ").append(i).append("\" (\", \" [a-z]+)?").append(next).append("\n");
+		}
+		return grammar.toString();
+	}
+}
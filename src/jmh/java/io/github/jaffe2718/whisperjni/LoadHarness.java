@@ -0,0 +1,273 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * End to end load test: N states transcribing concurrently with T threads each, over a corpus made of the WAV files of
+ * <code>src/test/resources</code>, the JFK sample and the JFK sample tiled to longer clips.
+ *
+ * <p>
+ * Every combination of states and threads runs the same number of clips and reports p50 / p99 latency, the real-time factor, clips per second
+ * and the peak resident memory of the process. The sweep is written as CSV and JSON to <code>benchmarks/load-&lt;time&gt;</code>.
+ * </p>
+ *
+ * <p>
+ * Run with <code>./gradlew loadTest -Pload.args="--states 1,2,4 --threads 1,2,4 --clips 11,30,60 --rounds 4"</code>.
+ * </p>
+ */
+public final class LoadHarness {
+	
+	private final int[] states;
+	private final int[] threads;
+	private final int rounds;
+	private final String strategy;
+	private final Path output;
+	private final List<float[]> corpus = new ArrayList<>();
+	
+	private LoadHarness(String[] args) throws IOException
+	{
+		int[] states = {1, 2, 4};
+		int[] threads = {1, 2, 4};
+		int[] clips = {11, 30, 60};
+		int rounds = 4;
+		String strategy = "GREEDY";
+		Path corpusDir = Path.of("src/test/resources");
+		Path output = Path.of("benchmarks");
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			switch(args[i])
+			{
+				case "--states" -> states = parseInts(args[i + 1]);
+				case "--threads" -> threads = parseInts(args[i + 1]);
+				case "--clips" -> clips = parseInts(args[i + 1]);
+				case "--rounds" -> rounds = Integer.parseInt(args[i + 1]);
+				case "--strategy" -> strategy = args[i + 1];
+				case "--corpus" -> corpusDir = Path.of(args[i + 1]);
+				case "--out" -> output = Path.of(args[i + 1]);
+				default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+		this.states = states;
+		this.threads = threads;
+		this.rounds = rounds;
+		this.strategy = strategy;
+		this.output = output;
+		
+		corpus.add(Benchmarks.readSamples(Benchmarks.JFK));
+		if(Files.isDirectory(corpusDir))
+		{
+			try(Stream<Path> files = Files.list(corpusDir))
+			{
+				for(Path wav : files.filter(file -> file.toString().endsWith(".wav")).sorted().toList())
+				{
+					corpus.add(Benchmarks.readSamples(wav));
+				}
+			}
+		}
+		for(int seconds : clips)
+		{
+			corpus.add(Benchmarks.clip(seconds));
+		}
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		new LoadHarness(args).run();
+	}
+	
+	private void run() throws Exception
+	{
+		WhisperJNI whisper = Benchmarks.whisper();
+		List<Result> results = new ArrayList<>();
+		try(WhisperContext context = whisper.initNoState(Benchmarks.MODEL))
+		{
+			// Warm up the context once so the first configuration doesn't pay for it
+			runConfiguration(whisper, context, 1, threads[0], 1);
+			for(int stateCount : states)
+			{
+				for(int threadCount : threads)
+				{
+					Result result = runConfiguration(whisper, context, stateCount, threadCount, rounds);
+					System.out.println(result);
+					results.add(result);
+				}
+			}
+		}
+		write(results);
+	}
+	
+	private Result runConfiguration(WhisperJNI whisper, WhisperContext context, int stateCount, int threadCount, int rounds) throws Exception
+	{
+		// Every state transcribes the whole corpus `rounds` times, starting at a different clip so the long ones don't line up
+		int clipsPerState = corpus.size() * rounds;
+		long[] latencies = new long[clipsPerState * stateCount];
+		long[] audioSamples = new long[latencies.length];
+		AtomicInteger failures = new AtomicInteger();
+		MemorySampler memory = new MemorySampler();
+		ExecutorService executor = Executors.newFixedThreadPool(stateCount);
+		try
+		{
+			memory.start();
+			long start = System.nanoTime();
+			List<Future<?>> workers = new ArrayList<>();
+			for(int s = 0; s < stateCount; s++)
+			{
+				int worker = s;
+				workers.add(executor.submit(() ->
+				{
+					WhisperFullParams params = Benchmarks.params(strategy, threadCount);
+					try(WhisperState state = whisper.initState(context))
+					{
+						for(int i = 0; i < clipsPerState; i++)
+						{
+							float[] samples = corpus.get((worker + i) % corpus.size());
+							long clipStart = System.nanoTime();
+							if(whisper.fullWithState(context, state, params, samples, samples.length) != 0)
+							{
+								failures.incrementAndGet();
+							}
+							int slot = worker * clipsPerState + i;
+							latencies[slot] = System.nanoTime() - clipStart;
+							audioSamples[slot] = samples.length;
+						}
+					}
+				}));
+			}
+			for(Future<?> future : workers)
+			{
+				future.get();
+			}
+			long wall = System.nanoTime() - start;
+			return new Result(stateCount, threadCount, latencies, audioSamples, wall, failures.get(), memory.finish());
+		} finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	private void write(List<Result> results) throws IOException
+	{
+		Files.createDirectories(output);
+		String name = "load-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+		Path csv = output.resolve(name + ".csv");
+		Path json = output.resolve(name + ".json");
+		List<String> lines = new ArrayList<>();
+		lines.add("states,threads,clips,failures,p50_ms,p99_ms,rtf,clips_per_sec,audio_sec_per_sec,peak_rss_mb");
+		results.forEach(result -> lines.add(result.csv()));
+		Files.write(csv, lines);
+		Files.writeString(json, results.stream().map(Result::json).collect(Collectors.joining(",\n  ", "[\n  ", "\n]\n")));
+		System.out.println("Results written to " + csv + " and " + json);
+	}
+	
+	private static int[] parseInts(String list)
+	{
+		return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+	
+	/**
+	 * Polls the resident memory of the process while a configuration runs.
+	 */
+	private static final class MemorySampler extends Thread {
+		
+		private volatile boolean running = true;
+		private long peak;
+		
+		MemorySampler()
+		{
+			super("whisper-load-memory");
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run()
+		{
+			while(running)
+			{
+				peak = Math.max(peak, WhisperJNI.getResidentMemoryBytes());
+				try
+				{
+					Thread.sleep(20);
+				} catch(InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+		
+		long finish() throws InterruptedException
+		{
+			running = false;
+			join();
+			return Math.max(peak, WhisperJNI.getResidentMemoryBytes());
+		}
+	}
+	
+	private record Result(int states, int threads, long[] latencies, long[] audioSamples, long wallNanos, int failures, long peakRss) {
+		
+		double percentileMs(double percentile)
+		{
+			long[] sorted = latencies.clone();
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return sorted[Math.max(index, 0)] / 1e6;
+		}
+		
+		double audioSeconds()
+		{
+			return Arrays.stream(audioSamples).sum() / (double) WhisperJNI.SAMPLE_RATE;
+		}
+		
+		/** Processing time over audio time of a single stream */
+		double rtf()
+		{
+			return Arrays.stream(latencies).sum() / 1e9 / audioSeconds();
+		}
+		
+		double clipsPerSecond()
+		{
+			return latencies.length / (wallNanos / 1e9);
+		}
+		
+		/** Seconds of audio transcribed per wall second by the whole box */
+		double audioPerSecond()
+		{
+			return audioSeconds() / (wallNanos / 1e9);
+		}
+		
+		String csv()
+		{
+			return String.format(Locale.ROOT, "%d,%d,%d,%d,%.1f,%.1f,%.4f,%.3f,%.2f,%.1f", states, threads, latencies.length, failures,
+					percentileMs(0.5), percentileMs(0.99), rtf(), clipsPerSecond(), audioPerSecond(), peakRss / 1048576.0);
+		}
+		
+		String json()
+		{
+			return String.format(Locale.ROOT,
+					"{\"states\": %d, \"threads\": %d, \"clips\": %d, \"failures\": %d, \"p50Ms\": %.1f, \"p99Ms\": %.1f, \"rtf\": %.4f, "
+							+ "\"clipsPerSec\": %.3f, \"audioSecPerSec\": %.2f, \"peakRssBytes\": %d}",
+					states, threads, latencies.length, failures, percentileMs(0.5), percentileMs(0.99), rtf(), clipsPerSecond(), audioPerSecond(),
+					peakRss);
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "states=%d threads=%d clips=%d failures=%d p50=%.1fms p99=%.1fms rtf=%.4f clips/s=%.3f peakRss=%.1fMB",
+					states, threads, latencies.length, failures, percentileMs(0.5), percentileMs(0.99), rtf(), clipsPerSecond(), peakRss / 1048576.0);
+		}
+	}
+}
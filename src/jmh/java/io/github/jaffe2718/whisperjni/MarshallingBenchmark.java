@@ -0,0 +1,82 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a transcription call that doesn't transcribe: whisper.cpp skips inputs shorter than one second, so passing 0.1 seconds of a large
+ * array measures the {@link WhisperFullParams} marshalling, the pinning (or copy) of the sample array and the mel spectrogram of the short
+ * input.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MarshallingBenchmark {
+	
+	private static final int SHORT_INPUT = WhisperJNI.SAMPLE_RATE / 10;
+	
+	@Param({"1", "30", "300"})
+	public int arraySeconds;
+	
+	@Param({"GREEDY", "BEAM_SEARCH"})
+	public String strategy;
+	
+	@Param({"false", "true"})
+	public boolean grammar;
+	
+	private WhisperJNI whisper;
+	private WhisperContext context;
+	private WhisperState state;
+	private WhisperGrammar parsedGrammar;
+	private WhisperFullParams params;
+	private float[] samples;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		whisper = Benchmarks.whisper();
+		context = whisper.initNoState(Benchmarks.MODEL);
+		state = whisper.initState(context);
+		params = Benchmarks.params(strategy, 1);
+		if(grammar)
+		{
+			parsedGrammar = whisper.parseGrammar("root ::= \" yes\" | \" no\"");
+			params.grammar = parsedGrammar;
+		}
+		samples = Benchmarks.clip(arraySeconds);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		if(parsedGrammar != null)
+		{
+			parsedGrammar.close();
+		}
+		state.close();
+		context.close();
+	}
+	
+	@Benchmark
+	public int fullShortInput()
+	{
+		return whisper.fullWithState(context, state, params, samples, SHORT_INPUT);
+	}
+}
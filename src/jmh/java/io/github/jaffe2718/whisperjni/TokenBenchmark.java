@@ -0,0 +1,131 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of reading a transcription back: segment text and timestamps, token data, token IDs and the filtering of special tokens. The clip is
+ * transcribed once per trial, so only the extraction is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenBenchmark {
+	
+	@Param({"11", "60"})
+	public int clipSeconds;
+	
+	private WhisperJNI whisper;
+	private WhisperContext context;
+	private WhisperState state;
+	private WhisperVocabulary vocabulary;
+	private int segments;
+	private TokenData[][] tokens;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		whisper = Benchmarks.whisper();
+		context = whisper.initNoState(Benchmarks.MODEL);
+		state = whisper.initState(context);
+		float[] samples = Benchmarks.clip(clipSeconds);
+		int result = whisper.fullWithState(context, state, Benchmarks.params("GREEDY", 4), samples, samples.length);
+		if(result != 0)
+		{
+			throw new IllegalStateException("Transcription failed with code " + result);
+		}
+		vocabulary = whisper.getVocabulary(context);
+		segments = whisper.fullNSegmentsFromState(state);
+		tokens = new TokenData[segments][];
+		for(int i = 0; i < segments; i++)
+		{
+			// Unfiltered tokens, special ones included, as getTokens sees them before filtering
+			int[] ids = whisper.getTokenIdsFromState(state, i);
+			tokens[i] = new TokenData[ids.length];
+			for(int j = 0; j < ids.length; j++)
+			{
+				tokens[i][j] = new TokenData(vocabulary, ids[j], 0, 0, 0, 0, 0, 0, 0, 0, 0);
+			}
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		state.close();
+		context.close();
+	}
+	
+	@Benchmark
+	public void segmentText(Blackhole blackhole)
+	{
+		for(int i = 0; i < segments; i++)
+		{
+			blackhole.consume(whisper.fullGetSegmentTextFromState(state, i));
+		}
+	}
+	
+	@Benchmark
+	public void segmentTimestamps(Blackhole blackhole)
+	{
+		for(int i = 0; i < segments; i++)
+		{
+			blackhole.consume(whisper.fullGetSegmentTimestamp0FromState(state, i));
+			blackhole.consume(whisper.fullGetSegmentTimestamp1FromState(state, i));
+		}
+	}
+	
+	@Benchmark
+	public void getTokens(Blackhole blackhole)
+	{
+		for(int i = 0; i < segments; i++)
+		{
+			blackhole.consume(whisper.getTokensFromState(context, state, i));
+		}
+	}
+	
+	@Benchmark
+	public void getTokenIds(Blackhole blackhole)
+	{
+		for(int i = 0; i < segments; i++)
+		{
+			blackhole.consume(whisper.getTokenIdsFromState(state, i));
+		}
+	}
+	
+	@Benchmark
+	public void decodeTokenIds(Blackhole blackhole)
+	{
+		for(int i = 0; i < segments; i++)
+		{
+			blackhole.consume(vocabulary.decode(whisper.getTokenIdsFromState(state, i)));
+		}
+	}
+	
+	@Benchmark
+	public void filterTokens(Blackhole blackhole)
+	{
+		for(TokenData[] segment : tokens)
+		{
+			blackhole.consume(whisper.filterTokens(vocabulary, segment));
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The {@link AudioPreFilter} class rejects silent or noisy input before it reaches whisper.cpp, and trims the silence around speech.
+ *
+ * <p>
+ * The input is cut in 20 ms frames, and the frames louder than {@link #silenceRms} are kept. Three gates then run in order, from the
+ * cheapest: the RMS and peak energy of the kept frames, their zero-crossing rate (broadband noise crosses zero on about every other sample,
+ * speech much less), and optionally the VAD model. The silence and the low noise bed around the speech are left out of the gates, so a few
+ * seconds of speech in a long chunk are not rejected. Input failing a gate gets an empty transcript without any inference. Input passing them is
+ * trimmed from the first to the last kept frame, plus {@link #padMs} on each side, and the timestamps of the transcript are shifted back to the
+ * original input.
+ * </p>
+ *
+ * <p>
+ * The thresholds are public fields, like {@link WhisperFullParams}, and are read on every call.
+ * </p>
+ */
+public class AudioPreFilter {
+	
+	/** Minimum RMS of the frames louder than {@link #silenceRms}, 0.015 is about -36 dBFS. Only has an effect above {@link #silenceRms} */
+	public float minRms = 0.015f;
+	/** Minimum absolute peak of the frames louder than {@link #silenceRms} */
+	public float minPeak = 0.02f;
+	/** Maximum share of consecutive samples changing sign, white noise is close to 0.5 */
+	public float maxZeroCrossingRate = 0.35f;
+	/** RMS below which a 20 ms frame is silence, left out of the gates and trimmed. Keep it below {@link #minRms} */
+	public float silenceRms = 0.01f;
+	/** Silence kept before and after the speech, in milliseconds */
+	public int padMs = 200;
+	/** Run the VAD model of {@link WhisperFullParams#vad_model_path} after the energy gates */
+	public boolean vad;
+	/** Parameters used to load the VAD model */
+	public WhisperVADContextParams vadContextParams = new WhisperVADContextParams();
+	
+	private static final int FRAME = WhisperJNI.SAMPLE_RATE / 50;
+	
+	/**
+	 * Runs the energy and zero-crossing gates and finds the speech boundaries.
+	 *
+	 * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param numSamples the number of audio samples provided.
+	 * @return the {@link Result}
+	 */
+	public Result analyze(float[] samples, int numSamples)
+	{
+		double energy = 0;
+		float peak = 0;
+		int crossings = 0;
+		int kept = 0;
+		int first = -1;
+		int last = -1;
+		for(int frame = 0; frame < numSamples; frame += FRAME)
+		{
+			int end = Math.min(frame + FRAME, numSamples);
+			double frameEnergy = 0;
+			for(int i = frame; i < end; i++)
+			{
+				frameEnergy += samples[i] * samples[i];
+			}
+			if(Math.sqrt(frameEnergy / (end - frame)) < silenceRms)
+			{
+				continue;
+			}
+			if(first < 0)
+			{
+				first = frame;
+			}
+			last = frame;
+			energy += frameEnergy;
+			kept += end - frame;
+			for(int i = frame; i < end; i++)
+			{
+				peak = Math.max(peak, Math.abs(samples[i]));
+				if(i > frame && (samples[i] >= 0) != (samples[i - 1] >= 0))
+				{
+					crossings++;
+				}
+			}
+		}
+		float rms = kept == 0 ? 0 : (float) Math.sqrt(energy / kept);
+		float zeroCrossingRate = kept == 0 ? 0 : crossings / (float) kept;
+		if(kept == 0 || rms < minRms || peak < minPeak)
+		{
+			return new Result(false, "silence", 0, 0, rms, peak, zeroCrossingRate);
+		}
+		if(zeroCrossingRate > maxZeroCrossingRate)
+		{
+			return new Result(false, "noise", 0, 0, rms, peak, zeroCrossingRate);
+		}
+		int pad = padMs * WhisperJNI.SAMPLE_RATE / 1000;
+		int from = Math.max(0, first - pad);
+		int to = Math.min(numSamples, last + FRAME + pad);
+		return new Result(true, null, from, to, rms, peak, zeroCrossingRate);
+	}
+	
+	/**
+	 * Filters the input and transcribes what is left.
+	 *
+	 * @param whisper    the {@link WhisperJNI} instance to call.
+	 * @param context    the {@link WhisperContext} used to transcribe.
+	 * @param state      the {@link WhisperState} used to transcribe, or <code>null</code> to use the default state of the context.
+	 * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param numSamples the number of audio samples provided.
+	 * @return the segments with timestamps relative to the whole input, empty if the input was rejected
+	 * @throws IOException if the transcription fails
+	 */
+	public WhisperSegment[] transcribe(WhisperJNI whisper, WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples,
+			int numSamples) throws IOException
+	{
+		Result result = analyze(samples, numSamples);
+		if(!result.speech)
+		{
+			return new WhisperSegment[0];
+		}
+		int from = result.from;
+		int to = result.to;
+		if(vad)
+		{
+			float[] region = from == 0 ? samples : Arrays.copyOfRange(samples, from, to);
+			WhisperVADSegment[] speech = whisper.detectSpeech(params, vadContextParams, region, to - from);
+			if(speech.length == 0)
+			{
+				return new WhisperSegment[0];
+			}
+			int pad = padMs * WhisperJNI.SAMPLE_RATE / 1000;
+			int start = from + Math.max(0, (int) (speech[0].startSeconds * WhisperJNI.SAMPLE_RATE) - pad);
+			to = Math.min(to, from + (int) (speech[speech.length - 1].endSeconds * WhisperJNI.SAMPLE_RATE) + pad);
+			from = start;
+		}
+		int code = state == null ? whisper.full(context, params, samples, from, to - from)
+				: whisper.fullWithState(context, state, params, samples, from, to - from);
+		if(code != 0)
+		{
+			throw new IOException("Transcription failed with code " + code);
+		}
+		WhisperSegment[] segments = state == null ? whisper.getSegments(context) : whisper.getSegmentsFromState(state);
+		// Timestamps are in centiseconds
+		long shift = from * 100L / WhisperJNI.SAMPLE_RATE;
+		for(int i = 0; i < segments.length; i++)
+		{
+			segments[i] = new WhisperSegment(segments[i].t0 + shift, segments[i].t1 + shift, segments[i].text);
+		}
+		return segments;
+	}
+	
+	/**
+	 * Outcome of the energy and zero-crossing gates.
+	 */
+	public static final class Result {
+		
+		/** Whether the input may contain speech */
+		public final boolean speech;
+		/** Why the input was rejected, <code>null</code> if it wasn't */
+		public final String reason;
+		/** First sample of the trimmed input */
+		public final int from;
+		/** End, exclusive, of the trimmed input */
+		public final int to;
+		/** RMS of the frames louder than {@link AudioPreFilter#silenceRms} */
+		public final float rms;
+		/** Absolute peak of the frames louder than {@link AudioPreFilter#silenceRms} */
+		public final float peak;
+		/** Share of consecutive samples changing sign in the frames louder than {@link AudioPreFilter#silenceRms} */
+		public final float zeroCrossingRate;
+		
+		Result(boolean speech, String reason, int from, int to, float rms, float peak, float zeroCrossingRate)
+		{
+			this.speech = speech;
+			this.reason = reason;
+			this.from = from;
+			this.to = to;
+			this.rms = rms;
+			this.peak = peak;
+			this.zeroCrossingRate = zeroCrossingRate;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "PreFilter[speech=%b, reason=%s, from=%d, to=%d, rms=%.4f, peak=%.4f, zcr=%.3f]", speech, reason, from, to,
+					rms, peak, zeroCrossingRate);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link AudioResampler} class converts audio to the 16 kHz expected by whisper.cpp, or between any two rates.
+ *
+ * <p>
+ * It is a polyphase windowed-sinc resampler: the rates are reduced to a ratio L/M, and each output sample is the dot product of the input with
+ * one of the L phases of a Kaiser windowed low-pass filter, cut just below the lower of the two Nyquist frequencies. The filter banks are
+ * computed once per ratio and shared by all the instances.
+ * </p>
+ *
+ * <p>
+ * An instance is a stream: {@link #process(float[], int, int)} can be called with chunks of any size and keeps the filter history between them,
+ * so chunk boundaries don't click, and {@link #flush()} returns the last samples at the end of the stream. The output is aligned with the input,
+ * the filter delay is compensated. Instances are not thread safe, use one per stream.
+ * </p>
+ */
+public class AudioResampler {
+	
+	/** Zero crossings of the sinc on each side of the filter center, at the lower rate */
+	private static final int ZERO_CROSSINGS = 12;
+	/** Passband edge relative to the lower Nyquist frequency, the rest is the transition band */
+	private static final double ROLLOFF = 0.92;
+	/** Kaiser window shape, about 80 dB of stopband attenuation */
+	private static final double KAISER_BETA = 8.0;
+	
+	private static final Map<Long, Bank> BANKS = new ConcurrentHashMap<>();
+	
+	private final int inputRate;
+	private final int outputRate;
+	private final Bank bank;
+	/** Input not consumed yet, starting with the history of the filter */
+	private float[] buffer;
+	private int filled;
+	/** Start of the filter window in the buffer */
+	private int start;
+	/** Filter phase of the next output, from 0 to L - 1 */
+	private int phase;
+	private long inputCount;
+	private long outputCount;
+	
+	/**
+	 * Creates a resampler to 16 kHz.
+	 *
+	 * @param inputRate sample rate of the input in Hz
+	 */
+	public AudioResampler(int inputRate)
+	{
+		this(inputRate, WhisperJNI.SAMPLE_RATE);
+	}
+	
+	/**
+	 * Creates a resampler.
+	 *
+	 * @param inputRate  sample rate of the input in Hz
+	 * @param outputRate sample rate of the output in Hz
+	 */
+	public AudioResampler(int inputRate, int outputRate)
+	{
+		if(inputRate <= 0 || outputRate <= 0)
+		{
+			throw new IllegalArgumentException("Invalid sample rates " + inputRate + " -> " + outputRate);
+		}
+		this.inputRate = inputRate;
+		this.outputRate = outputRate;
+		int gcd = gcd(inputRate, outputRate);
+		int up = outputRate / gcd;
+		int down = inputRate / gcd;
+		this.bank = BANKS.computeIfAbsent(((long) up << 32) | down, key -> new Bank(up, down));
+		this.buffer = new float[Math.max(4096, bank.taps * 2)];
+		reset();
+	}
+	
+	/**
+	 * Resamples a whole recording to 16 kHz.
+	 *
+	 * @param samples   the audio samples
+	 * @param inputRate sample rate of the samples in Hz
+	 * @return the 16 kHz samples, the same array if the rate already matches
+	 */
+	public static float[] resample(float[] samples, int inputRate)
+	{
+		if(inputRate == WhisperJNI.SAMPLE_RATE)
+		{
+			return samples;
+		}
+		AudioResampler resampler = new AudioResampler(inputRate);
+		float[] head = resampler.process(samples, 0, samples.length);
+		float[] tail = resampler.flush();
+		float[] output = Arrays.copyOf(head, head.length + tail.length);
+		System.arraycopy(tail, 0, output, head.length, tail.length);
+		return output;
+	}
+	
+	/**
+	 * Gets the sample rate of the input.
+	 *
+	 * @return rate in Hz
+	 */
+	public int getInputRate()
+	{
+		return inputRate;
+	}
+	
+	/**
+	 * Gets the sample rate of the output.
+	 *
+	 * @return rate in Hz
+	 */
+	public int getOutputRate()
+	{
+		return outputRate;
+	}
+	
+	/**
+	 * Gets the maximum number of samples {@link #process(float[], int, int, float[], int)} produces for an input chunk.
+	 *
+	 * @param length number of input samples
+	 * @return output capacity needed
+	 */
+	public int getMaxOutput(int length)
+	{
+		return (int) (((long) length + bank.taps) * bank.up / bank.down + 1);
+	}
+	
+	/**
+	 * Resamples a chunk of the stream.
+	 *
+	 * @param input     the input samples
+	 * @param fromIndex index of the first sample of the chunk
+	 * @param length    number of samples of the chunk
+	 * @return the output samples available so far, the filter delay holds some back until the next chunk or {@link #flush()}
+	 */
+	public float[] process(float[] input, int fromIndex, int length)
+	{
+		float[] output = new float[getMaxOutput(length)];
+		return Arrays.copyOf(output, process(input, fromIndex, length, output, 0));
+	}
+	
+	/**
+	 * Resamples a chunk of the stream into an existing array.
+	 *
+	 * @param input        the input samples
+	 * @param fromIndex    index of the first sample of the chunk
+	 * @param length       number of samples of the chunk
+	 * @param output       array receiving the output, with at least {@link #getMaxOutput(int)} samples after the offset
+	 * @param outputOffset index of the first output sample
+	 * @return number of output samples written
+	 */
+	public int process(float[] input, int fromIndex, int length, float[] output, int outputOffset)
+	{
+		if(fromIndex < 0 || length < 0 || fromIndex + length > input.length)
+		{
+			throw new IndexOutOfBoundsException("Range " + fromIndex + " + " + length + " out of " + input.length + " samples");
+		}
+		append(input, fromIndex, length);
+		inputCount += length;
+		return produce(output, outputOffset, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Ends the stream, returning the samples held back by the filter delay, and resets the resampler for a new stream.
+	 *
+	 * @return the last output samples
+	 */
+	public float[] flush()
+	{
+		// Exactly the output matching the input duration, the zeros only let the filter window reach the last input samples
+		long expected = (inputCount * bank.up + bank.down - 1) / bank.down;
+		append(new float[bank.taps], 0, bank.taps);
+		float[] output = new float[getMaxOutput(bank.taps)];
+		int count = produce(output, 0, expected);
+		reset();
+		return Arrays.copyOf(output, count);
+	}
+	
+	/**
+	 * Drops the state of the stream.
+	 */
+	public void reset()
+	{
+		// Leading zeros, so the first output lines up with the first input sample once the filter delay is removed
+		Arrays.fill(buffer, 0, bank.leadingZeros, 0f);
+		filled = bank.leadingZeros;
+		start = bank.initialStart;
+		phase = bank.initialPhase;
+		inputCount = 0;
+		outputCount = 0;
+	}
+	
+	private void append(float[] input, int fromIndex, int length)
+	{
+		if(filled + length > buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, filled + length));
+		}
+		System.arraycopy(input, fromIndex, buffer, filled, length);
+		filled += length;
+	}
+	
+	private int produce(float[] output, int outputOffset, long limit)
+	{
+		final float[] filters = bank.filters;
+		final float[] samples = buffer;
+		final int taps = bank.taps;
+		final int up = bank.up;
+		final int down = bank.down;
+		int position = start;
+		int currentPhase = phase;
+		int count = 0;
+		while(position + taps <= filled && outputCount + count < limit)
+		{
+			output[outputOffset + count++] = dot(filters, currentPhase * taps, samples, position, taps);
+			currentPhase += down;
+			position += currentPhase / up;
+			currentPhase %= up;
+		}
+		outputCount += count;
+		phase = currentPhase;
+		// Keep the samples the next windows still need at the start of the buffer
+		int keep = Math.max(0, filled - position);
+		System.arraycopy(samples, Math.min(position, filled), samples, 0, keep);
+		start = position - Math.min(position, filled);
+		filled = keep;
+		return count;
+	}
+	
+	/**
+	 * The dot product of one output, with four independent sums so the JIT can overlap the multiplications instead of waiting on a single sum.
+	 */
+	private static float dot(float[] filters, int filterOffset, float[] samples, int sampleOffset, int taps)
+	{
+		float sum0 = 0;
+		float sum1 = 0;
+		float sum2 = 0;
+		float sum3 = 0;
+		// taps is a multiple of 4
+		for(int k = 0; k < taps; k += 4)
+		{
+			sum0 += filters[filterOffset + k] * samples[sampleOffset + k];
+			sum1 += filters[filterOffset + k + 1] * samples[sampleOffset + k + 1];
+			sum2 += filters[filterOffset + k + 2] * samples[sampleOffset + k + 2];
+			sum3 += filters[filterOffset + k + 3] * samples[sampleOffset + k + 3];
+		}
+		return (sum0 + sum1) + (sum2 + sum3);
+	}
+	
+	private static int gcd(int a, int b)
+	{
+		while(b != 0)
+		{
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+	
+	/**
+	 * The polyphase filter bank of a rate ratio, shared by the instances.
+	 */
+	private static final class Bank {
+		
+		final int up;
+		final int down;
+		final int taps;
+		/** Phase after phase, each one in input order so the dot product walks both arrays forward */
+		final float[] filters;
+		final int leadingZeros;
+		final int initialStart;
+		final int initialPhase;
+		
+		Bank(int up, int down)
+		{
+			this.up = up;
+			this.down = down;
+			// Enough taps per phase for the zero crossings at the lower rate, rounded up to a multiple of 4 for the dot product
+			int rawTaps = (int) Math.ceil(2 * ZERO_CROSSINGS * Math.max(1.0, down / (double) up) / ROLLOFF);
+			this.taps = (rawTaps + 3) & ~3;
+			// Odd length, so the delay is a whole number of upsampled samples. taps is even, the last coefficient of the bank stays 0
+			int length = taps * up - 1;
+			// Cutoff in cycles per sample of the upsampled signal
+			double cutoff = ROLLOFF * 0.5 / Math.max(up, down);
+			double center = (length - 1) / 2.0;
+			double[] prototype = new double[taps * up];
+			double i0Beta = besselI0(KAISER_BETA);
+			for(int i = 0; i < length; i++)
+			{
+				double x = i - center;
+				double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+				double ratio = 2 * i / (double) (length - 1) - 1;
+				prototype[i] = sinc * besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / i0Beta;
+			}
+			this.filters = new float[taps * up];
+			for(int p = 0; p < up; p++)
+			{
+				// Normalized per phase, so a constant input stays constant whatever the phase
+				double sum = 0;
+				for(int j = 0; j < taps; j++)
+				{
+					sum += prototype[(taps - 1 - j) * up + p];
+				}
+				for(int j = 0; j < taps; j++)
+				{
+					filters[p * taps + j] = (float) (prototype[(taps - 1 - j) * up + p] / sum);
+				}
+			}
+			// Output n comes from the upsampled time n * down + delay, shifted by the leading zeros so the first window is full
+			int delay = (length - 1) / 2;
+			this.leadingZeros = Math.max(0, (taps - 1) - delay / up);
+			long time = (long) leadingZeros * up + delay;
+			long last = time / up;
+			this.initialPhase = (int) (time % up);
+			this.initialStart = (int) (last - taps + 1);
+		}
+		
+		private static double besselI0(double x)
+		{
+			double sum = 1;
+			double term = 1;
+			for(int k = 1; k < 50; k++)
+			{
+				term *= (x / (2 * k)) * (x / (2 * k));
+				sum += term;
+				if(term < sum * 1e-12)
+				{
+					break;
+				}
+			}
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * The {@link BatchTranscriber} class transcribes large sets of audio files with bounded memory, and resumes after a crash.
+ *
+ * <p>
+ * The files are listed from a directory or a manifest, and go through three stages connected by bounded queues: {@link #decoders} threads read
+ * them into samples, {@link #states} threads each owning a {@link WhisperState} transcribe them, and the calling thread writes the results. A
+ * slow stage blocks the ones before it, so no more than {@link #queueCapacity} files wait between two stages and the heap stays flat whatever
+ * the number of files. The inference threads share the model of the context, give them the cores with {@link WhisperFullParams#nThreads} or a
+ * {@link ThreadBudget}.
+ * </p>
+ *
+ * <p>
+ * Every file produces one JSON line in the output, with its segments or the error that stopped it. After the line is written, the file and the
+ * output size are appended to the journal. A new run with the same journal skips the files it lists and truncates the output to the last
+ * recorded size, dropping a line written before a crash but not journaled, so every file appears exactly once. The journal is flushed to the
+ * operating system, not synced to the disk, so it survives a crash of the process but not of the machine.
+ * </p>
+ *
+ * <p>
+ * The files are decoded with {@link AudioSystem}, mixed down to mono and resampled to 16 kHz with {@link AudioResampler}.
+ * </p>
+ */
+public class BatchTranscriber {
+	
+	/** Number of threads decoding files */
+	public int decoders = 1;
+	/** Number of threads running inference, each on its own {@link WhisperState} */
+	public int states = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+	/** Capacity of the queues between the stages */
+	public int queueCapacity = 2;
+	/** Glob selecting the files of a directory, by file name */
+	public String glob = "*.{wav,WAV}";
+	
+	private static final Object END = new Object();
+	
+	private final WhisperJNI whisper;
+	private final WhisperContext context;
+	private final WhisperFullParams params;
+	
+	/**
+	 * Creates a batch transcriber.
+	 *
+	 * @param whisper the {@link WhisperJNI} instance to call
+	 * @param context the {@link WhisperContext} used to transcribe, left open
+	 * @param params  a {@link WhisperFullParams} instance with the desired configuration, shared by all the files
+	 */
+	public BatchTranscriber(WhisperJNI whisper, WhisperContext context, WhisperFullParams params)
+	{
+		this.whisper = whisper;
+		this.context = context;
+		this.params = params;
+	}
+	
+	/**
+	 * Transcribes the files of a directory, or of a manifest.
+	 *
+	 * @param input   a directory, walked recursively for the files matching {@link #glob}, or a manifest file listing one path per line, relative to
+	 *                the manifest. Blank lines and lines starting with <code>#</code> are ignored.
+	 * @param output  the JSON lines file
+	 * @param journal the checkpoint journal, resumed if it exists
+	 * @return the {@link Report} of this run
+	 * @throws IOException          if the input can't be listed, or the output or the journal can't be written
+	 * @throws InterruptedException if the calling thread is interrupted, the journal is left consistent
+	 */
+	public Report run(Path input, Path output, Path journal) throws IOException, InterruptedException
+	{
+		long start = System.nanoTime();
+		Set<String> done = new HashSet<>();
+		long offset = readJournal(journal, done);
+		int skipped = 0;
+		int transcribed = 0;
+		int failed = 0;
+		double audioSeconds = 0;
+		BlockingQueue<Object> files = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Object> decoded = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Object> results = new ArrayBlockingQueue<>(queueCapacity);
+		List<Thread> threads = new ArrayList<>();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<WhisperState> pool = new ArrayList<>();
+		// Closed after the stage threads stopped, the listing thread may still be reading it
+		Stream<Path> listing = list(input);
+		try(FileChannel outputChannel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				BufferedWriter journalWriter = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND))
+		{
+			// Drops the line of a file transcribed before a crash but missing from the journal
+			outputChannel.truncate(offset);
+			outputChannel.position(offset);
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(outputChannel));
+			for(int i = 0; i < states; i++)
+			{
+				pool.add(whisper.initState(context));
+			}
+			int[] skippedCount = new int[1];
+			Iterator<Path> iterator = listing.iterator();
+			threads.add(start("whisper-batch-list", failure, () ->
+			{
+				while(iterator.hasNext())
+				{
+					Path file = iterator.next().toAbsolutePath().normalize();
+					if(done.contains(file.toString()))
+					{
+						skippedCount[0]++;
+					} else
+					{
+						files.put(file);
+					}
+				}
+				for(int i = 0; i < decoders; i++)
+				{
+					files.put(END);
+				}
+			}));
+			AtomicInteger decodersLeft = new AtomicInteger(decoders);
+			for(int i = 0; i < decoders; i++)
+			{
+				threads.add(start("whisper-batch-decode-" + i, failure, () ->
+				{
+					for(Object file; (file = files.take()) != END;)
+					{
+						try
+						{
+							decoded.put(new Decoded((Path) file, decode((Path) file), null));
+						} catch(IOException | UnsupportedAudioFileException | RuntimeException e)
+						{
+							decoded.put(new Decoded((Path) file, null, e));
+						}
+					}
+					if(decodersLeft.decrementAndGet() == 0)
+					{
+						for(int j = 0; j < states; j++)
+						{
+							decoded.put(END);
+						}
+					}
+				}));
+			}
+			AtomicInteger statesLeft = new AtomicInteger(states);
+			for(int i = 0; i < pool.size(); i++)
+			{
+				WhisperState state = pool.get(i);
+				threads.add(start("whisper-batch-inference-" + i, failure, () ->
+				{
+					for(Object next; (next = decoded.take()) != END;)
+					{
+						results.put(transcribe(state, (Decoded) next));
+					}
+					if(statesLeft.decrementAndGet() == 0)
+					{
+						results.put(END);
+					}
+				}));
+			}
+			for(Object next; (next = take(results, failure)) != END;)
+			{
+				Result result = (Result) next;
+				byte[] line = result.json.getBytes(StandardCharsets.UTF_8);
+				out.write(line);
+				out.flush();
+				offset += line.length;
+				journalWriter.write(offset + "\t" + result.file + "\n");
+				journalWriter.flush();
+				if(result.failed)
+				{
+					failed++;
+				} else
+				{
+					transcribed++;
+					audioSeconds += result.audioSeconds;
+				}
+			}
+			join(threads);
+			skipped = skippedCount[0];
+		} finally
+		{
+			for(Thread thread : threads)
+			{
+				thread.interrupt();
+			}
+			join(threads);
+			listing.close();
+			for(WhisperState state : pool)
+			{
+				state.close();
+			}
+		}
+		return new Report(transcribed, skipped, failed, audioSeconds, (System.nanoTime() - start) / 1_000_000);
+	}
+	
+	private Stream<Path> list(Path input) throws IOException
+	{
+		if(Files.isDirectory(input))
+		{
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+			return Files.walk(input).filter(file -> Files.isRegularFile(file) && matcher.matches(file.getFileName()));
+		}
+		Path base = input.toAbsolutePath().getParent();
+		return Files.lines(input, StandardCharsets.UTF_8).map(String::strip).filter(line -> !line.isEmpty() && !line.startsWith("#"))
+				.map(base::resolve);
+	}
+	
+	private static long readJournal(Path journal, Set<String> done) throws IOException
+	{
+		long offset = 0;
+		if(!Files.exists(journal))
+		{
+			return offset;
+		}
+		try(BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8))
+		{
+			for(String line; (line = reader.readLine()) != null;)
+			{
+				int tab = line.indexOf('\t');
+				if(tab <= 0)
+				{
+					// Torn by a crash
+					continue;
+				}
+				try
+				{
+					offset = Long.parseLong(line, 0, tab, 10);
+				} catch(NumberFormatException e)
+				{
+					continue;
+				}
+				done.add(line.substring(tab + 1));
+			}
+		}
+		return offset;
+	}
+	
+	private Result transcribe(WhisperState state, Decoded file)
+	{
+		if(file.error != null)
+		{
+			return Result.failure(file.path, file.error);
+		}
+		int code;
+		try
+		{
+			code = whisper.fullWithState(context, state, params, file.samples, file.samples.length);
+		} catch(RuntimeException e)
+		{
+			return Result.failure(file.path, e);
+		}
+		if(code != 0)
+		{
+			return Result.failure(file.path, new IOException("Transcription failed with code " + code));
+		}
+		double seconds = file.samples.length / (double) WhisperJNI.SAMPLE_RATE;
+		StringBuilder json = new StringBuilder("{\"file\":");
+		appendString(json, file.path.toString());
+		json.append(String.format(Locale.ROOT, ",\"duration\":%.3f,\"segments\":[", seconds));
+		StringBuilder text = new StringBuilder();
+		WhisperSegment[] segments = whisper.getSegmentsFromState(state);
+		for(int i = 0; i < segments.length; i++)
+		{
+			json.append(i == 0 ? "{\"t0\":" : ",{\"t0\":").append(segments[i].t0).append(",\"t1\":").append(segments[i].t1).append(",\"text\":");
+			appendString(json, segments[i].text);
+			json.append('}');
+			text.append(segments[i].text);
+		}
+		json.append("],\"text\":");
+		appendString(json, text.toString().strip());
+		json.append("}\n");
+		return new Result(file.path, json.toString(), false, seconds);
+	}
+	
+	/**
+	 * Reads an audio file into 16 kHz mono samples.
+	 */
+	static float[] decode(Path file) throws IOException, UnsupportedAudioFileException
+	{
+		try(AudioInputStream source = AudioSystem.getAudioInputStream(file.toFile()))
+		{
+			AudioFormat format = source.getFormat();
+			int channels = format.getChannels();
+			AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16, channels, channels * 2,
+					format.getSampleRate(), false);
+			try(AudioInputStream stream = format.matches(pcm) ? source : AudioSystem.getAudioInputStream(pcm, source))
+			{
+				ByteBuffer bytes = ByteBuffer.wrap(stream.readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+				float[] samples = new float[bytes.remaining() / 2 / channels];
+				for(int i = 0; i < samples.length; i++)
+				{
+					float sum = 0;
+					for(int c = 0; c < channels; c++)
+					{
+						sum += bytes.getShort() / (float) Short.MAX_VALUE;
+					}
+					samples[i] = Float.max(-1f, Float.min(sum / channels, 1f));
+				}
+				return AudioResampler.resample(samples, Math.round(format.getSampleRate()));
+			}
+		}
+	}
+	
+	private static void appendString(StringBuilder json, String value)
+	{
+		json.append('"');
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch(c)
+			{
+				case '"' -> json.append("\\\"");
+				case '\\' -> json.append("\\\\");
+				case '\n' -> json.append("\\n");
+				case '\r' -> json.append("\\r");
+				case '\t' -> json.append("\\t");
+				default ->
+				{
+					if(c < 0x20)
+					{
+						json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+					} else
+					{
+						json.append(c);
+					}
+				}
+			}
+		}
+		json.append('"');
+	}
+	
+	private static Thread start(String name, AtomicReference<Throwable> failure, Stage stage)
+	{
+		Thread thread = new Thread(() ->
+		{
+			try
+			{
+				stage.run();
+			} catch(InterruptedException e)
+			{
+				// Stopped by run
+			} catch(Throwable e)
+			{
+				failure.compareAndSet(null, new IOException("Batch stage " + name + " failed", e));
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * Takes the next result, failing if a stage thread died instead of waiting forever.
+	 */
+	private static Object take(BlockingQueue<Object> results, AtomicReference<Throwable> failure) throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			Object next = results.poll(1, TimeUnit.SECONDS);
+			if(next != null)
+			{
+				return next;
+			}
+			if(failure.get() != null)
+			{
+				throw (IOException) failure.get();
+			}
+		}
+	}
+	
+	private static void join(List<Thread> threads) throws InterruptedException
+	{
+		for(Thread thread : threads)
+		{
+			thread.join();
+		}
+	}
+	
+	private interface Stage {
+		
+		void run() throws InterruptedException;
+	}
+	
+	private record Decoded(Path path, float[] samples, Exception error) {
+	}
+	
+	private record Result(Path file, String json, boolean failed, double audioSeconds) {
+		
+		static Result failure(Path file, Exception error)
+		{
+			StringBuilder json = new StringBuilder("{\"file\":");
+			appendString(json, file.toString());
+			json.append(",\"error\":");
+			appendString(json, String.valueOf(error.getMessage()));
+			json.append("}\n");
+			return new Result(file, json.toString(), true, 0);
+		}
+	}
+	
+	/**
+	 * Outcome of a {@link #run(Path, Path, Path)}.
+	 */
+	public static final class Report {
+		
+		/** Number of files transcribed by this run */
+		public final int transcribed;
+		/** Number of files skipped because the journal lists them */
+		public final int skipped;
+		/** Number of files that failed to decode or transcribe, listed in the output with their error */
+		public final int failed;
+		/** Duration of the audio transcribed by this run, in seconds */
+		public final double audioSeconds;
+		/** Wall time of this run, in milliseconds */
+		public final long elapsedMs;
+		
+		Report(int transcribed, int skipped, int failed, double audioSeconds, long elapsedMs)
+		{
+			this.transcribed = transcribed;
+			this.skipped = skipped;
+			this.failed = failed;
+			this.audioSeconds = audioSeconds;
+			this.elapsedMs = elapsedMs;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "Batch[transcribed=%d, skipped=%d, failed=%d, audio=%.1fs, elapsed=%dms]", transcribed, skipped, failed,
+					audioSeconds, elapsedMs);
+		}
+	}
+}
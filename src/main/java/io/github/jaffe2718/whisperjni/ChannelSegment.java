@@ -0,0 +1,25 @@
+package io.github.jaffe2718.whisperjni;
+
+/**
+ * A transcribed text segment of one audio channel, see {@link ChannelTranscriber}.
+ */
+public class ChannelSegment extends WhisperSegment {
+	
+	/** Channel of the segment, from 0 */
+	public final int channel;
+	/** Label of the channel, like "agent" or "customer", the channel number when no labels were given */
+	public final String label;
+	
+	public ChannelSegment(long t0, long t1, String text, int channel, String label)
+	{
+		super(t0, t1, text);
+		this.channel = channel;
+		this.label = label;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "[" + t0 + " -> " + t1 + "][" + label + "]" + text;
+	}
+}
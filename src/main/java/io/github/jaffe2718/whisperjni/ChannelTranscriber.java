@@ -0,0 +1,192 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The {@link ChannelTranscriber} class transcribes the channels of interleaved multi-channel audio concurrently, like the two sides of a call
+ * recording, and merges them into a single transcript.
+ *
+ * <p>
+ * Each channel is read straight from the interleaved samples by
+ * {@link WhisperJNI#fullWithStateInterleaved(WhisperContext, WhisperState, WhisperFullParams, float[], int, int, int)}, so no de-interleaved
+ * array is created on the Java side. The channels run on the threads of a {@link WhisperExecutor}, each one on a {@link WhisperState} taken from a
+ * pool holding one state per channel, and share the model weights of the context. Concurrent {@link #transcribe} calls wait for free states.
+ * </p>
+ *
+ * <p>
+ * Every channel runs with the thread count of the params, use a {@link ThreadBudget} to split the cores between them.
+ * </p>
+ */
+public class ChannelTranscriber implements AutoCloseable {
+	
+	private final WhisperExecutor executor;
+	private final WhisperContext context;
+	private final String[] labels;
+	private final BlockingQueue<WhisperState> states;
+	private final List<WhisperState> allStates = new ArrayList<>();
+	
+	/**
+	 * Creates a transcriber labelling the channels with their numbers.
+	 *
+	 * @param executor the {@link WhisperExecutor} running the channels, with at least one thread per channel to run them all at once
+	 * @param context  the {@link WhisperContext} used to transcribe
+	 * @param channels number of channels of the audio
+	 */
+	public ChannelTranscriber(WhisperExecutor executor, WhisperContext context, int channels)
+	{
+		this(executor, context, numberLabels(channels));
+	}
+	
+	/**
+	 * Creates a transcriber.
+	 *
+	 * @param executor the {@link WhisperExecutor} running the channels, with at least one thread per channel to run them all at once
+	 * @param context  the {@link WhisperContext} used to transcribe
+	 * @param labels   label of each channel, the number of labels is the number of channels of the audio
+	 */
+	public ChannelTranscriber(WhisperExecutor executor, WhisperContext context, String... labels)
+	{
+		if(labels.length == 0)
+		{
+			throw new IllegalArgumentException("At least one channel is required");
+		}
+		this.executor = executor;
+		this.context = context;
+		this.labels = labels.clone();
+		this.states = new ArrayBlockingQueue<>(labels.length);
+		try
+		{
+			for(int i = 0; i < labels.length; i++)
+			{
+				WhisperState state = executor.getWhisper().initState(context);
+				allStates.add(state);
+				states.add(state);
+			}
+		} catch(RuntimeException e)
+		{
+			close();
+			throw e;
+		}
+	}
+	
+	private static String[] numberLabels(int channels)
+	{
+		String[] labels = new String[channels];
+		for(int i = 0; i < channels; i++)
+		{
+			labels[i] = Integer.toString(i);
+		}
+		return labels;
+	}
+	
+	/**
+	 * Gets the number of channels of the audio.
+	 *
+	 * @return number of channels
+	 */
+	public int getChannels()
+	{
+		return labels.length;
+	}
+	
+	/**
+	 * Transcribes all the channels and merges the segments by start time, then by channel.
+	 *
+	 * @param params      a {@link WhisperFullParams} instance with the desired configuration, shared by all the channels.
+	 * @param interleaved the interleaved audio samples (f32 encoded samples with sample rate 16000), frame after frame.
+	 * @param numFrames   the number of frames provided, a frame holding one sample of each channel.
+	 * @return the segments of all the channels, in time order
+	 * @throws IOException          if the transcription of a channel fails
+	 * @throws InterruptedException if the calling thread is interrupted while waiting, the running channels keep running
+	 */
+	public ChannelSegment[] transcribe(WhisperFullParams params, float[] interleaved, int numFrames) throws IOException, InterruptedException
+	{
+		int channels = labels.length;
+		if((long) numFrames * channels > interleaved.length)
+		{
+			throw new IndexOutOfBoundsException(numFrames + " frames of " + channels + " channels is more than " + interleaved.length + " samples");
+		}
+		List<CompletableFuture<List<ChannelSegment>>> futures = new ArrayList<>(channels);
+		for(int channel = 0; channel < channels; channel++)
+		{
+			int current = channel;
+			futures.add(executor.submit(() -> transcribeChannel(params, interleaved, current, numFrames)));
+		}
+		List<ChannelSegment> merged = new ArrayList<>();
+		IOException failure = null;
+		for(CompletableFuture<List<ChannelSegment>> future : futures)
+		{
+			// Wait for every channel even after a failure, so the states are back in the pool when this returns
+			try
+			{
+				merged.addAll(future.get());
+			} catch(ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException io)
+				{
+					failure = failure == null ? io : failure;
+				} else if(cause instanceof RuntimeException runtime)
+				{
+					throw runtime;
+				} else
+				{
+					throw new CompletionException(cause);
+				}
+			}
+		}
+		if(failure != null)
+		{
+			throw failure;
+		}
+		merged.sort(Comparator.comparingLong((ChannelSegment segment) -> segment.t0).thenComparingInt(segment -> segment.channel));
+		return merged.toArray(new ChannelSegment[0]);
+	}
+	
+	private List<ChannelSegment> transcribeChannel(WhisperFullParams params, float[] interleaved, int channel, int numFrames)
+			throws IOException, InterruptedException
+	{
+		WhisperJNI whisper = executor.getWhisper();
+		WhisperState state = states.take();
+		try
+		{
+			int code = whisper.fullWithStateInterleaved(context, state, params, interleaved, channel, labels.length, numFrames);
+			if(code != 0)
+			{
+				throw new IOException("Transcription of channel " + labels[channel] + " failed with code " + code);
+			}
+			WhisperSegment[] segments = whisper.getSegmentsFromState(state);
+			List<ChannelSegment> result = new ArrayList<>(segments.length);
+			for(WhisperSegment segment : segments)
+			{
+				result.add(new ChannelSegment(segment.t0, segment.t1, segment.text, channel, labels[channel]));
+			}
+			return result;
+		} finally
+		{
+			states.add(state);
+		}
+	}
+	
+	/**
+	 * Releases the states, the executor and the context are left open.
+	 */
+	@Override
+	public void close()
+	{
+		for(WhisperState state : allStates)
+		{
+			state.close();
+		}
+		allStates.clear();
+		states.clear();
+	}
+}
@@ -2,10 +2,21 @@ package io.github.jaffe2718.whisperjni;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.stream.Stream;
 
@@ -38,6 +49,18 @@ public abstract class LibraryUtils {
 	private static final List<String> loadOrder = Arrays.asList("cudart64_12", "cublasLt64_12", "cublas64_12", "openblas", "ggml-base", "ggml-cpu", "ggml-cuda", "ggml-blas", "ggml-metal", "ggml-vulkan", "ggml", "whisper", "whisper-jni");
 	private static final String[] LIB_EXTENSIONS = {".so", ".dylib", ".dll"};
 	
+	private static final String VAD_MODEL = "ggml-silero-v6.2.0.bin";
+	
+	/** System property overriding the extraction cache directory */
+	public static final String CACHE_DIR_PROPERTY = "whisperjni.cache.dir";
+	private static final String COMPLETE_MARKER = ".complete";
+	private static final String STAGING_PREFIX = ".staging-";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final long STALE_VERSION_MILLIS = 24L * 60 * 60 * 1000;
+	private static final long STALE_STAGING_MILLIS = 60L * 60 * 1000;
+	/** Shared locks on the versions this JVM uses, held until it exits */
+	private static final Map<Path, FileLock> VERSION_LOCKS = new HashMap<>();
+	
 	/**
 	 * Returns a generalized name of this machine's architecture. Can be useful for determining which natives to load.
 	 *
@@ -139,9 +162,11 @@ public abstract class LibraryUtils {
 	 * </pre>
 	 *
 	 * <p>
-	 * After exporting, you can use the path to fill {@link WhisperFullParams#vad_model_path}.
+	 * After exporting, you can use the path to fill {@link WhisperFullParams#vad_model_path}. Nothing is written if the destination already holds
+	 * the same model.
 	 * </p>
 	 *
+	 * @param logger      SLF4J {@link Logger}
 	 * @param destination path to store the model
 	 * @throws IOException if something goes wrong (like the path being malformed)
 	 */
@@ -151,7 +176,14 @@ public abstract class LibraryUtils {
 		try
 		{
 			// Note to self: getClassLoader() is the preferred way to get resources, as class.getResource will use the package name as the root
-			extractResource(logger, LibraryUtils.class.getClassLoader().getResource("ggml-silero-v6.2.0.bin").toURI(), destination);
+			URI uri = LibraryUtils.class.getClassLoader().getResource(VAD_MODEL).toURI();
+			Path internalPath = resolveResource(logger, uri);
+			if(Files.isRegularFile(destination) && Files.mismatch(internalPath, destination) == -1)
+			{
+				logger.info("VAD model already exported to {}", destination);
+				return;
+			}
+			extractResource(logger, uri, destination);
 			logger.info("Extracted to {}", destination);
 		} catch(URISyntaxException e)
 		{
@@ -159,6 +191,25 @@ public abstract class LibraryUtils {
 		}
 	}
 	
+	/**
+	 * Extracts the bundled <code>ggml-silero-v6.2.0</code> model to the extraction cache, see {@link #extractResourceCached(Logger, URI)}. The model is
+	 * only written the first time.
+	 *
+	 * @param logger SLF4J {@link Logger}
+	 * @return path to the cached model, usable for {@link WhisperFullParams#vad_model_path}
+	 * @throws IOException if something goes wrong
+	 */
+	public static Path exportVADModel(Logger logger) throws IOException
+	{
+		try
+		{
+			return extractResourceCached(logger, LibraryUtils.class.getClassLoader().getResource(VAD_MODEL).toURI());
+		} catch(URISyntaxException e)
+		{
+			throw new IOException(e);
+		}
+	}
+	
 	/**
 	 * Tries to find the Vulkan runtime library on this machine by looking in well known paths according to the
 	 * operating system.
@@ -244,8 +295,171 @@ public abstract class LibraryUtils {
 	public static void extractResource(Logger logger, URI uri, Path destDir) throws IOException
 	{
 		logger.info("Extracting resource from {} to {} (OS: {}, architecture: {})", uri, destDir, OS_NAME, OS_ARCH);
-		Path internalPath;
+		Path internalPath = resolveResource(logger, uri);
 		
+		// Walk through the tree and create all necessary directories
+		try(Stream<Path> paths = Files.walk(internalPath))
+		{
+			paths.forEach(path ->
+			{
+				try
+				{
+					Path dest = destDir.resolve(internalPath.relativize(path).toString());
+					
+					if(Files.isDirectory(path))
+					{
+						Files.createDirectories(dest);
+					}
+					else
+					{
+						Files.copy(path, dest, StandardCopyOption.REPLACE_EXISTING);
+					}
+				} catch(IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch(UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Helper method that extracts internal resources to a temporary directory.
+	 *
+	 * @param logger SLF4J {@link Logger}
+	 * @param uri    internal resource
+	 * @return path to newly created temporary directory
+	 * @throws IOException if something goes wrong
+	 */
+	public static Path extractResource(Logger logger, URI uri) throws IOException
+	{
+		Path tempDir = Files.createTempDirectory("whisper-jni-temp");
+		extractResource(logger, uri, tempDir);
+		return tempDir;
+	}
+	
+	/**
+	 * Returns the directory used by {@link #extractResourceCached(Logger, URI)}. It can be set with the <code>whisperjni.cache.dir</code> system
+	 * property and defaults to <code>whisper-jni-cache-&lt;user name&gt;</code> inside <code>java.io.tmpdir</code>.
+	 *
+	 * @return extraction cache directory
+	 */
+	public static Path getCacheDirectory()
+	{
+		String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+		if(cacheDir != null && !cacheDir.isBlank())
+		{
+			return Path.of(cacheDir);
+		}
+		String user = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+		return Path.of(System.getProperty("java.io.tmpdir"), "whisper-jni-cache-" + user);
+	}
+	
+	/**
+	 * Helper method that extracts internal resources to a persistent cache directory, keyed by the CRC and size of their JAR entries (or the size
+	 * and modification time of files outside a JAR), which are read without inflating anything.
+	 *
+	 * <p>
+	 * If the same resources were already extracted (by this or another JVM), the existing copy is reused as long as it is complete and every file
+	 * has the expected size, nothing is read or written. Otherwise the resources are extracted to a private directory which is then atomically
+	 * renamed into place, so concurrent JVMs never see a partial copy. The SHA-256 of the extracted files is only computed then, and written to the
+	 * <code>.complete</code> marker in <code>sha256sum</code> format.
+	 * </p>
+	 *
+	 * <p>
+	 * Every JVM holds a shared lock on the version it uses until it exits. Other versions of the same resource are removed once no JVM holds them
+	 * and they haven't been used for a day, so a long running JVM keeps its natives and VAD model through a rolling upgrade.
+	 * </p>
+	 *
+	 * <p>
+	 * The natives of the cache are loaded into the process, so the cache directory must belong to the current user and must not be writable by
+	 * others: it is created that way if it is missing, and an {@link IOException} is thrown otherwise. That is also why sizes are enough to check
+	 * a cached copy. See {@link #getCacheDirectory()} for the cache location.
+	 * </p>
+	 *
+	 * @param logger SLF4J {@link Logger}
+	 * @param uri    internal resource, either a directory or a single file
+	 * @return path to the cached directory, or to the cached file if the resource is a file
+	 * @throws IOException if something goes wrong
+	 */
+	public static Path extractResourceCached(Logger logger, URI uri) throws IOException
+	{
+		Path internalPath = resolveResource(logger, uri);
+		boolean singleFile = !Files.isDirectory(internalPath);
+		String name = internalPath.getFileName() == null ? "resource" : internalPath.getFileName().toString().replace("/", "");
+		
+		// Relative path -> size of every file in the resource
+		Map<String, Long> manifest = new TreeMap<>();
+		MessageDigest digest = newDigest();
+		try(Stream<Path> paths = Files.walk(internalPath))
+		{
+			for(Path path : (Iterable<Path>) paths.filter(Files::isRegularFile).sorted()::iterator)
+			{
+				String relative = singleFile ? name : internalPath.relativize(path).toString();
+				manifest.put(relative, Files.size(path));
+				digest.update(relative.getBytes(StandardCharsets.UTF_8));
+				digest.update(fingerprint(path).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		String key = HexFormat.of().formatHex(digest.digest(), 0, 8);
+		
+		Path cacheDir = getCacheDirectory();
+		createPrivateDirectory(cacheDir);
+		Path target = cacheDir.resolve(name + "-" + key);
+		// Before looking at the target, so no other JVM removes it from now on
+		lockVersion(target);
+		
+		if(!isCompleteExtraction(target, manifest))
+		{
+			logger.info("Extracting resource from {} to cache {}", uri, target);
+			Path staging = Files.createTempDirectory(cacheDir, STAGING_PREFIX);
+			try
+			{
+				if(singleFile)
+				{
+					Files.copy(internalPath, staging.resolve(name));
+				}
+				else
+				{
+					extractResource(logger, uri, staging);
+				}
+				writeCompleteMarker(staging, manifest);
+				if(Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !isCompleteExtraction(target, manifest))
+				{
+					logger.warn("Replacing cached resource {}, its content doesn't match", target);
+					deleteRecursively(target);
+				}
+				try
+				{
+					Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+				} catch(FileSystemException e)
+				{
+					// Another JVM published the same version first, a non empty target isn't always a DirectoryNotEmptyException
+					logger.debug("Resource was extracted concurrently to {}", target);
+				}
+			} finally
+			{
+				deleteRecursively(staging);
+			}
+			if(!isCompleteExtraction(target, manifest))
+			{
+				throw new IOException("Failed to extract resource to " + target);
+			}
+		}
+		else
+		{
+			logger.info("Using cached resource {}", target);
+		}
+		// Mark as in use, stale versions are detected by this timestamp
+		Files.setLastModifiedTime(target.resolve(COMPLETE_MARKER), FileTime.fromMillis(System.currentTimeMillis()));
+		cleanStaleExtractions(logger, cacheDir, name, target);
+		return singleFile ? target.resolve(name) : target;
+	}
+	
+	private static Path resolveResource(Logger logger, URI uri) throws IOException
+	{
 		// If we're not inside a JAR, there's nothing to do
 		if("jar".equals(uri.getScheme()))
 		{
@@ -266,49 +480,236 @@ public abstract class LibraryUtils {
 			}
 			
 			// Root of fs
-			internalPath = fs.getPath(parts[1]);
+			return fs.getPath(parts[1]);
 		}
-		else
+		logger.info("URI not in JAR (scheme: {}), lazily converting URI to path", uri.getScheme());
+		return Paths.get(uri);
+	}
+	
+	private static MessageDigest newDigest() throws IOException
+	{
+		try
 		{
-			logger.info("URI not in JAR (scheme: {}), lazily converting URI to path", uri.getScheme());
-			internalPath = Paths.get(uri);
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e)
+		{
+			throw new IOException(e);
 		}
-		
-		// Walk through the tree and create all necessary directories
-		Files.walk(internalPath).forEach(path ->
+	}
+	
+	/**
+	 * Identifies the content of a resource file without reading it: the CRC and size of the central directory for JAR entries, the size and
+	 * modification time otherwise.
+	 */
+	private static String fingerprint(Path path) throws IOException
+	{
+		if(path.getFileSystem().supportedFileAttributeViews().contains("zip"))
+		{
+			return Files.size(path) + ":" + Long.toHexString((Long) Files.getAttribute(path, "zip:crc"));
+		}
+		return Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis();
+	}
+	
+	private static String sha256(Path path) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		try(InputStream in = Files.newInputStream(path))
+		{
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while((read = in.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	/**
+	 * Creates a directory only the current user can write to, or checks an existing one is.
+	 */
+	private static void createPrivateDirectory(Path dir) throws IOException
+	{
+		boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+		if(!Files.exists(dir, LinkOption.NOFOLLOW_LINKS))
 		{
+			Files.createDirectories(dir.toAbsolutePath().getParent());
 			try
 			{
-				Path dest = destDir.resolve(internalPath.relativize(path).toString());
-				
-				if(Files.isDirectory(path))
+				if(posix)
 				{
-					Files.createDirectories(dest);
+					Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
 				}
 				else
 				{
-					Files.copy(path, dest, StandardCopyOption.REPLACE_EXISTING);
+					Files.createDirectory(dir);
 				}
-			} catch(IOException e)
+			} catch(FileAlreadyExistsException e)
+			{
+				// Created concurrently, checked below like any existing directory
+			}
+		}
+		if(!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+		{
+			throw new IOException("Cache directory " + dir + " is not a directory");
+		}
+		UserPrincipal owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS);
+		UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+		if(!owner.equals(user))
+		{
+			throw new IOException("Cache directory " + dir + " is owned by " + owner.getName() + ", not by the current user");
+		}
+		if(posix)
+		{
+			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS);
+			if(permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
 			{
-				throw new UncheckedIOException(e);
+				throw new IOException("Cache directory " + dir + " is writable by other users");
 			}
-		});
+		}
+	}
+	
+	private static boolean isCompleteExtraction(Path dir, Map<String, Long> manifest) throws IOException
+	{
+		Path marker = dir.resolve(COMPLETE_MARKER);
+		if(!Files.isRegularFile(marker))
+		{
+			return false;
+		}
+		for(Map.Entry<String, Long> file : manifest.entrySet())
+		{
+			Path extracted = dir.resolve(file.getKey());
+			if(!Files.isRegularFile(extracted) || Files.size(extracted) != file.getValue())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static void writeCompleteMarker(Path dir, Map<String, Long> manifest) throws IOException
+	{
+		StringBuilder content = new StringBuilder();
+		for(String file : manifest.keySet())
+		{
+			content.append(sha256(dir.resolve(file))).append("  ").append(file).append('\n');
+		}
+		Files.writeString(dir.resolve(COMPLETE_MARKER), content);
+	}
+	
+	private static Path lockFile(Path version)
+	{
+		return version.resolveSibling(version.getFileName() + LOCK_SUFFIX);
 	}
 	
 	/**
-	 * Helper method that extracts internal resources to a temporary directory.
+	 * Takes the shared lock of a version for the life of the JVM. The lock files are never deleted: a JVM waiting on one would otherwise end up
+	 * locking a file nobody else sees.
+	 */
+	private static void lockVersion(Path version) throws IOException
+	{
+		synchronized(VERSION_LOCKS)
+		{
+			if(VERSION_LOCKS.containsKey(version))
+			{
+				return;
+			}
+			FileChannel channel = FileChannel.open(lockFile(version), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try
+			{
+				// Waits while another JVM checks whether the version is unused
+				VERSION_LOCKS.put(version, channel.lock(0, Long.MAX_VALUE, true));
+			} catch(OverlappingFileLockException e)
+			{
+				// Already held by another class loader of this JVM
+				channel.close();
+			} catch(IOException | RuntimeException e)
+			{
+				channel.close();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Removes a version if no JVM holds its lock, the exclusive lock keeps other JVMs from taking it meanwhile.
 	 *
-	 * @param logger SLF4J {@link Logger}
-	 * @param uri    internal resource
-	 * @return path to newly created temporary directory
-	 * @throws IOException if something goes wrong
+	 * @return whether the version was removed
 	 */
-	public static Path extractResource(Logger logger, URI uri) throws IOException
+	private static boolean deleteIfUnused(Path version) throws IOException
 	{
-		Path tempDir = Files.createTempDirectory("whisper-jni-temp");
-		extractResource(logger, uri, tempDir);
-		return tempDir;
+		try(FileChannel channel = FileChannel.open(lockFile(version), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			FileLock lock = channel.tryLock();
+			if(lock == null)
+			{
+				return false;
+			}
+			deleteRecursively(version);
+			return true;
+		} catch(OverlappingFileLockException e)
+		{
+			// In use by this JVM
+			return false;
+		}
+	}
+	
+	private static void cleanStaleExtractions(Logger logger, Path cacheDir, String name, Path current)
+	{
+		long now = System.currentTimeMillis();
+		try(DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDir))
+		{
+			for(Path entry : entries)
+			{
+				String entryName = entry.getFileName().toString();
+				if(entry.equals(current) || !Files.isDirectory(entry))
+				{
+					continue;
+				}
+				if(entryName.startsWith(name + "-") && isOlderThan(entry.resolve(COMPLETE_MARKER), now - STALE_VERSION_MILLIS))
+				{
+					if(deleteIfUnused(entry))
+					{
+						logger.debug("Removed stale cache entry {}", entry);
+					}
+				}
+				else if(entryName.startsWith(STAGING_PREFIX) && isOlderThan(entry, now - STALE_STAGING_MILLIS))
+				{
+					logger.debug("Removing abandoned cache entry {}", entry);
+					deleteRecursively(entry);
+				}
+			}
+		} catch(IOException e)
+		{
+			// Natives in use may be locked (Windows), just try again next time
+			logger.debug("Unable to clean extraction cache", e);
+		}
+	}
+	
+	private static boolean isOlderThan(Path path, long millis)
+	{
+		try
+		{
+			return Files.getLastModifiedTime(path).toMillis() < millis;
+		} catch(IOException e)
+		{
+			return !Files.exists(path);
+		}
+	}
+	
+	private static void deleteRecursively(Path dir) throws IOException
+	{
+		if(!Files.exists(dir))
+		{
+			return;
+		}
+		try(Stream<Path> paths = Files.walk(dir))
+		{
+			for(Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+			{
+				Files.deleteIfExists(path);
+			}
+		}
 	}
 	
 	/**
@@ -0,0 +1,188 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * The {@link ModelInfo} class describes a ggml whisper model from its header, without loading the weights.
+ *
+ * <p>
+ * {@link #inspect(Path)} maps the first bytes of the file, so it takes microseconds whatever the model size and doesn't need the natives. Use it
+ * to place a model or check it against a memory budget before calling {@link WhisperJNI#init(Path)}.
+ * </p>
+ */
+public final class ModelInfo {
+	
+	private static final int GGML_FILE_MAGIC = 0x67676d6c;
+	// magic and 11 hyperparameters
+	private static final int HEADER_BYTES = 4 + 11 * 4;
+	// ftype carries the quantization version in its thousands
+	private static final int QNT_VERSION_FACTOR = 1000;
+	private static final String[] FTYPE_NAMES = { "f32", "f16", "q4_0", "q4_1", "q4_1_some_f16", "q4_2", "q4_3", "q8_0", "q5_0", "q5_1", "q2_k",
+			"q3_k", "q4_k", "q5_k", "q6_k" };
+	
+	/** Model size, like "tiny", "base", "small", "medium", "large-v3" or "large-v3-turbo", "unknown" for other shapes */
+	public final String type;
+	/** Vocabulary size */
+	public final int nVocab;
+	/** Number of audio frames of the encoder window */
+	public final int nAudioCtx;
+	/** Width of the encoder */
+	public final int nAudioState;
+	/** Number of attention heads of the encoder */
+	public final int nAudioHead;
+	/** Number of layers of the encoder */
+	public final int nAudioLayer;
+	/** Maximum number of tokens of the decoder */
+	public final int nTextCtx;
+	/** Width of the decoder */
+	public final int nTextState;
+	/** Number of attention heads of the decoder */
+	public final int nTextHead;
+	/** Number of layers of the decoder */
+	public final int nTextLayer;
+	/** Number of mel bands of the input */
+	public final int nMels;
+	/** Type of the weights, a ggml_ftype value */
+	public final int ftype;
+	/** Whether the model handles other languages than English and translation */
+	public final boolean multilingual;
+	/** Size of the model file in bytes */
+	public final long fileBytes;
+	
+	ModelInfo(int[] hparams, long fileBytes)
+	{
+		this.nVocab = hparams[0];
+		this.nAudioCtx = hparams[1];
+		this.nAudioState = hparams[2];
+		this.nAudioHead = hparams[3];
+		this.nAudioLayer = hparams[4];
+		this.nTextCtx = hparams[5];
+		this.nTextState = hparams[6];
+		this.nTextHead = hparams[7];
+		this.nTextLayer = hparams[8];
+		this.nMels = hparams[9];
+		this.ftype = hparams[10] % QNT_VERSION_FACTOR;
+		// Same rule as whisper_is_multilingual
+		this.multilingual = nVocab >= 51865;
+		this.fileBytes = fileBytes;
+		this.type = switch(nAudioLayer)
+		{
+			case 4 -> "tiny";
+			case 6 -> "base";
+			case 12 -> "small";
+			case 24 -> "medium";
+			case 32 -> nTextLayer == 4 ? "large-v3-turbo" : nMels == 128 ? "large-v3" : "large";
+			default -> "unknown";
+		};
+	}
+	
+	/**
+	 * Reads the header of a model file.
+	 *
+	 * @param model the ggml model file
+	 * @return the {@link ModelInfo}
+	 * @throws IOException if the file can't be read or isn't a ggml whisper model
+	 */
+	public static ModelInfo inspect(Path model) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(model, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if(size < HEADER_BYTES)
+			{
+				throw new IOException("Not a whisper model: " + model);
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if(header.getInt() != GGML_FILE_MAGIC)
+			{
+				throw new IOException("Not a whisper model: " + model);
+			}
+			int[] hparams = new int[11];
+			for(int i = 0; i < hparams.length; i++)
+			{
+				hparams[i] = header.getInt();
+			}
+			return new ModelInfo(hparams, size);
+		}
+	}
+	
+	/**
+	 * Gets the name of the weight type, like "f16" or "q5_0".
+	 *
+	 * @return the ftype name, "unknown" for values this version doesn't know
+	 */
+	public String getFtypeName()
+	{
+		return ftype >= 0 && ftype < FTYPE_NAMES.length ? FTYPE_NAMES[ftype] : "unknown";
+	}
+	
+	/**
+	 * Gets the quantization of the weights.
+	 *
+	 * @return the {@link QuantType}, or <code>null</code> for f32, f16 and mixed weights
+	 */
+	public QuantType getQuantType()
+	{
+		for(QuantType type : QuantType.values())
+		{
+			if(type.ftype == ftype)
+			{
+				return type;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Estimates the memory taken by a context created with {@link WhisperJNI#initNoState(Path)}, the weights are loaded as they are stored.
+	 *
+	 * @return estimated bytes
+	 */
+	public long getEstimatedContextBytes()
+	{
+		return fileBytes;
+	}
+	
+	/**
+	 * Estimates the memory taken by a {@link WhisperState}: the f16 self and cross attention caches of the decoder, the mel input and the
+	 * activations and attention scores of the encoder. Backends add their own buffers, so read it as an order of magnitude.
+	 *
+	 * @return estimated bytes
+	 */
+	public long getEstimatedStateBytes()
+	{
+		long selfCache = 2L * 2 * nTextLayer * nTextCtx * nTextState;
+		long crossCache = 2L * 2 * nTextLayer * nAudioCtx * nTextState;
+		// The mel spectrogram covers twice as many frames as the encoder output
+		long mel = 4L * nMels * nAudioCtx * 2;
+		long activations = 4L * 8 * nAudioCtx * nAudioState;
+		long scores = 4L * nAudioHead * nAudioCtx * nAudioCtx;
+		return selfCache + crossCache + mel + activations + scores;
+	}
+	
+	/**
+	 * Estimates the memory taken by a context created with {@link WhisperJNI#init(Path)}, which includes a default state.
+	 *
+	 * @return estimated bytes
+	 */
+	public long getEstimatedBytes()
+	{
+		return getEstimatedContextBytes() + getEstimatedStateBytes();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT,
+				"Model[type=%s, ftype=%s, multilingual=%b, vocab=%d, audio=%dx%d/%d heads, text=%dx%d/%d heads, mels=%d, file=%d, estimated=%d]", type,
+				getFtypeName(), multilingual, nVocab, nAudioLayer, nAudioState, nAudioHead, nTextLayer, nTextState, nTextHead, nMels, fileBytes,
+				getEstimatedBytes());
+	}
+}
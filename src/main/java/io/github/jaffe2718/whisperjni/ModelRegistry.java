@@ -0,0 +1,315 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ModelRegistry} class loads whisper models on demand and keeps as many of them in memory as a budget allows.
+ *
+ * <p>
+ * Models are acquired by registered name or by path. Concurrent requests for a model that is not loaded yet share a single load, and every
+ * {@link Lease} holds a reference that keeps the model loaded until it is closed. When loading a model would exceed the memory budget, the least
+ * recently used models without references are freed first. Models in use are never freed, so the budget can be exceeded while they are.
+ * </p>
+ *
+ * <p>
+ * Contexts are created with {@link WhisperJNI#initNoState(Path, WhisperContextParams)}: a context is shared by every lease holder, so each
+ * transcription needs its own {@link WhisperState}.
+ * </p>
+ */
+public class ModelRegistry implements AutoCloseable {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(ModelRegistry.class);
+	
+	private final WhisperJNI whisper;
+	private final WhisperContextParams params;
+	private final long memoryBudget;
+	private final Map<String, Path> names = new HashMap<>();
+	// Access ordered, the first entries are the least recently used
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long loadedBytes;
+	private boolean closed;
+	
+	/**
+	 * Creates a registry.
+	 *
+	 * @param whisper      the {@link WhisperJNI} instance used to load models
+	 * @param params       {@link WhisperContextParams} used for every model, or <code>null</code> for the defaults
+	 * @param memoryBudget memory the loaded models may use, in bytes
+	 */
+	public ModelRegistry(WhisperJNI whisper, WhisperContextParams params, long memoryBudget)
+	{
+		this.whisper = whisper;
+		this.params = params;
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/**
+	 * Registers a model under a name, so it can be acquired with {@link #acquire(String)}.
+	 *
+	 * @param name  model name, e.g. "base.en"
+	 * @param model {@link Path} to the whisper ggml model file
+	 */
+	public synchronized void register(String name, Path model)
+	{
+		names.put(name, model.toAbsolutePath().normalize());
+	}
+	
+	/**
+	 * Acquires a registered model, loading it if needed.
+	 *
+	 * @param name the name given to {@link #register(String, Path)}
+	 * @return a {@link Lease} on the model, close it when done
+	 * @throws IOException if the name is unknown or the model can't be loaded
+	 */
+	public Lease acquire(String name) throws IOException
+	{
+		Path model;
+		synchronized(this)
+		{
+			model = names.get(name);
+		}
+		if(model == null)
+		{
+			throw new IOException("Unknown model: " + name);
+		}
+		return acquire(model);
+	}
+	
+	/**
+	 * Acquires a model by path, loading it if needed.
+	 *
+	 * @param model {@link Path} to the whisper ggml model file
+	 * @return a {@link Lease} on the model, close it when done
+	 * @throws IOException if the model can't be loaded
+	 */
+	public Lease acquire(Path model) throws IOException
+	{
+		Path key = model.toAbsolutePath().normalize();
+		Entry entry;
+		boolean load = false;
+		List<WhisperContext> evicted = List.of();
+		synchronized(this)
+		{
+			if(closed)
+			{
+				throw new IllegalStateException("The model registry is closed");
+			}
+			entry = entries.get(key);
+			if(entry == null)
+			{
+				// Make room before loading, with the same header estimate the loaded context accounts
+				long estimate = ModelInfo.inspect(key).getEstimatedContextBytes();
+				entry = new Entry(key);
+				entry.bytes = estimate;
+				evicted = evict(memoryBudget - estimate);
+				entries.put(key, entry);
+				load = true;
+				loadedBytes += entry.bytes;
+			}
+			entry.references++;
+		}
+		closeAll(evicted);
+		if(load)
+		{
+			load(entry);
+		}
+		try
+		{
+			return new Lease(entry, entry.context.get());
+		} catch(InterruptedException e)
+		{
+			release(entry);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + key, e);
+		} catch(ExecutionException e)
+		{
+			release(entry);
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		}
+	}
+	
+	private void load(Entry entry)
+	{
+		try
+		{
+			WhisperContext context = whisper.initNoState(entry.model, params);
+			if(context == null)
+			{
+				throw new IOException("Unable to load model " + entry.model);
+			}
+			entry.context.complete(context);
+		} catch(IOException | RuntimeException e)
+		{
+			synchronized(this)
+			{
+				entries.remove(entry.model, entry);
+				loadedBytes -= entry.bytes;
+			}
+			entry.context.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Removes least recently used models without references until the loaded models take at most <code>target</code> bytes. Must be called
+	 * holding the lock, the returned contexts must be closed after releasing it.
+	 */
+	private List<WhisperContext> evict(long target)
+	{
+		List<WhisperContext> evicted = new ArrayList<>();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(loadedBytes > target && iterator.hasNext())
+		{
+			Entry candidate = iterator.next();
+			if(candidate.references == 0 && candidate.context.isDone() && !candidate.context.isCompletedExceptionally())
+			{
+				iterator.remove();
+				loadedBytes -= candidate.bytes;
+				evicted.add(candidate.context.join());
+				LOGGER.debug("Evicting model {} ({} bytes)", candidate.model, candidate.bytes);
+			}
+		}
+		if(loadedBytes > target && !closed)
+		{
+			LOGGER.warn("Loaded models exceed the memory budget ({} > {} bytes), all of them are in use", loadedBytes, target);
+		}
+		return evicted;
+	}
+	
+	private void release(Entry entry)
+	{
+		List<WhisperContext> evicted;
+		synchronized(this)
+		{
+			entry.references--;
+			// Once closed, every model goes as soon as it is unused
+			evicted = evict(closed ? 0 : memoryBudget);
+		}
+		closeAll(evicted);
+	}
+	
+	private static void closeAll(List<WhisperContext> contexts)
+	{
+		contexts.forEach(WhisperContext::close);
+	}
+	
+	/**
+	 * Checks whether a model is loaded or being loaded.
+	 *
+	 * @param model {@link Path} to the whisper ggml model file
+	 * @return true if the model is in the registry
+	 */
+	public synchronized boolean isLoaded(Path model)
+	{
+		return entries.containsKey(model.toAbsolutePath().normalize());
+	}
+	
+	/**
+	 * Gets the memory used by the loaded models, estimated from their headers with {@link ModelInfo#getEstimatedContextBytes()}.
+	 *
+	 * @return memory in bytes
+	 */
+	public synchronized long getLoadedBytes()
+	{
+		return loadedBytes;
+	}
+	
+	/**
+	 * Gets the memory budget of this registry.
+	 *
+	 * @return memory budget in bytes
+	 */
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+	
+	/**
+	 * Frees every model without references and rejects further acquisitions. Models in use are freed when their last lease is closed.
+	 */
+	@Override
+	public void close()
+	{
+		List<WhisperContext> evicted;
+		synchronized(this)
+		{
+			closed = true;
+			evicted = evict(0);
+		}
+		closeAll(evicted);
+	}
+	
+	private static final class Entry {
+		
+		final Path model;
+		final CompletableFuture<WhisperContext> context = new CompletableFuture<>();
+		int references;
+		long bytes;
+		
+		Entry(Path model)
+		{
+			this.model = model;
+		}
+	}
+	
+	/**
+	 * A reference to a loaded model, keeps it from being evicted until closed.
+	 */
+	public final class Lease implements AutoCloseable {
+		
+		private final Entry entry;
+		private final WhisperContext context;
+		private boolean released;
+		
+		private Lease(Entry entry, WhisperContext context)
+		{
+			this.entry = entry;
+			this.context = context;
+		}
+		
+		/**
+		 * Gets the context of the model.
+		 *
+		 * @return the {@link WhisperContext}
+		 */
+		public WhisperContext context()
+		{
+			return context;
+		}
+		
+		/**
+		 * Gets the path of the model.
+		 *
+		 * @return the model {@link Path}
+		 */
+		public Path model()
+		{
+			return entry.model;
+		}
+		
+		@Override
+		public void close()
+		{
+			synchronized(this)
+			{
+				if(released)
+				{
+					return;
+				}
+				released = true;
+			}
+			release(entry);
+		}
+	}
+}
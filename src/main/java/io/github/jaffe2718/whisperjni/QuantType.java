@@ -0,0 +1,42 @@
+package io.github.jaffe2718.whisperjni;
+
+/**
+ * The {@link QuantType} enum lists the quantization formats of {@link WhisperJNI#quantize(java.nio.file.Path, java.nio.file.Path, QuantType)}.
+ *
+ * <p>
+ * Smaller formats take less memory and run faster on CPU, at some cost in accuracy. Q5_0 and Q8_0 are the usual choices.
+ * </p>
+ */
+public enum QuantType {
+	/** 4 bits per weight, with a scale per block */
+	Q4_0(2, 32),
+	/** 4 bits per weight, with a scale and a minimum per block */
+	Q4_1(3, 32),
+	/** 8 bits per weight, close to the f16 accuracy */
+	Q8_0(7, 32),
+	/** 5 bits per weight, with a scale per block */
+	Q5_0(8, 32),
+	/** 5 bits per weight, with a scale and a minimum per block */
+	Q5_1(9, 32),
+	/** 2 bits per weight, k-quant */
+	Q2_K(10, 256),
+	/** 3 bits per weight, k-quant */
+	Q3_K(11, 256),
+	/** 4 bits per weight, k-quant */
+	Q4_K(12, 256),
+	/** 5 bits per weight, k-quant */
+	Q5_K(13, 256),
+	/** 6 bits per weight, k-quant */
+	Q6_K(14, 256);
+	
+	/** Value of the ggml_ftype enum */
+	final int ftype;
+	/** Weights per quantization block, the rows of the quantized matrices must be a multiple of it */
+	final int blockSize;
+	
+	QuantType(int ftype, int blockSize)
+	{
+		this.ftype = ftype;
+		this.blockSize = blockSize;
+	}
+}
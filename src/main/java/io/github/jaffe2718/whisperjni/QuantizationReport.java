@@ -0,0 +1,43 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.util.Locale;
+
+/**
+ * Outcome of {@link WhisperJNI#quantize(java.nio.file.Path, java.nio.file.Path, QuantType)}.
+ */
+public final class QuantizationReport {
+	
+	/** Format of the output model */
+	public final QuantType type;
+	/** Size of the input model in bytes */
+	public final long inputBytes;
+	/** Size of the output model in bytes */
+	public final long outputBytes;
+	/** Wall time of the quantization, in milliseconds */
+	public final long elapsedMs;
+	
+	QuantizationReport(QuantType type, long inputBytes, long outputBytes, long elapsedMs)
+	{
+		this.type = type;
+		this.inputBytes = inputBytes;
+		this.outputBytes = outputBytes;
+		this.elapsedMs = elapsedMs;
+	}
+	
+	/**
+	 * Gets the size of the output relative to the input.
+	 *
+	 * @return output size divided by input size
+	 */
+	public double getRatio()
+	{
+		return inputBytes == 0 ? 0 : outputBytes / (double) inputBytes;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "Quantization[type=%s, input=%d, output=%d, ratio=%.3f, elapsed=%dms]", type, inputBytes, outputBytes,
+				getRatio(), elapsedMs);
+	}
+}
@@ -0,0 +1,229 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@link SwappableContext} class is a {@link WhisperContext} reference whose model can be replaced while transcriptions are running.
+ *
+ * <p>
+ * Requests take a {@link Lease} with {@link #acquire()} and use its context, creating their {@link WhisperState} from it, until they close the
+ * lease. {@link #swap(Path)} loads the new model on the calling thread while requests keep being served, then moves new acquisitions to it in one
+ * step. Requests still holding a lease on the previous model finish on it, and the previous context is freed when its last lease is closed.
+ * </p>
+ *
+ * <p>
+ * States must be closed before the lease they were created under.
+ * </p>
+ */
+public class SwappableContext implements AutoCloseable {
+	
+	private final WhisperJNI whisper;
+	private final WhisperContextParams params;
+	private final AtomicReference<Generation> current = new AtomicReference<>();
+	private final Object swapLock = new Object();
+	
+	/**
+	 * Creates a swappable context and loads its first model.
+	 *
+	 * @param whisper the {@link WhisperJNI} instance used to load models
+	 * @param model   {@link Path} to the whisper ggml model file
+	 * @param params  {@link WhisperContextParams} used for every model, or <code>null</code> for the defaults
+	 * @throws IOException if the model can't be loaded
+	 */
+	public SwappableContext(WhisperJNI whisper, Path model, WhisperContextParams params) throws IOException
+	{
+		this.whisper = whisper;
+		this.params = params;
+		current.set(new Generation(load(model), model, 1));
+	}
+	
+	private WhisperContext load(Path model) throws IOException
+	{
+		WhisperContext context = whisper.initNoState(model, params);
+		if(context == null)
+		{
+			throw new IOException("Unable to load model " + model);
+		}
+		return context;
+	}
+	
+	/**
+	 * Takes a lease on the current model.
+	 *
+	 * @return a {@link Lease}, close it when done
+	 * @throws IllegalStateException if this context is closed
+	 */
+	public Lease acquire()
+	{
+		while(true)
+		{
+			Generation generation = current.get();
+			if(generation == null)
+			{
+				throw new IllegalStateException("The swappable context is closed");
+			}
+			// Fails only if the generation was swapped out and released meanwhile, the next read sees its successor
+			if(generation.retain())
+			{
+				return new Lease(generation);
+			}
+		}
+	}
+	
+	/**
+	 * Loads a model and makes it the current one. Requests are served by the previous model while it loads, call it from a background
+	 * thread to not delay the caller.
+	 *
+	 * @param model {@link Path} to the whisper ggml model file
+	 * @throws IOException if the model can't be loaded, the current model is kept
+	 */
+	public void swap(Path model) throws IOException
+	{
+		// Swaps are serialized so generations are numbered in order
+		synchronized(swapLock)
+		{
+			Generation previous = current.get();
+			if(previous == null)
+			{
+				throw new IllegalStateException("The swappable context is closed");
+			}
+			// close() takes the swap lock too, so the context can't be closed while the model loads
+			current.set(new Generation(load(model), model, previous.number + 1));
+			previous.release();
+		}
+	}
+	
+	/**
+	 * Gets the path of the current model.
+	 *
+	 * @return the model {@link Path}
+	 */
+	public Path getModel()
+	{
+		Generation generation = current.get();
+		return generation == null ? null : generation.model;
+	}
+	
+	/**
+	 * Gets the number of the current model, 1 for the first one and incremented by every swap.
+	 *
+	 * @return generation number
+	 */
+	public int getGeneration()
+	{
+		Generation generation = current.get();
+		return generation == null ? 0 : generation.number;
+	}
+	
+	/**
+	 * Stops accepting acquisitions. The last model is freed when its last lease is closed.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized(swapLock)
+		{
+			Generation last = current.getAndSet(null);
+			if(last != null)
+			{
+				last.release();
+			}
+		}
+	}
+	
+	private static final class Generation {
+		
+		final WhisperContext context;
+		final Path model;
+		final int number;
+		// One reference is held by the SwappableContext while this is the current generation
+		final AtomicInteger references = new AtomicInteger(1);
+		
+		Generation(WhisperContext context, Path model, int number)
+		{
+			this.context = context;
+			this.model = model;
+			this.number = number;
+		}
+		
+		boolean retain()
+		{
+			int count;
+			do
+			{
+				count = references.get();
+				if(count == 0)
+				{
+					return false;
+				}
+			}
+			while(!references.compareAndSet(count, count + 1));
+			return true;
+		}
+		
+		void release()
+		{
+			if(references.decrementAndGet() == 0)
+			{
+				context.close();
+			}
+		}
+	}
+	
+	/**
+	 * A reference to one model, keeps it loaded until closed even if it has been swapped out.
+	 */
+	public static final class Lease implements AutoCloseable {
+		
+		private final Generation generation;
+		private boolean released;
+		
+		private Lease(Generation generation)
+		{
+			this.generation = generation;
+		}
+		
+		/**
+		 * Gets the context of the model.
+		 *
+		 * @return the {@link WhisperContext}
+		 */
+		public WhisperContext context()
+		{
+			return generation.context;
+		}
+		
+		/**
+		 * Gets the path of the model.
+		 *
+		 * @return the model {@link Path}
+		 */
+		public Path model()
+		{
+			return generation.model;
+		}
+		
+		/**
+		 * Gets the generation number of the model, see {@link SwappableContext#getGeneration()}.
+		 *
+		 * @return generation number
+		 */
+		public int generation()
+		{
+			return generation.number;
+		}
+		
+		@Override
+		public synchronized void close()
+		{
+			if(!released)
+			{
+				released = true;
+				generation.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The {@link ThreadBudget} class splits a fixed number of cores between the transcriptions running at the same time.
+ *
+ * <p>
+ * Without a budget every call uses the whisper.cpp default thread count, so running several states in parallel oversubscribes the machine. Set a
+ * budget with {@link WhisperJNI#setThreadBudget(ThreadBudget)} and calls whose {@link WhisperFullParams#nThreads} is 0 get their thread count
+ * from it; calls with an explicit thread count keep it but still count against the budget.
+ * </p>
+ *
+ * <p>
+ * whisper.cpp fixes the thread count when a call starts, so the split is decided on entry from the calls in flight at that moment, and the
+ * threads are given back when the call returns. The calls the budget decides never take more than the free cores, so together they stay within
+ * the core count; once every core is taken a new call still gets one thread.
+ * </p>
+ */
+public class ThreadBudget {
+	
+	/**
+	 * How cores are handed out to concurrent calls.
+	 */
+	public enum Policy {
+		/**
+		 * Splits the cores evenly between the calls in flight, including the new one, within the cores the earlier calls left free. Best total
+		 * throughput, since whisper.cpp scales sublinearly with threads.
+		 */
+		THROUGHPUT,
+		/**
+		 * Gives a new call every core not used by the calls in flight, up to the per call limit. Best latency for the first calls, later ones
+		 * get what is left.
+		 */
+		LATENCY
+	}
+	
+	private final int cores;
+	private final int maxThreadsPerCall;
+	private final Policy policy;
+	private int inFlight;
+	private int threadsInUse;
+	
+	/**
+	 * Creates a budget.
+	 *
+	 * @param cores             number of cores to split
+	 * @param maxThreadsPerCall upper bound of the threads given to a single call
+	 * @param policy            the {@link Policy} used to split the cores
+	 */
+	public ThreadBudget(int cores, int maxThreadsPerCall, Policy policy)
+	{
+		if(cores < 1 || maxThreadsPerCall < 1)
+		{
+			throw new IllegalArgumentException("A thread budget needs at least one core");
+		}
+		this.cores = cores;
+		this.maxThreadsPerCall = maxThreadsPerCall;
+		this.policy = policy;
+	}
+	
+	/**
+	 * Creates a budget over the cores available to the process, see {@link #availableCores()}.
+	 *
+	 * @param policy the {@link Policy} used to split the cores
+	 * @return a new {@link ThreadBudget}
+	 */
+	public static ThreadBudget ofAvailableCores(Policy policy)
+	{
+		int cores = availableCores();
+		return new ThreadBudget(cores, cores, policy);
+	}
+	
+	/**
+	 * Gets the number of cores the process may use: the processor count visible to the JVM (which follows the CPU affinity and, on recent JVMs,
+	 * the container limits), further limited by the cgroup CPU quota when there is one.
+	 *
+	 * @return available cores, at least 1
+	 */
+	public static int availableCores()
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		int quota = cgroupCpuQuota();
+		return Math.max(1, quota > 0 ? Math.min(cores, quota) : cores);
+	}
+	
+	/**
+	 * Reads the CPU quota of the cgroup, v2 first then v1.
+	 *
+	 * @return quota rounded up to whole cores, or -1 if unlimited or unknown
+	 */
+	static int cgroupCpuQuota()
+	{
+		try
+		{
+			Path v2 = Path.of("/sys/fs/cgroup/cpu.max");
+			if(Files.isReadable(v2))
+			{
+				// "max 100000" or "<quota> <period>"
+				String[] parts = Files.readString(v2).trim().split("\\s+");
+				return parts.length == 2 && !"max".equals(parts[0]) ? quotaCores(Long.parseLong(parts[0]), Long.parseLong(parts[1])) : -1;
+			}
+			for(String dir : List.of("/sys/fs/cgroup/cpu", "/sys/fs/cgroup/cpu,cpuacct"))
+			{
+				Path quota = Path.of(dir, "cpu.cfs_quota_us");
+				Path period = Path.of(dir, "cpu.cfs_period_us");
+				if(Files.isReadable(quota) && Files.isReadable(period))
+				{
+					return quotaCores(Long.parseLong(Files.readString(quota).trim()), Long.parseLong(Files.readString(period).trim()));
+				}
+			}
+		} catch(IOException | NumberFormatException e)
+		{
+			// Not on Linux, or an unexpected format: fall back to the processor count
+		}
+		return -1;
+	}
+	
+	private static int quotaCores(long quota, long period)
+	{
+		return quota <= 0 || period <= 0 ? -1 : (int) Math.max(1, (quota + period - 1) / period);
+	}
+	
+	/**
+	 * Takes threads from the budget for a new call. The returned {@link Lease} must be closed when the call returns.
+	 *
+	 * @param requested thread count asked by the call, 0 to let the budget decide
+	 * @return a {@link Lease} holding the thread count to use
+	 */
+	public synchronized Lease acquire(int requested)
+	{
+		int threads;
+		if(requested > 0)
+		{
+			threads = requested;
+		}
+		else if(policy == Policy.THROUGHPUT)
+		{
+			// The earlier calls keep their threads until they return
+			threads = Math.min(cores / (inFlight + 1), cores - threadsInUse);
+		}
+		else
+		{
+			threads = cores - threadsInUse;
+		}
+		threads = Math.max(1, requested > 0 ? threads : Math.min(threads, maxThreadsPerCall));
+		inFlight++;
+		threadsInUse += threads;
+		return new Lease(threads);
+	}
+	
+	private synchronized void release(int threads)
+	{
+		inFlight--;
+		threadsInUse -= threads;
+	}
+	
+	/**
+	 * Gets the number of cores split by this budget.
+	 *
+	 * @return number of cores
+	 */
+	public int getCores()
+	{
+		return cores;
+	}
+	
+	/**
+	 * Gets the policy of this budget.
+	 *
+	 * @return the {@link Policy}
+	 */
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+	
+	/**
+	 * Gets the number of calls holding a lease.
+	 *
+	 * @return calls in flight
+	 */
+	public synchronized int getInFlight()
+	{
+		return inFlight;
+	}
+	
+	/**
+	 * Gets the threads held by the calls in flight. It can exceed the core count when calls ask for explicit thread counts.
+	 *
+	 * @return threads in use
+	 */
+	public synchronized int getThreadsInUse()
+	{
+		return threadsInUse;
+	}
+	
+	/**
+	 * Threads given to one call, returned to the budget on {@link #close()}.
+	 */
+	public final class Lease implements AutoCloseable {
+		
+		private final int threads;
+		private boolean closed;
+		
+		private Lease(int threads)
+		{
+			this.threads = threads;
+		}
+		
+		/**
+		 * Gets the thread count the call should use.
+		 *
+		 * @return thread count
+		 */
+		public int threads()
+		{
+			return threads;
+		}
+		
+		@Override
+		public void close()
+		{
+			synchronized(ThreadBudget.this)
+			{
+				if(closed)
+				{
+					return;
+				}
+				closed = true;
+				release(threads);
+			}
+		}
+	}
+}
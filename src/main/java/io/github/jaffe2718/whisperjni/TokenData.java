@@ -1,5 +1,7 @@
 package io.github.jaffe2718.whisperjni;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Represents the data of an individual token.
  * 
@@ -7,7 +9,7 @@ package io.github.jaffe2718.whisperjni;
  */
 public class TokenData {
 	
-	// We have to add this ourselves in the cpp side cause its not part of the struct for which this is a wrapper for
+	// Not part of the struct for which this is a wrapper for, resolved from the WhisperVocabulary of the context
 	public final String token;
 	
 	/** Token ID */
@@ -38,9 +40,18 @@ public class TokenData {
 	/** Voice length of the token */
 	public final float vlen;
 	
+	// Raw text from the vocabulary, null when built from a String
+	private final Utf8Text utf8;
+	
 	protected TokenData(String token, int id, int tid, float p, float plog, float pt, float ptsum, long t0, long t1, long t_dtw, float vlen)
+	{
+		this(token, null, id, tid, p, plog, pt, ptsum, t0, t1, t_dtw, vlen);
+	}
+	
+	private TokenData(String token, Utf8Text utf8, int id, int tid, float p, float plog, float pt, float ptsum, long t0, long t1, long t_dtw, float vlen)
 	{
 		this.token = token;
+		this.utf8 = utf8;
 		this.id = id;
 		this.tid = tid;
 		this.p = p;
@@ -53,6 +64,24 @@ public class TokenData {
 		this.vlen = vlen;
 	}
 	
+	/**
+	 * Native side constructor, the token text is resolved from the cached {@link WhisperVocabulary} instead of being converted for every token.
+	 */
+	TokenData(WhisperVocabulary vocabulary, int id, int tid, float p, float plog, float pt, float ptsum, long t0, long t1, long t_dtw, float vlen)
+	{
+		this(vocabulary.getString(id), vocabulary.getUtf8(id), id, tid, p, plog, pt, ptsum, t0, t1, t_dtw, vlen);
+	}
+	
+	/**
+	 * Gets the raw UTF-8 text of the token. Unlike {@link #token}, it keeps the bytes of a multi-byte character split across tokens.
+	 *
+	 * @return token text as {@link Utf8Text}
+	 */
+	public Utf8Text utf8()
+	{
+		return utf8 != null ? utf8 : new Utf8Text(token.getBytes(StandardCharsets.UTF_8));
+	}
+	
 	@Override
 	public String toString()
 	{
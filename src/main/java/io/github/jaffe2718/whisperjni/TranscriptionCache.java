@@ -0,0 +1,505 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@link TranscriptionCache} class serves repeated transcriptions of identical audio without running whisper.cpp again.
+ *
+ * <p>
+ * Results are addressed by a 128 bits hash of the samples, the model and the {@link WhisperFullParams} fields that change the output (thread
+ * count and printing options are left out). They are kept in a bounded in-memory LRU map and, optionally, in a memory-mapped file that survives
+ * restarts; when the file is full it is cleared and refilled. Concurrent requests for the same key run a single transcription and share its
+ * result.
+ * </p>
+ *
+ * <p>
+ * The model is identified by the absolute path, size and modification time its file had when the context was loaded. Contexts loaded from a
+ * stream can't be identified, their transcriptions bypass the cache. A cached result doesn't fill the segments of the context or state, use the
+ * returned {@link WhisperSegment} array.
+ * </p>
+ */
+public class TranscriptionCache implements AutoCloseable {
+	
+	private final WhisperJNI whisper;
+	private final Map<Key, WhisperSegment[]> memory;
+	private final DiskTier disk;
+	private final ConcurrentHashMap<Key, CompletableFuture<WhisperSegment[]>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder diskHits = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	
+	/**
+	 * Creates an in-memory cache.
+	 *
+	 * @param whisper    the {@link WhisperJNI} instance used to transcribe
+	 * @param maxEntries maximum number of results kept in memory
+	 */
+	public TranscriptionCache(WhisperJNI whisper, int maxEntries)
+	{
+		this(whisper, maxEntries, (DiskTier) null);
+	}
+	
+	/**
+	 * Creates a cache with a memory-mapped disk tier. Results already in the file are available at once.
+	 *
+	 * @param whisper    the {@link WhisperJNI} instance used to transcribe
+	 * @param maxEntries maximum number of results kept in memory
+	 * @param diskFile   the cache file, created if missing
+	 * @param diskBytes  size of the cache file
+	 * @throws IOException if the file can't be mapped
+	 */
+	public TranscriptionCache(WhisperJNI whisper, int maxEntries, Path diskFile, int diskBytes) throws IOException
+	{
+		this(whisper, maxEntries, new DiskTier(diskFile, diskBytes));
+	}
+	
+	private TranscriptionCache(WhisperJNI whisper, int maxEntries, DiskTier disk)
+	{
+		this.whisper = whisper;
+		this.memory = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, WhisperSegment[]> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+		this.disk = disk;
+	}
+	
+	/**
+	 * Transcribes the samples, or returns the cached result of an identical transcription.
+	 *
+	 * @param context    the {@link WhisperContext} used to transcribe.
+	 * @param state      the {@link WhisperState} used to transcribe, or <code>null</code> to use the default state of the context.
+	 * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param numSamples the number of audio samples provided.
+	 * @return the transcribed segments
+	 * @throws IOException if the transcription fails
+	 */
+	public WhisperSegment[] transcribe(WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples, int numSamples)
+			throws IOException
+	{
+		if(context.modelKey == null)
+		{
+			misses.increment();
+			return run(context, state, params, samples, numSamples);
+		}
+		Key key = key(context, params, samples, numSamples);
+		WhisperSegment[] cached = lookup(key);
+		if(cached != null)
+		{
+			return cached.clone();
+		}
+		CompletableFuture<WhisperSegment[]> own = new CompletableFuture<>();
+		CompletableFuture<WhisperSegment[]> running = inFlight.putIfAbsent(key, own);
+		if(running != null)
+		{
+			coalesced.increment();
+			return await(running).clone();
+		}
+		try
+		{
+			// The previous leader may have stored the result between the lookup and the registration
+			synchronized(memory)
+			{
+				cached = memory.get(key);
+			}
+			if(cached != null)
+			{
+				hits.increment();
+			}
+			else
+			{
+				misses.increment();
+				cached = run(context, state, params, samples, numSamples);
+				synchronized(memory)
+				{
+					memory.put(key, cached);
+				}
+				if(disk != null)
+				{
+					disk.put(key, cached);
+				}
+			}
+			own.complete(cached);
+			return cached.clone();
+		} catch(IOException | RuntimeException e)
+		{
+			own.completeExceptionally(e);
+			throw e;
+		} finally
+		{
+			inFlight.remove(key, own);
+		}
+	}
+	
+	private WhisperSegment[] run(WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples, int numSamples)
+			throws IOException
+	{
+		int result = state == null ? whisper.full(context, params, samples, numSamples)
+				: whisper.fullWithState(context, state, params, samples, numSamples);
+		if(result != 0)
+		{
+			throw new IOException("Transcription failed with code " + result);
+		}
+		return state == null ? whisper.getSegments(context) : whisper.getSegmentsFromState(state);
+	}
+	
+	private WhisperSegment[] lookup(Key key)
+	{
+		WhisperSegment[] cached;
+		synchronized(memory)
+		{
+			cached = memory.get(key);
+		}
+		if(cached != null)
+		{
+			hits.increment();
+			return cached;
+		}
+		if(disk != null && (cached = disk.get(key)) != null)
+		{
+			diskHits.increment();
+			synchronized(memory)
+			{
+				memory.put(key, cached);
+			}
+		}
+		return cached;
+	}
+	
+	private static WhisperSegment[] await(CompletableFuture<WhisperSegment[]> running) throws IOException
+	{
+		try
+		{
+			return running.get();
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for an identical transcription", e);
+		} catch(ExecutionException e)
+		{
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Gets the number of requests served from memory.
+	 *
+	 * @return memory hits
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+	
+	/**
+	 * Gets the number of requests served from the disk tier.
+	 *
+	 * @return disk hits
+	 */
+	public long getDiskHits()
+	{
+		return diskHits.sum();
+	}
+	
+	/**
+	 * Gets the number of requests that waited for an identical transcription already running.
+	 *
+	 * @return coalesced requests
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.sum();
+	}
+	
+	/**
+	 * Gets the number of requests that ran a transcription.
+	 *
+	 * @return misses
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+	
+	/**
+	 * Gets the share of requests that didn't run a transcription.
+	 *
+	 * @return hit rate between 0 and 1, 0 before the first request
+	 */
+	public double getHitRate()
+	{
+		long served = hits.sum() + diskHits.sum() + coalesced.sum();
+		long total = served + misses.sum();
+		return total == 0 ? 0 : served / (double) total;
+	}
+	
+	/**
+	 * Gets the number of results kept in memory.
+	 *
+	 * @return memory entries
+	 */
+	public int size()
+	{
+		synchronized(memory)
+		{
+			return memory.size();
+		}
+	}
+	
+	/**
+	 * Flushes the disk tier, if any.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if(disk != null)
+		{
+			disk.close();
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "TranscriptionCache[hits=%d, diskHits=%d, coalesced=%d, misses=%d, hitRate=%.3f]", getHits(), getDiskHits(),
+				getCoalesced(), getMisses(), getHitRate());
+	}
+	
+	static Key key(WhisperContext context, WhisperFullParams params, float[] samples, int numSamples)
+	{
+		Hasher hasher = new Hasher();
+		// Two samples per step, the hash runs at memory speed
+		int i = 0;
+		for(; i + 1 < numSamples; i += 2)
+		{
+			hasher.update((long) Float.floatToRawIntBits(samples[i]) << 32 | (Float.floatToRawIntBits(samples[i + 1]) & 0xFFFFFFFFL));
+		}
+		if(i < numSamples)
+		{
+			hasher.update(Float.floatToRawIntBits(samples[i]));
+		}
+		hasher.update(numSamples);
+		hasher.update(context.modelKey);
+		hasher.update(params.getStrategy());
+		hasher.update(params.audioCtx);
+		hasher.update(params.nMaxTextCtx);
+		hasher.update(params.offsetMs);
+		hasher.update(params.durationMs);
+		hasher.update(params.translate ? 1 : 0);
+		hasher.update(params.noTimestamps ? 1 : 0);
+		hasher.update(params.detectLanguage ? 1 : 0);
+		hasher.update(params.language);
+		hasher.update(params.initialPrompt);
+		hasher.update(params.noContext ? 1 : 0);
+		hasher.update(params.singleSegment ? 1 : 0);
+		hasher.update(params.suppressBlank ? 1 : 0);
+		hasher.update(params.suppressNonSpeechTokens ? 1 : 0);
+		hasher.update(Float.floatToIntBits(params.temperature));
+		hasher.update(Float.floatToIntBits(params.maxInitialTs));
+		hasher.update(Float.floatToIntBits(params.lengthPenalty));
+		hasher.update(Float.floatToIntBits(params.temperatureInc));
+		hasher.update(Float.floatToIntBits(params.entropyThold));
+		hasher.update(Float.floatToIntBits(params.logprobThold));
+		hasher.update(Float.floatToIntBits(params.noSpeechThold));
+		hasher.update(params.greedyBestOf);
+		hasher.update(params.beamSearchBeamSize);
+		hasher.update(Float.floatToIntBits(params.beamSearchPatience));
+		hasher.update(params.grammar == null ? null : params.grammar.getText());
+		hasher.update(Float.floatToIntBits(params.grammarPenalty));
+		hasher.update(params.vad ? 1 : 0);
+		hasher.update(params.vad_model_path);
+		hasher.update(Float.floatToIntBits(params.vadParams.threshold));
+		hasher.update(params.vadParams.min_speech_duration_ms);
+		hasher.update(params.vadParams.min_silence_duration_ms);
+		hasher.update(Float.floatToIntBits(params.vadParams.max_speech_duration_s));
+		hasher.update(params.vadParams.speech_pad_ms);
+		hasher.update(Float.floatToIntBits(params.vadParams.samples_overlap));
+		return hasher.key();
+	}
+	
+	record Key(long high, long low) {
+	}
+	
+	/**
+	 * Two independent 64 bits multiply-rotate lanes with a murmur3 finalizer.
+	 */
+	private static final class Hasher {
+		
+		private long h1 = 0x9E3779B97F4A7C15L;
+		private long h2 = 0xC2B2AE3D27D4EB4FL;
+		private long length;
+		
+		void update(long value)
+		{
+			h1 = Long.rotateLeft(h1 ^ value * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+			h2 = Long.rotateLeft(h2 + value * 0x52DCE729L, 27) * 0x38495AB5L + h1;
+			length++;
+		}
+		
+		void update(String value)
+		{
+			if(value == null)
+			{
+				update(-1);
+				return;
+			}
+			update(value.length());
+			value.chars().forEach(this::update);
+		}
+		
+		Key key()
+		{
+			h1 ^= length;
+			h2 ^= length;
+			h1 += h2;
+			h2 += h1;
+			h1 = mix(h1);
+			h2 = mix(h2);
+			h1 += h2;
+			h2 += h1;
+			return new Key(h1, h2);
+		}
+		
+		private static long mix(long k)
+		{
+			k ^= k >>> 33;
+			k *= 0xFF51AFD7ED558CCDL;
+			k ^= k >>> 33;
+			k *= 0xC4CEB9FE1A85EC53L;
+			k ^= k >>> 33;
+			return k;
+		}
+	}
+	
+	/**
+	 * Append only record log in a memory-mapped file, indexed in memory. A record is the key, the payload length and the payload; a zero length
+	 * marks the end. The length of a new record is zeroed before its key and payload are written and set last, so a crash mid write loses that
+	 * record, and once the file wrapped the older records behind it, but never indexes a partial record.
+	 */
+	private static final class DiskTier {
+		
+		private static final int MAGIC = 0x57434331; // WCC1
+		private static final int DATA_START = 8;
+		private static final int HEADER = 20;
+		
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private final Map<Key, Integer> index = new HashMap<>();
+		private int position = DATA_START;
+		
+		DiskTier(Path file, int bytes) throws IOException
+		{
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+			if(buffer.getInt(0) != MAGIC)
+			{
+				buffer.putInt(DATA_START + 16, 0);
+				buffer.putInt(0, MAGIC);
+				return;
+			}
+			while(position + HEADER <= bytes)
+			{
+				int length = buffer.getInt(position + 16);
+				if(length <= 0 || position + HEADER + length > bytes)
+				{
+					break;
+				}
+				index.put(new Key(buffer.getLong(position), buffer.getLong(position + 8)), position);
+				position += HEADER + length;
+			}
+		}
+		
+		synchronized WhisperSegment[] get(Key key)
+		{
+			Integer offset = index.get(key);
+			if(offset == null)
+			{
+				return null;
+			}
+			ByteBuffer record = buffer.slice(offset + HEADER, buffer.getInt(offset + 16));
+			WhisperSegment[] segments = new WhisperSegment[record.getInt()];
+			for(int i = 0; i < segments.length; i++)
+			{
+				long t0 = record.getLong();
+				long t1 = record.getLong();
+				byte[] text = new byte[record.getInt()];
+				record.get(text);
+				segments[i] = new WhisperSegment(t0, t1, new String(text, StandardCharsets.UTF_8));
+			}
+			return segments;
+		}
+		
+		synchronized void put(Key key, WhisperSegment[] segments)
+		{
+			if(index.containsKey(key))
+			{
+				return;
+			}
+			byte[][] texts = new byte[segments.length][];
+			int length = 4;
+			for(int i = 0; i < segments.length; i++)
+			{
+				texts[i] = segments[i].text.getBytes(StandardCharsets.UTF_8);
+				length += 20 + texts[i].length;
+			}
+			int capacity = buffer.capacity();
+			if(DATA_START + HEADER + length > capacity)
+			{
+				// Larger than the whole file
+				return;
+			}
+			if(position + HEADER + length > capacity)
+			{
+				// Full: start over, records written from now on overwrite the old ones
+				index.clear();
+				position = DATA_START;
+			}
+			int end = position + HEADER + length;
+			// After a wrap the length still belongs to the old record written here
+			buffer.putInt(position + 16, 0);
+			if(end + HEADER <= capacity)
+			{
+				buffer.putInt(end + 16, 0);
+			}
+			buffer.putLong(position, key.high());
+			buffer.putLong(position + 8, key.low());
+			ByteBuffer record = buffer.slice(position + HEADER, length);
+			record.putInt(segments.length);
+			for(int i = 0; i < segments.length; i++)
+			{
+				record.putLong(segments[i].t0);
+				record.putLong(segments[i].t1);
+				record.putInt(texts[i].length);
+				record.put(texts[i]);
+			}
+			buffer.putInt(position + 16, length);
+			index.put(key, position);
+			position = end;
+		}
+		
+		synchronized void close() throws IOException
+		{
+			buffer.force();
+			channel.close();
+		}
+	}
+}
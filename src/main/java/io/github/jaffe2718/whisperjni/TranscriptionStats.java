@@ -0,0 +1,86 @@
+package io.github.jaffe2718.whisperjni;
+
+/**
+ * Timings of a single transcription call, see {@link WhisperJNI#getStats(WhisperContext)} and {@link WhisperJNI#getStats(WhisperState)}.
+ *
+ * <p>
+ * The wall times are measured by the JNI wrapper around each transcription window, so they are available for every call. The per run
+ * averages are the ones printed by <code>whisper_print_timings</code>: they accumulate over all the calls made with the context since
+ * <code>whisper_reset_timings</code>, not only this one, and whisper.cpp only exposes them for the default state of a context, so they are
+ * {@link Float#NaN} for calls made with a {@link WhisperState}.
+ * </p>
+ */
+public class TranscriptionStats {
+	
+	/** Number of audio samples transcribed */
+	public final int samples;
+	
+	/** Wall time of the whole call in milliseconds */
+	public final float totalMs;
+	/** Time spent before the first window, mostly computing the mel spectrogram */
+	public final float melMs;
+	/** Time spent running the encoder and processing the prompt, summed over windows */
+	public final float encodeMs;
+	/** Time spent decoding, including sampling and temperature fallbacks, summed over windows */
+	public final float decodeMs;
+	
+	/** Number of 30 seconds windows processed */
+	public final int windows;
+	/** Number of times decoding was retried with a higher temperature */
+	public final int fallbacks;
+	
+	/** Average time of a sampling step reported by whisper.cpp, over the calls of the context */
+	public final float avgSampleMs;
+	/** Average time of an encoder run reported by whisper.cpp, over the calls of the context */
+	public final float avgEncodeMs;
+	/** Average time of a decoder step reported by whisper.cpp, over the calls of the context */
+	public final float avgDecodeMs;
+	/** Average time of a batched decoder step reported by whisper.cpp, over the calls of the context */
+	public final float avgBatchdMs;
+	/** Average time of a prompt pass reported by whisper.cpp, over the calls of the context */
+	public final float avgPromptMs;
+	
+	TranscriptionStats(int samples, float totalMs, float melMs, float encodeMs, float decodeMs, int windows, int fallbacks, float avgSampleMs,
+			float avgEncodeMs, float avgDecodeMs, float avgBatchdMs, float avgPromptMs)
+	{
+		this.samples = samples;
+		this.totalMs = totalMs;
+		this.melMs = melMs;
+		this.encodeMs = encodeMs;
+		this.decodeMs = decodeMs;
+		this.windows = windows;
+		this.fallbacks = fallbacks;
+		this.avgSampleMs = avgSampleMs;
+		this.avgEncodeMs = avgEncodeMs;
+		this.avgDecodeMs = avgDecodeMs;
+		this.avgBatchdMs = avgBatchdMs;
+		this.avgPromptMs = avgPromptMs;
+	}
+	
+	/**
+	 * Gets the duration of the transcribed audio.
+	 *
+	 * @return audio duration in milliseconds
+	 */
+	public float audioMs()
+	{
+		return samples * 1000f / WhisperJNI.SAMPLE_RATE;
+	}
+	
+	/**
+	 * Gets the real-time factor of the call, the processing time divided by the audio duration. Values below 1 are faster than real time.
+	 *
+	 * @return real-time factor, or {@link Float#NaN} if no audio was transcribed
+	 */
+	public float realTimeFactor()
+	{
+		return samples == 0 ? Float.NaN : totalMs / audioMs();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format("TranscriptionStats[audio=%.0fms, total=%.1fms, mel=%.1fms, encode=%.1fms, decode=%.1fms, windows=%d, fallbacks=%d, rtf=%.3f]",
+				audioMs(), totalMs, melMs, encodeMs, decodeMs, windows, fallbacks, realTimeFactor());
+	}
+}
@@ -0,0 +1,101 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Text produced by whisper.cpp, kept as the raw UTF-8 bytes.
+ *
+ * <p>
+ * Consumers working on UTF-8 can use {@link #asByteBuffer()} or {@link #writeTo(OutputStream)} without any conversion, the {@link String} is
+ * only decoded by {@link #toString()}, once. The bytes are exactly the ones whisper.cpp produced: a token may end in the middle of a multi-byte
+ * character, which the {@link String} shows as a replacement character.
+ * </p>
+ */
+public final class Utf8Text {
+	
+	private final byte[] bytes;
+	private String text;
+	
+	/**
+	 * Wraps bytes without copying them, they must not be modified afterwards.
+	 */
+	Utf8Text(byte[] bytes)
+	{
+		this.bytes = bytes;
+	}
+	
+	/**
+	 * Gets the length of the text in bytes.
+	 *
+	 * @return number of UTF-8 bytes
+	 */
+	public int length()
+	{
+		return bytes.length;
+	}
+	
+	/**
+	 * Gets a read-only view of the bytes.
+	 *
+	 * @return a {@link ByteBuffer} positioned at the first byte
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Gets a copy of the bytes.
+	 *
+	 * @return the UTF-8 bytes
+	 */
+	public byte[] toByteArray()
+	{
+		return bytes.clone();
+	}
+	
+	/**
+	 * Writes the bytes to a stream.
+	 *
+	 * @param out the {@link OutputStream}
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(bytes);
+	}
+	
+	/**
+	 * Decodes the text, on the first call only.
+	 *
+	 * @return the text
+	 */
+	@Override
+	public String toString()
+	{
+		String decoded = text;
+		if(decoded == null)
+		{
+			// Racing threads would decode equal strings, so there is no need to synchronize
+			decoded = new String(bytes, StandardCharsets.UTF_8);
+			text = decoded;
+		}
+		return decoded;
+	}
+	
+	@Override
+	public boolean equals(Object other)
+	{
+		return other instanceof Utf8Text utf8 && Arrays.equals(bytes, utf8.bytes);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(bytes);
+	}
+}
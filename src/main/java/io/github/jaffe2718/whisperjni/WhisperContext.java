@@ -10,6 +10,17 @@ package io.github.jaffe2718.whisperjni;
 public class WhisperContext extends WhisperJNI.WhisperJNIPointer {
 	
 	private final WhisperJNI whisper;
+	/**
+	 * Lazily built token table, see {@link WhisperJNI#getVocabulary(WhisperContext)}
+	 */
+	volatile WhisperVocabulary vocabulary;
+	// Model file name, used to identify the context in flight recorder events
+	String modelId;
+	// Absolute path, size and modification time of the model file, null for models loaded from a stream
+	String modelKey;
+	// Hyperparameters read from the loaded model, used to account the memory of the context and its states
+	ModelInfo modelInfo;
+	volatile TranscriptionStats stats;
 	
 	/**
 	 * Internal context constructor
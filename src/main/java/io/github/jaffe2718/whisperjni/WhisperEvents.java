@@ -0,0 +1,146 @@
+package io.github.jaffe2718.whisperjni;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted by the {@link WhisperJNI} entry points.
+ *
+ * <p>
+ * All the events are disabled by default, enable them in a JFR configuration or on the command line, e.g.
+ * <code>-XX:StartFlightRecording:+io.github.jaffe2718.whisperjni.Full#enabled=true</code>. Events are only populated when
+ * {@link Event#shouldCommit()} is true, so a disabled event costs an allocation the JIT removes and a flag check.
+ * </p>
+ */
+final class WhisperEvents {
+	
+	private static final String CATEGORY = "Whisper";
+	
+	private WhisperEvents()
+	{
+	}
+	
+	private static String strategyName(int strategy)
+	{
+		return strategy == WhisperSamplingStrategy.GREEDY ? "greedy" : "beam search";
+	}
+	
+	@Name("io.github.jaffe2718.whisperjni.Full")
+	@Label("Whisper Transcription")
+	@Description("A full transcription, with or without a state")
+	@Category(CATEGORY)
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Full extends Event {
+		
+		@Label("Model")
+		String model;
+		@Label("State")
+		boolean withState;
+		@Label("Samples")
+		int samples;
+		@Label("Threads")
+		int threads;
+		@Label("Strategy")
+		String strategy;
+		@Label("Result Code")
+		int result;
+		
+		void set(WhisperContext context, WhisperFullParams params, int samples, int threads, int result)
+		{
+			this.model = context.modelId;
+			this.samples = samples;
+			this.threads = threads;
+			this.strategy = strategyName(params.getStrategy());
+			this.result = result;
+		}
+	}
+	
+	@Name("io.github.jaffe2718.whisperjni.VAD")
+	@Label("Whisper VAD Transcription")
+	@Description("A transcription of the speech segments found by voice activity detection")
+	@Category(CATEGORY)
+	@Enabled(false)
+	@StackTrace(false)
+	static final class VAD extends Event {
+		
+		@Label("Model")
+		String model;
+		@Label("Samples")
+		int samples;
+		@Label("Threads")
+		int threads;
+		@Label("VAD Threads")
+		int vadThreads;
+		@Label("Strategy")
+		String strategy;
+		@Label("Result Code")
+		int result;
+		
+		void set(WhisperContext context, WhisperFullParams params, WhisperVADContextParams vadParams, int samples, int threads, int result)
+		{
+			this.model = context.modelId;
+			this.samples = samples;
+			this.threads = threads;
+			this.vadThreads = vadParams.n_threads;
+			this.strategy = strategyName(params.getStrategy());
+			this.result = result;
+		}
+	}
+	
+	@Name("io.github.jaffe2718.whisperjni.Init")
+	@Label("Whisper Model Load")
+	@Description("Creation of a context from a model")
+	@Category(CATEGORY)
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Init extends Event {
+		
+		@Label("Model")
+		String model;
+		@Label("State")
+		boolean withState;
+		@Label("GPU")
+		boolean gpu;
+		@Label("Native Memory")
+		@DataAmount
+		long nativeBytes;
+		@Label("Result Code")
+		int result;
+	}
+	
+	@Name("io.github.jaffe2718.whisperjni.InitState")
+	@Label("Whisper State Creation")
+	@Category(CATEGORY)
+	@Enabled(false)
+	@StackTrace(false)
+	static final class InitState extends Event {
+		
+		@Label("Model")
+		String model;
+		@Label("Native Memory")
+		@DataAmount
+		long nativeBytes;
+		@Label("Result Code")
+		int result;
+	}
+	
+	@Name("io.github.jaffe2718.whisperjni.ParseGrammar")
+	@Label("Whisper Grammar Parsing")
+	@Category(CATEGORY)
+	@Enabled(false)
+	@StackTrace(false)
+	static final class ParseGrammar extends Event {
+		
+		@Label("Grammar Length")
+		int length;
+		@Label("Result Code")
+		int result;
+	}
+}
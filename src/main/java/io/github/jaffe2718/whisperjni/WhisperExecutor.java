@@ -0,0 +1,195 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link WhisperExecutor} class runs the native calls of a {@link WhisperJNI} instance on a bounded pool of platform threads.
+ *
+ * <p>
+ * A virtual thread that enters a native method stays mounted on its carrier thread until the method returns, which for a transcription means
+ * seconds during which the carrier can't run other virtual threads. Callers of this class hand the work to the pool and wait on a
+ * {@link CompletableFuture}, so a virtual caller unmounts while the transcription runs. Platform callers simply block.
+ * </p>
+ *
+ * <p>
+ * The pool size bounds the number of concurrent native calls, combine it with a {@link ThreadBudget} to also bound the whisper.cpp threads.
+ * </p>
+ */
+public class WhisperExecutor implements AutoCloseable {
+	
+	private static final AtomicInteger POOL_ID = new AtomicInteger();
+	
+	private final WhisperJNI whisper;
+	private final ThreadPoolExecutor executor;
+	
+	/**
+	 * Creates an executor with an unbounded queue.
+	 *
+	 * @param whisper the {@link WhisperJNI} instance to call
+	 * @param threads number of platform threads, the maximum number of concurrent native calls
+	 */
+	public WhisperExecutor(WhisperJNI whisper, int threads)
+	{
+		this(whisper, threads, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Creates an executor.
+	 *
+	 * @param whisper       the {@link WhisperJNI} instance to call
+	 * @param threads       number of platform threads, the maximum number of concurrent native calls
+	 * @param queueCapacity maximum number of calls waiting for a thread, further submissions are rejected
+	 */
+	public WhisperExecutor(WhisperJNI whisper, int threads, int queueCapacity)
+	{
+		this.whisper = whisper;
+		String prefix = "whisper-inference-" + POOL_ID.incrementAndGet() + "-";
+		AtomicInteger threadId = new AtomicInteger();
+		ThreadFactory factory = runnable ->
+		{
+			// Created through the Thread constructor, so these are platform threads even when the caller is virtual
+			Thread thread = new Thread(runnable, prefix + threadId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				queueCapacity == Integer.MAX_VALUE ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueCapacity), factory,
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+	
+	/**
+	 * Gets the {@link WhisperJNI} instance used by this executor.
+	 *
+	 * @return the {@link WhisperJNI} instance
+	 */
+	public WhisperJNI getWhisper()
+	{
+		return whisper;
+	}
+	
+	/**
+	 * Runs a task on the pool.
+	 *
+	 * @param task the task, usually calling {@link WhisperJNI} methods
+	 * @param <T>  result type
+	 * @return a {@link CompletableFuture} completed with the task result
+	 * @throws RejectedExecutionException if the queue is full or the executor is closed
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task)
+	{
+		CompletableFuture<T> future = new CompletableFuture<>();
+		executor.execute(() ->
+		{
+			try
+			{
+				future.complete(task.call());
+			} catch(Throwable e)
+			{
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Runs a task on the pool and waits for its result. The wait parks the calling thread without pinning a virtual thread.
+	 *
+	 * @param task the task, usually calling {@link WhisperJNI} methods
+	 * @param <T>  result type
+	 * @return the task result
+	 * @throws InterruptedException if the calling thread is interrupted while waiting, the task keeps running
+	 * @throws CompletionException  wrapping the exception of the task, unchecked exceptions are thrown as is
+	 */
+	public <T> T call(Callable<T> task) throws InterruptedException
+	{
+		try
+		{
+			return submit(task).get();
+		} catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException runtime)
+			{
+				throw runtime;
+			}
+			if(cause instanceof Error error)
+			{
+				throw error;
+			}
+			throw new CompletionException(cause);
+		}
+	}
+	
+	/**
+	 * Runs {@link WhisperJNI#full(WhisperContext, WhisperFullParams, float[], int)} on the pool and waits for it.
+	 *
+	 * @param context    the {@link WhisperContext} used to transcribe.
+	 * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param numSamples the number of audio samples provided.
+	 * @return a result code, values other than 0 indicates problems.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public int full(WhisperContext context, WhisperFullParams params, float[] samples, int numSamples) throws InterruptedException
+	{
+		return call(() -> whisper.full(context, params, samples, numSamples));
+	}
+	
+	/**
+	 * Runs {@link WhisperJNI#fullWithState(WhisperContext, WhisperState, WhisperFullParams, float[], int)} on the pool and waits for it.
+	 *
+	 * @param context    the {@link WhisperContext} used to transcribe.
+	 * @param state      the {@link WhisperState} used to transcribe.
+	 * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param numSamples the number of audio samples provided.
+	 * @return a result code, values other than 0 indicates problems.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public int fullWithState(WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples, int numSamples)
+			throws InterruptedException
+	{
+		return call(() -> whisper.fullWithState(context, state, params, samples, numSamples));
+	}
+	
+	/**
+	 * Runs {@link WhisperJNI#initState(WhisperContext)} on the pool and waits for it.
+	 *
+	 * @param context the {@link WhisperContext} of this state.
+	 * @return A new {@link WhisperState}.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public WhisperState initState(WhisperContext context) throws InterruptedException
+	{
+		return call(() -> whisper.initState(context));
+	}
+	
+	/**
+	 * Stops accepting tasks and waits for the queued ones to finish.
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+		try
+		{
+			while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+			{
+				// native calls can't be interrupted, keep waiting
+			}
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -13,7 +13,8 @@ public class WhisperFullParams {
 	private int strategy;
 	
 	/**
-	 * Number of thread, 0 for max cores
+	 * Number of threads, 0 for the whisper.cpp default or the share given by the {@link ThreadBudget} set with
+	 * {@link WhisperJNI#setThreadBudget(ThreadBudget)}
 	 */
 	public int nThreads = 0;
 	/**
@@ -159,6 +160,16 @@ public class WhisperFullParams {
 		this(WhisperSamplingStrategy.BEAM_SEARCH);
 	}
 	
+	/**
+	 * Gets the {@link WhisperSamplingStrategy} of these params.
+	 *
+	 * @return the sampling strategy
+	 */
+	int getStrategy()
+	{
+		return strategy;
+	}
+	
 	/**
 	 * VAD params don't appear to work while using {@link WhisperState}. Stick with full!
 	 */
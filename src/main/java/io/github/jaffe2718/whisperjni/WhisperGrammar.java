@@ -4,13 +4,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * The {@link WhisperGrammar} class represents a native whisper.cpp parsed grammar.
@@ -43,6 +42,11 @@ public class WhisperGrammar extends WhisperJNI.WhisperJNIPointer {
 		whisper.free(this);
 	}
 	
+	String getText()
+	{
+		return grammarText;
+	}
+	
 	/**
 	 * Java implementation of a GBNF grammar validator. Asserts the provided grammar is valid to use with whisper.cpp. Meaning it must contain a root expression
 	 * with termination which sub-expressions can be resolved.
@@ -63,6 +67,13 @@ public class WhisperGrammar extends WhisperJNI.WhisperJNIPointer {
 	 * Java implementation of a whisper.cpp grammar validator. Asserts the provided grammar is valid to use with whisper.cpp. Meaning it must contain a root
 	 * expression with termination which subexpressions can be resolved.
 	 *
+	 * <p>
+	 * The grammar is scanned once with the same rules as the whisper.cpp grammar parser, so syntax errors are reported at the same position
+	 * ({@link ParseException#getErrorOffset()} is a character offset in the grammar text). The rules are then checked as a dependency graph: every
+	 * referenced rule must be defined, no rule may reach itself without consuming input (left recursion) and every alternative of the root rule must
+	 * end with a text ending in a dot. The whole validation runs in linear time on the grammar size.
+	 * </p>
+	 *
 	 * @param grammarText GBNF grammar text.
 	 * @throws ParseException if grammar is invalid.
 	 */
@@ -72,285 +83,521 @@ public class WhisperGrammar extends WhisperJNI.WhisperJNIPointer {
 		{
 			throw new ParseException("Empty grammar.", 0);
 		}
-		
-		Map<String, String> expressions = parseExpressionsText(grammarText);
-		var rootExpression = expressions.get("root");
-		
-		if(rootExpression == null)
-		{
-			throw new IllegalArgumentException("Missing root expression.");
-		}
-		assertValidExpression(expressions, rootExpression, new ArrayList<>(), new HashSet<>(), true);
+		new GrammarValidator(grammarText).validate();
 	}
 	
 	/**
-	 * Parse and map expressions text by name.
+	 * Single pass GBNF scanner and rule graph checks backing {@link #assertValidGrammar(String)}.
 	 *
-	 * @param gbnfGrammar A GBNF grammar.
-	 * @return map of expressions text by name.
-	 * @throws ParseException if unable to parse unique expressions.
+	 * <p>
+	 * The scanning methods mirror the ones in whisper.cpp's <code>examples/grammar-parser.cpp</code>. Groups are turned into synthesized rules, like the
+	 * native parser does, so the graph checks only deal with rules, alternatives and elements.
+	 * </p>
 	 */
-	private static Map<String, String> parseExpressionsText(String gbnfGrammar) throws ParseException
-	{
-		String currentExpressionName = "";
-		StringBuilder currentExpression = new StringBuilder();
-		HashMap<String, String> expressions = new HashMap<>();
-		String assignSign = "::=";
-		String[] split = gbnfGrammar.split("\n");
-		for(int i = 0; i < split.length; i++)
+	private static class GrammarValidator {
+		
+		private static final int LITERAL = 0;
+		private static final int CHAR_CLASS = 1;
+		private static final int RULE_REF = 2;
+		
+		private final String src;
+		private final List<Rule> rules = new ArrayList<>();
+		private final Map<String, Integer> symbolIds = new HashMap<>();
+		
+		GrammarValidator(String src)
 		{
-			String line = split[i];
-			boolean isLast = i == split.length - 1;
-			if(line.isBlank())
-			{
-				// Skip empty lines
-				continue;
-			}
-			if(line.trim().startsWith("#"))
+			this.src = src;
+		}
+		
+		void validate() throws ParseException
+		{
+			int pos = parseSpace(0, true);
+			while(pos < src.length())
 			{
-				// Skip comments
-				continue;
+				pos = parseRule(pos);
 			}
-			boolean start = line.contains(assignSign);
-			if(!start && currentExpressionName.isEmpty())
+			Integer root = symbolIds.get("root");
+			if(root == null || rules.get(root).definedAt < 0)
 			{
-				throw new ParseException("Grammar should start with an expression", 0);
+				throw new ParseException("Missing root expression.", 0);
 			}
-			if(start)
+			assertDefined();
+			boolean[] nullable = findNullable();
+			assertNoLeftRecursion(nullable);
+			assertTerminates(root);
+		}
+		
+		// Scanning, see grammar-parser.cpp
+		
+		private char at(int pos)
+		{
+			return pos < src.length() ? src.charAt(pos) : '\0';
+		}
+		
+		private static boolean isWordChar(char c)
+		{
+			return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || c == '-' || ('0' <= c && c <= '9');
+		}
+		
+		private int parseSpace(int pos, boolean newlineOk)
+		{
+			char c;
+			while((c = at(pos)) == ' ' || c == '\t' || c == '#' || (newlineOk && (c == '\r' || c == '\n')))
 			{
-				if(!currentExpressionName.isBlank())
-				{
-					expressions.put(currentExpressionName, currentExpression.toString());
-				}
-				String[] parts = line.split(assignSign);
-				currentExpressionName = parts[0].trim();
-				if(currentExpressionName.isEmpty())
+				if(c == '#')
 				{
-					throw new ParseException("Missed expression name: " + line, 0);
+					while(pos < src.length() && at(pos) != '\r' && at(pos) != '\n')
+					{
+						pos++;
+					}
 				}
-				currentExpression = new StringBuilder(parts[1].trim());
-				if(expressions.containsKey(currentExpressionName))
+				else
 				{
-					throw new ParseException("Duplicated expression: " + currentExpressionName, 0);
+					pos++;
 				}
-				continue;
-			}
-			currentExpression.append(" ").append(line.trim());
-			if(isLast)
-			{
-				String expression = currentExpression.toString();
-				if(expression.isBlank())
-				{
-					throw new ParseException("Missed expression value for: " + currentExpressionName, 0);
-				}
-				expressions.put(currentExpressionName, expression);
 			}
+			return pos;
 		}
-		if(!expressions.containsKey(currentExpressionName))
+		
+		private int parseName(int pos) throws ParseException
 		{
-			String expression = currentExpression.toString();
-			if(expression.isBlank())
+			int end = pos;
+			while(isWordChar(at(end)))
+			{
+				end++;
+			}
+			if(end == pos)
 			{
-				throw new ParseException("Missed expression value for: " + currentExpressionName, 0);
+				throw error("Expecting name", pos);
 			}
-			expressions.put(currentExpressionName, expression);
+			return end;
 		}
-		return expressions;
-	}
-	
-	/**
-	 * Asserts that the provided text is a correct GBNF expression that can be resolved with valid subexpressions. This method calls itself recursively in order to
-	 * detect missing or cyclic subexpressions.
-	 *
-	 * @param expressions       map of available expressions.
-	 * @param expressionText    GBNF expression.
-	 * @param parentExpressions List to prevent cyclic use of expressions.
-	 * @param validExpressions  Store expressions already validated.
-	 * @param shouldTerminate   Validate expression ends with termination char.
-	 * @throws ParseException if expression is invalid.
-	 */
-	private static void assertValidExpression(Map<String, String> expressions, String expressionText, ArrayList<String> parentExpressions, HashSet<String> validExpressions, boolean shouldTerminate) throws ParseException
-	{
-		// System.err.println("SEGMENT: " + expressionText);
-		boolean onText = false;
-		boolean onRegex = false;
-		int startRegexIndex = 0;
-		int onGroup = 0;
-		StringBuilder groupExpression = new StringBuilder();
-		String[] tokens = expressionText.trim().split("\\s+");
-		// check cyclic recursion
-		if(tokens.length == 1 && expressions.containsKey(tokens[0]))
+		
+		private int parseRule(int pos) throws ParseException
 		{
-			if(parentExpressions.contains(tokens[0]))
+			int nameEnd = parseName(pos);
+			String name = src.substring(pos, nameEnd);
+			int ruleId = getSymbolId(name, pos);
+			Rule rule = rules.get(ruleId);
+			if(rule.definedAt >= 0)
 			{
-				throw new ParseException("Cyclic resolution of expression: " + tokens[0], 0);
+				throw error("Duplicated expression: " + name, pos);
 			}
-			parentExpressions = new ArrayList<>(parentExpressions);
-			parentExpressions.add(tokens[0]);
+			rule.definedAt = pos;
+			int next = parseSpace(nameEnd, false);
+			if(!src.startsWith("::=", next))
+			{
+				throw error("Expecting ::=", next);
+			}
+			next = parseAlternates(parseSpace(next + 3, true), name, rule, false);
+			if(at(next) == '\r')
+			{
+				next += at(next + 1) == '\n' ? 2 : 1;
+			}
+			else if(at(next) == '\n')
+			{
+				next++;
+			}
+			else if(next < src.length())
+			{
+				throw error("Expecting newline or end", next);
+			}
+			return parseSpace(next, true);
 		}
-		for(int i = 0; i < tokens.length; i++)
+		
+		private int parseAlternates(int pos, String ruleName, Rule rule, boolean nested) throws ParseException
 		{
-			var token = tokens[i];
-			var isLast = i == tokens.length - 1;
-			if(token.isBlank())
+			List<Element> alternative = new ArrayList<>();
+			pos = parseSequence(pos, ruleName, alternative, nested);
+			rule.alternatives.add(alternative);
+			while(at(pos) == '|')
 			{
-				continue;
+				alternative = new ArrayList<>();
+				pos = parseSequence(parseSpace(pos + 1, true), ruleName, alternative, nested);
+				rule.alternatives.add(alternative);
 			}
-			if(!onText && !onRegex)
+			return pos;
+		}
+		
+		private int parseSequence(int pos, String ruleName, List<Element> out, boolean nested) throws ParseException
+		{
+			while(pos < src.length())
 			{
-				boolean isGroupStart = token.startsWith("(");
-				boolean isOptionalGroupEnd = token.endsWith(")?");
-				boolean isGroupEnd = token.endsWith(")") || isOptionalGroupEnd;
-				if(isGroupStart)
+				char c = at(pos);
+				if(c == '"')
 				{
-					// System.err.println("CHECK GROUP START - " + token);
-					int index = 0;
-					while(token.substring(index).startsWith("("))
+					int start = pos++;
+					char last = 0;
+					while(at(pos) != '"')
 					{
-						onGroup += 1;
-						index++;
+						last = at(pos);
+						pos = parseChar(pos);
 					}
+					out.add(new Element(LITERAL, start, start + 1 == pos ? -1 : last == '.' ? 1 : 0));
+					pos = parseSpace(pos + 1, nested);
 				}
-				if(isGroupEnd)
+				else if(c == '[')
 				{
-					// System.err.println("CHECK GROUP END - " + token);
-					int index = token.length();
-					String tmpToken = token.substring(0, index);
-					while(tmpToken.endsWith(")") || tmpToken.endsWith(")?"))
+					int start = pos++;
+					if(at(pos) == '^')
 					{
-						onGroup -= 1;
-						index -= tmpToken.endsWith("?") ? 2 : 1;
-						tmpToken = token.substring(0, index);
+						pos++;
 					}
-					if(onGroup < 0)
+					while(at(pos) != ']')
 					{
-						throw new ParseException("Missing group open", 0);
+						pos = parseChar(pos);
+						if(at(pos) == '-' && at(pos + 1) != ']')
+						{
+							pos = parseChar(pos + 1);
+						}
 					}
-					if(token.length() > 1)
-					{
-						groupExpression.append(" ").append(token, isGroupStart ? 1 : 0, token.length() - (isOptionalGroupEnd ? 2 : 1));
-					}
-					assertValidExpression(expressions, groupExpression.toString(), parentExpressions, validExpressions, isLast && shouldTerminate);
-					groupExpression = new StringBuilder();
-					continue;
+					out.add(new Element(CHAR_CLASS, start, 0));
+					pos = parseSpace(pos + 1, nested);
+				}
+				else if(isWordChar(c))
+				{
+					int nameEnd = parseName(pos);
+					out.add(new Element(RULE_REF, pos, getSymbolId(src.substring(pos, nameEnd), pos)));
+					pos = parseSpace(nameEnd, nested);
 				}
-				else if(onGroup > 0)
+				else if(c == '(')
 				{
-					if(isGroupStart)
+					int start = pos;
+					// Nested alternates go into a synthesized rule, like the native parser
+					int subRuleId = newSymbolId(ruleName + "_" + rules.size(), start);
+					Rule subRule = rules.get(subRuleId);
+					subRule.definedAt = start;
+					pos = parseAlternates(parseSpace(pos + 1, true), ruleName, subRule, true);
+					out.add(new Element(RULE_REF, start, subRuleId));
+					if(at(pos) != ')')
 					{
-						groupExpression.append(token.substring(1));
+						throw error("Expecting ')'", pos);
 					}
-					else
+					pos = parseSpace(pos + 1, nested);
+				}
+				else if(c == '*' || c == '+' || c == '?')
+				{
+					if(out.isEmpty())
 					{
-						groupExpression.append(" ").append(token);
+						throw error("Expecting preceding item to */+/?", pos);
 					}
-					continue;
+					out.get(out.size() - 1).optional |= c != '+';
+					pos = parseSpace(pos + 1, nested);
+				}
+				else
+				{
+					break;
 				}
 			}
-			if(!onText && !onRegex && token.startsWith("\""))
+			return pos;
+		}
+		
+		private int parseChar(int pos) throws ParseException
+		{
+			if(at(pos) == '\\')
 			{
-				onText = true;
-				// System.err.println("CHECK TEXT START - " + token);
-				if(token.length() == 1)
+				switch(at(pos + 1))
 				{
-					continue;
+					case 'x':
+						return parseHex(pos + 2, 2);
+					case 'u':
+						return parseHex(pos + 2, 4);
+					case 'U':
+						return parseHex(pos + 2, 8);
+					case 't', 'r', 'n', '\\', '"', '[', ']':
+						return pos + 2;
+					default:
+						throw error("Unknown escape", pos);
 				}
 			}
-			if(!onRegex && onGroup == 0 && (token.endsWith("\"") || token.endsWith("\"?")))
+			else if(pos < src.length())
+			{
+				return pos + 1;
+			}
+			throw error("Unexpected end of input", pos);
+		}
+		
+		private int parseHex(int pos, int size) throws ParseException
+		{
+			int end = pos + size;
+			int i = pos;
+			while(i < end && Character.digit(at(i), 16) >= 0)
 			{
-				// System.err.println("CHECK TEXT STOP - " + token);
-				if(!onText)
+				i++;
+			}
+			if(i != end)
+			{
+				throw error("Expecting " + size + " hex chars", pos);
+			}
+			return end;
+		}
+		
+		private int getSymbolId(String name, int pos)
+		{
+			Integer id = symbolIds.get(name);
+			return id != null ? id : newSymbolId(name, pos);
+		}
+		
+		private int newSymbolId(String name, int pos)
+		{
+			int id = rules.size();
+			rules.add(new Rule(name, pos));
+			symbolIds.put(name, id);
+			return id;
+		}
+		
+		private ParseException error(String message, int pos)
+		{
+			int line = 1;
+			int lineStart = 0;
+			for(int i = 0; i < pos && i < src.length(); i++)
+			{
+				if(src.charAt(i) == '\n')
 				{
-					throw new ParseException("Missing string open on segment: " + expressionText, 0);
+					line++;
+					lineStart = i + 1;
 				}
-				onText = false;
-				continue;
 			}
-			if(onText)
+			return new ParseException(message + " at line " + line + ", column " + (pos - lineStart + 1), pos);
+		}
+		
+		// Rule graph checks
+		
+		private void assertDefined() throws ParseException
+		{
+			Rule undefined = null;
+			for(Rule rule : rules)
 			{
-				if(isLast && shouldTerminate && !token.endsWith("."))
+				if(rule.definedAt < 0 && (undefined == null || rule.firstUsedAt < undefined.firstUsedAt))
 				{
-					throw new ParseException("Root expression resolution should end with a dot.", 0);
+					undefined = rule;
 				}
-				continue;
 			}
-			if(!onRegex && onGroup == 0 && token.startsWith("["))
+			if(undefined != null)
+			{
+				throw error("Unable to resolve expression: " + undefined.name, undefined.firstUsedAt);
+			}
+		}
+		
+		/**
+		 * Finds the rules that can match the empty string. Every alternative counts the references it still needs to be nullable, and rules are queued as
+		 * soon as one of their alternatives reaches zero, so each element is visited a constant number of times.
+		 */
+		private boolean[] findNullable()
+		{
+			int nRules = rules.size();
+			boolean[] nullable = new boolean[nRules];
+			List<List<int[]>> dependents = new ArrayList<>(nRules);
+			for(int i = 0; i < nRules; i++)
+			{
+				dependents.add(new ArrayList<>());
+			}
+			List<int[]> pending = new ArrayList<>();
+			ArrayDeque<Integer> queue = new ArrayDeque<>();
+			for(int r = 0; r < nRules; r++)
 			{
-				// System.err.println("CHECK REGEX START");
-				onRegex = true;
-				startRegexIndex = i;
-				if(token.length() == 1)
+				for(List<Element> alternative : rules.get(r).alternatives)
 				{
-					continue;
+					// {owner rule, missing references}
+					int[] counter = {r, 0};
+					boolean possible = true;
+					for(Element element : alternative)
+					{
+						if(element.optional || (element.kind == LITERAL && element.value < 0))
+						{
+							continue;
+						}
+						if(element.kind != RULE_REF)
+						{
+							possible = false;
+							break;
+						}
+						counter[1]++;
+					}
+					if(!possible)
+					{
+						continue;
+					}
+					if(counter[1] == 0)
+					{
+						if(!nullable[r])
+						{
+							nullable[r] = true;
+							queue.add(r);
+						}
+						continue;
+					}
+					pending.add(counter);
+					for(Element element : alternative)
+					{
+						if(!element.optional && element.kind == RULE_REF)
+						{
+							dependents.get(element.value).add(counter);
+						}
+					}
 				}
 			}
-			if(onGroup == 0 && (token.endsWith("]") || token.endsWith("]?") || token.endsWith("]+") || token.endsWith("]*")))
+			while(!queue.isEmpty())
 			{
-				if(!onRegex)
+				for(int[] counter : dependents.get(queue.poll()))
 				{
-					throw new ParseException("Missing regex open on segment: ", 0);
+					if(--counter[1] == 0 && !nullable[counter[0]])
+					{
+						nullable[counter[0]] = true;
+						queue.add(counter[0]);
+					}
 				}
-				// System.err.println("CHECK REGEX END");
-				onRegex = false;
-				if(isLast && shouldTerminate)
+			}
+			return nullable;
+		}
+		
+		/**
+		 * Asserts no rule reaches itself through references that can appear before any input is consumed, which would make the sampler loop forever.
+		 * Other recursive references are fine.
+		 */
+		private void assertNoLeftRecursion(boolean[] nullable) throws ParseException
+		{
+			int nRules = rules.size();
+			// Left edges of every rule as {target rule, reference position}
+			List<List<int[]>> edges = new ArrayList<>(nRules);
+			for(Rule rule : rules)
+			{
+				List<int[]> ruleEdges = new ArrayList<>();
+				for(List<Element> alternative : rule.alternatives)
 				{
-					throw new ParseException("Root expression resolution should end with a dot.", 0);
+					for(Element element : alternative)
+					{
+						if(element.kind == RULE_REF)
+						{
+							ruleEdges.add(new int[] {element.value, element.pos});
+						}
+						if(!element.optional && !(element.kind == LITERAL && element.value < 0) && !(element.kind == RULE_REF && nullable[element.value]))
+						{
+							break;
+						}
+					}
 				}
-				String regexExpression = String.join(" ", Arrays.copyOfRange(tokens, startRegexIndex, i + 1));
-				try
+				edges.add(ruleEdges);
+			}
+			// Iterative DFS, deep reference chains in generated grammars would overflow the call stack
+			byte[] color = new byte[nRules];
+			int[] nextEdge = new int[nRules];
+			int[] stack = new int[nRules];
+			for(int start = 0; start < nRules; start++)
+			{
+				if(color[start] != 0)
 				{
-					// System.err.println("CHECK REGEX - " + regexExpression);
-					String regexText = regexExpression.substring(1, regexExpression.lastIndexOf("]"));
-					Pattern.compile(regexText);
-				} catch(PatternSyntaxException e)
+					continue;
+				}
+				int depth = 0;
+				stack[depth++] = start;
+				color[start] = 1;
+				while(depth > 0)
 				{
-					throw new ParseException("Invalid regex expression: " + regexExpression, 0);
+					int r = stack[depth - 1];
+					List<int[]> ruleEdges = edges.get(r);
+					if(nextEdge[r] == ruleEdges.size())
+					{
+						color[r] = 2;
+						depth--;
+						continue;
+					}
+					int[] edge = ruleEdges.get(nextEdge[r]++);
+					if(color[edge[0]] == 1)
+					{
+						throw error("Cyclic resolution of expression: " + rules.get(edge[0]).name, edge[1]);
+					}
+					if(color[edge[0]] == 0)
+					{
+						color[edge[0]] = 1;
+						stack[depth++] = edge[0];
+					}
 				}
-				continue;
 			}
-			if(onRegex)
+		}
+		
+		/**
+		 * Asserts every alternative of the root rule ends with a text ending in a dot. Rules are assumed to terminate until one of their alternatives
+		 * ends with something else, and that is propagated backwards through the references in last position.
+		 */
+		private void assertTerminates(int root) throws ParseException
+		{
+			int nRules = rules.size();
+			// Position of the element that breaks termination, -1 while the rule is assumed to terminate
+			int[] culprit = new int[nRules];
+			Arrays.fill(culprit, -1);
+			List<List<Integer>> endedBy = new ArrayList<>(nRules);
+			for(int i = 0; i < nRules; i++)
 			{
-				continue;
+				endedBy.add(new ArrayList<>());
 			}
-			if(token.equals("|"))
+			ArrayDeque<Integer> queue = new ArrayDeque<>();
+			for(int r = 0; r < nRules; r++)
 			{
-				assertValidExpression(expressions, String.join(" ", Arrays.copyOfRange(tokens, i + 1, tokens.length)), parentExpressions, validExpressions, shouldTerminate);
-				break;
+				Rule rule = rules.get(r);
+				for(List<Element> alternative : rule.alternatives)
+				{
+					Element last = alternative.isEmpty() ? null : alternative.get(alternative.size() - 1);
+					if(last != null && !last.optional && last.kind == RULE_REF)
+					{
+						endedBy.get(last.value).add(r);
+					}
+					else if(culprit[r] < 0 && (last == null || last.optional || last.kind != LITERAL || last.value != 1))
+					{
+						culprit[r] = last == null ? rule.definedAt : last.pos;
+						queue.add(r);
+					}
+				}
 			}
-			String subExpression = token;
-			if(subExpression.endsWith("?"))
+			while(!queue.isEmpty())
 			{
-				subExpression = subExpression.substring(0, subExpression.length() - 1);
+				int r = queue.poll();
+				for(int parent : endedBy.get(r))
+				{
+					if(culprit[parent] < 0)
+					{
+						culprit[parent] = culprit[r];
+						queue.add(parent);
+					}
+				}
 			}
-			var subExpressionValue = expressions.get(subExpression);
-			if(subExpressionValue == null)
+			if(culprit[root] >= 0)
 			{
-				throw new ParseException("Unable to resolve expression: " + subExpression, 0);
+				throw error("Root expression resolution should end with a dot", culprit[root]);
 			}
-			if((!isLast || !shouldTerminate) && validExpressions.contains(subExpression))
+		}
+		
+		private static class Rule {
+			
+			final String name;
+			final int firstUsedAt;
+			final List<List<Element>> alternatives = new ArrayList<>();
+			int definedAt = -1;
+			
+			Rule(String name, int firstUsedAt)
 			{
-				// System.err.println("CHECK ALREADY RESOLVED - " + token);
-				continue;
+				this.name = name;
+				this.firstUsedAt = firstUsedAt;
 			}
-			parentExpressions = new ArrayList<>(parentExpressions);
-			parentExpressions.add(subExpression);
-			assertValidExpression(expressions, subExpressionValue, parentExpressions, validExpressions, isLast && shouldTerminate);
-			if(!isLast || !shouldTerminate)
+		}
+		
+		private static class Element {
+			
+			final int kind;
+			final int pos;
+			/**
+			 * Referenced rule id, or for literals -1 if empty, 1 if ending with a dot and 0 otherwise
+			 */
+			final int value;
+			/** Followed by <code>?</code> or <code>*</code> */
+			boolean optional;
+			
+			Element(int kind, int pos, int value)
 			{
-				validExpressions.add(subExpression);
+				this.kind = kind;
+				this.pos = pos;
+				this.value = value;
 			}
 		}
-		if(onText)
-		{
-			throw new ParseException("Unclosed text at: " + expressionText, 0);
-		}
-		if(onRegex)
-		{
-			throw new ParseException("Unclosed regex at: " + expressionText, 0);
-		}
-		if(onGroup > 1)
-		{
-			throw new ParseException("Unclosed group at: " + expressionText, 0);
-		}
 	}
 }
@@ -1,11 +1,25 @@
 package io.github.jaffe2718.whisperjni;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -22,6 +36,21 @@ import org.slf4j.LoggerFactory;
  */
 public class WhisperJNI {
 	
+	/**
+	 * Sample rate of the audio expected by whisper.cpp.
+	 */
+	public static final int SAMPLE_RATE = 16000;
+	
+	/**
+	 * System property enabling the capture of the stack trace of every context, state and grammar, logged if it is released without being closed.
+	 * Off by default, a stack trace per handle is too costly for the request path.
+	 */
+	public static final String TRACK_ALLOCATIONS_PROPERTY = "whisperjni.trackAllocations";
+	
+	private static final int ENCODER_WINDOW = 30 * SAMPLE_RATE;
+	
+	private volatile ThreadBudget threadBudget;
+	
 	private native int init(String model, WhisperContextParams params);
 
     private native int initFromInputStream(InputStream inputStream, WhisperContextParams params, boolean initState);
@@ -36,20 +65,48 @@ public class WhisperJNI {
 	
 	private native boolean isMultilingual(int model);
 	
-	private native int full(int context, WhisperFullParams params, float[] samples, int numSamples);
+	private native int[] modelHparams(int model);
 	
-	private native int fullWithState(int context, int state, WhisperFullParams params, float[] samples, int numSamples);
+	private native int full(int context, WhisperFullParams params, float[] samples, int numSamples, int nThreads);
+	
+	private native int fullWithState(int context, int state, WhisperFullParams params, float[] samples, int numSamples, int nThreads);
+	
+	private native int fullRange(int context, WhisperFullParams params, float[] samples, int fromIndex, int length, int nThreads);
+	
+	private native int fullWithStateRange(int context, int state, WhisperFullParams params, float[] samples, int fromIndex, int length, int nThreads);
+	
+	private native int fullWithStateInterleaved(int context, int state, WhisperFullParams params, float[] samples, int channel, int channels, int numFrames, int nThreads);
+	
+	private native int encodeRange(int context, int state, float[] samples, int fromIndex, int length, int nThreads);
+	
+	private native int[] decodeEncoded(int context, int state, WhisperFullParams params, float[] scores, int nThreads);
+	
+	private static native TranscriptionStats lastFullStats(int numSamples);
 	
 	private native int fullNTokens(int context, int segment);
 	
 	private native int fullNTokensFromState(int state, int segment);
 	
-	private native TokenData getTokenData(int context, int segment, int token);
+	private native TokenData getTokenData(int context, int segment, int token, WhisperVocabulary vocabulary);
+	
+	private native TokenData getTokenDataFromState(int context, int state, int segment, int token, WhisperVocabulary vocabulary);
 	
-	private native TokenData getTokenDataFromState(int context, int state, int segment, int token);
+	private native int[] fullGetTokenIds(int context, int segment);
+	
+	private native int[] fullGetTokenIdsFromState(int state, int segment);
+	
+	private native int nVocab(int context);
+	
+	private native int[] tokenize(int context, byte[] text);
+	
+	private native byte[][] getVocabularyBytes(int context);
+	
+	private native int[] getSpecialTokens(int context);
 	
 	// New convenience method yipee
-	private native String vadState(int content, int state, WhisperFullParams params, WhisperVADContextParams vadContextParams, float[] samples, int numSamples);
+	private native byte[] vadStateBytes(int content, int state, WhisperFullParams params, WhisperVADContextParams vadContextParams, float[] samples, int numSamples, int nThreads);
+	
+	private native float[] vadSegments(WhisperFullParams params, WhisperVADContextParams vadContextParams, float[] samples, int numSamples);
 	
 	private native int fullNSegments(int context);
 	
@@ -59,13 +116,13 @@ public class WhisperJNI {
 	
 	private native long fullGetSegmentTimestamp1(int context, int index);
 	
-	private native String fullGetSegmentText(int context, int index);
+	private native byte[] fullGetSegmentTextBytes(int context, int index);
 	
 	private native long fullGetSegmentTimestamp0FromState(int state, int index);
 	
 	private native long fullGetSegmentTimestamp1FromState(int state, int index);
 	
-	private native String fullGetSegmentTextFromState(int state, int index);
+	private native byte[] fullGetSegmentTextBytesFromState(int state, int index);
 	
 	private native void freeContext(int context);
 	
@@ -73,8 +130,18 @@ public class WhisperJNI {
 	
 	private native void freeGrammar(int grammar);
 	
+	private native long grammarMemoryBytes(int grammar);
+	
+	private static native long residentMemoryBytes();
+	
+	private static native int quantize(String input, String output, int ftype, DoubleConsumer progress);
+	
 	private native String printSystemInfo();
 	
+	static native void installLogProxy(int minLevel);
+	
+	static native int drainLog(byte[] buffer, int timeoutMs);
+	
 	/**
 	 * Sets the whisper.cpp logger.
 	 * 
@@ -82,9 +149,17 @@ public class WhisperJNI {
 	 * You must first load the natives before calling this method.
 	 * </p>
 	 * 
-	 * @param logger SLF4J {@link Logger}
+	 * <p>
+	 * Native log lines are filtered by the levels enabled in the logger, queued without blocking the logging thread and forwarded in batches by a
+	 * single daemon thread. Logger level changes made afterwards only take effect once this method is called again.
+	 * </p>
+	 * 
+	 * @param logger SLF4J {@link Logger}, or <code>null</code> to stop forwarding native logs
 	 */
-	public static native void setLogger(Logger logger);
+	public static void setLogger(Logger logger)
+	{
+		WhisperLogBridge.setLogger(logger);
+	}
 	
 	/**
 	 * Loads the default natives bundled with the library with a {@link Logger} instance to listen to important library loading events / problems.
@@ -94,6 +169,10 @@ public class WhisperJNI {
 	 * </p>
 	 * 
 	 * <p>
+	 * The natives are extracted once to a persistent cache and reused by later runs, see {@link LibraryUtils#extractResourceCached(Logger, URI)}.
+	 * </p>
+	 * 
+	 * <p>
 	 * After this method finishes successfully, consider setting {@link WhisperJNI#setLogger(Logger)} to listen to whisper.cpp events.
 	 * </p>
 	 *
@@ -105,8 +184,18 @@ public class WhisperJNI {
 		try
 		{
 			// the leading / is needed (same with extracting the ggml model in LibraryUtils)
-			Path tempLib = LibraryUtils.extractResource(logger, WhisperJNI.class.getClassLoader().getResource(LibraryUtils.getOS() + "-" + LibraryUtils.getArchitecture()).toURI());
-			LibraryUtils.loadLibrary(logger, tempLib);
+			URI natives = WhisperJNI.class.getClassLoader().getResource(LibraryUtils.getOS() + "-" + LibraryUtils.getArchitecture()).toURI();
+			Path libDir;
+			try
+			{
+				libDir = LibraryUtils.extractResourceCached(logger, natives);
+			} catch(IOException e)
+			{
+				// e.g. a cache directory owned by another user
+				logger.warn("Unable to use the natives extraction cache, extracting to a temporary directory", e);
+				libDir = LibraryUtils.extractResource(logger, natives);
+			}
+			LibraryUtils.loadLibrary(logger, libDir);
 		} catch(URISyntaxException | NullPointerException e)
 		{
 			logger.error("Failed to load built-in whisper-jni natives", e);
@@ -167,12 +256,11 @@ public class WhisperJNI {
 		{
 			params = new WhisperContextParams();
 		}
+		WhisperEvents.Init event = new WhisperEvents.Init();
+		event.begin();
+		String modelKey = modelKey(model);
 		int ref = init(model.toAbsolutePath().toString(), params);
-		if(ref == -1)
-		{
-			return null;
-		}
-		return new WhisperContext(this, ref);
+		return newContext(event, ref, Files.size(model), model.getFileName().toString(), modelKey, params, true);
 	}
 
     /**
@@ -190,12 +278,22 @@ public class WhisperJNI {
 		{
 			params = new WhisperContextParams();
 		}
-		int ref = initFromInputStream(inputStream, params, initState);
-		if(ref == -1)
+		WhisperEvents.Init event = new WhisperEvents.Init();
+		event.begin();
+		// The size of the model, the weights are stored as they are loaded
+		long[] count = new long[1];
+		InputStream counting = new FilterInputStream(inputStream)
 		{
-			return null;
-		}
-		return new WhisperContext(this, ref);
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int read = super.read(b, off, len);
+				count[0] += Math.max(read, 0);
+				return read;
+			}
+		};
+		int ref = initFromInputStream(counting, params, initState);
+		return newContext(event, ref, count[0], "stream", null, params, initState);
 	}
 	
 	/**
@@ -225,12 +323,11 @@ public class WhisperJNI {
 		{
 			params = new WhisperContextParams();
 		}
+		WhisperEvents.Init event = new WhisperEvents.Init();
+		event.begin();
+		String modelKey = modelKey(model);
 		int ref = initNoState(model.toAbsolutePath().toString(), params);
-		if(ref == -1)
-		{
-			return null;
-		}
-		return new WhisperContext(this, ref);
+		return newContext(event, ref, Files.size(model), model.getFileName().toString(), modelKey, params, false);
 	}
 	
 	/**
@@ -242,14 +339,66 @@ public class WhisperJNI {
 	public WhisperState initState(WhisperContext context)
 	{
 		WhisperJNIPointer.assertAvailable(context);
-		int ref = initState(context.ref);
-		if(ref == -1)
+		WhisperEvents.InitState event = new WhisperEvents.InitState();
+		event.begin();
+		int ref;
+		try
 		{
-			return null;
+			ref = initState(context.ref);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+		WhisperState state = null;
+		long bytes = 0;
+		if(ref != -1)
+		{
+			bytes = context.modelInfo.getEstimatedStateBytes();
+			state = new WhisperState(this, ref, context).track(() -> freeState(ref), bytes);
+		}
+		if(event.shouldCommit())
+		{
+			event.model = context.modelId;
+			event.nativeBytes = bytes;
+			event.result = ref == -1 ? -1 : 0;
+			event.commit();
+		}
+		return state;
+	}
+	
+	private WhisperContext newContext(WhisperEvents.Init event, int ref, long fileBytes, String modelId, String modelKey, WhisperContextParams params,
+			boolean withState)
+	{
+		WhisperContext context = null;
+		long bytes = 0;
+		if(ref != -1)
+		{
+			ModelInfo modelInfo = new ModelInfo(modelHparams(ref), fileBytes);
+			bytes = withState ? modelInfo.getEstimatedBytes() : modelInfo.getEstimatedContextBytes();
+			context = new WhisperContext(this, ref).track(() -> freeContext(ref), bytes);
+			context.modelId = modelId;
+			context.modelKey = modelKey;
+			context.modelInfo = modelInfo;
 		}
-		return new WhisperState(this, ref, context);
+		if(event.shouldCommit())
+		{
+			event.model = modelId;
+			event.withState = withState;
+			event.gpu = params.useGPU;
+			event.nativeBytes = bytes;
+			event.result = ref == -1 ? -1 : 0;
+			event.commit();
+		}
+		return context;
 	}
 	
+	/**
+	 * Parses a GBNF grammar file, see {@link #parseGrammar(String)}.
+	 *
+	 * @param grammarPath {@link Path} to the GBNF grammar file.
+	 * @return A new {@link WhisperGrammar}.
+	 * @throws IOException if the file is missing or the grammar can't be parsed.
+	 */
 	public WhisperGrammar parseGrammar(Path grammarPath) throws IOException
 	{
 		if(!Files.exists(grammarPath) || Files.isDirectory(grammarPath))
@@ -259,18 +408,39 @@ public class WhisperJNI {
 		return parseGrammar(Files.readString(grammarPath));
 	}
 	
+	/**
+	 * Parses a GBNF grammar.
+	 *
+	 * <p>
+	 * Parsed grammars are cached natively by their text: parsing an identical grammar again returns a handle to the
+	 * same native grammar, which is only released once every handle has been closed.
+	 * </p>
+	 *
+	 * @param text GBNF grammar text.
+	 * @return A new {@link WhisperGrammar}.
+	 * @throws IOException if the grammar is blank or can't be parsed.
+	 */
 	public WhisperGrammar parseGrammar(String text) throws IOException
 	{
 		if(text.isBlank())
 		{
 			throw new IOException("Grammar text is blank");
 		}
+		WhisperEvents.ParseGrammar event = new WhisperEvents.ParseGrammar();
+		event.begin();
 		int ref = loadGrammar(text);
+		if(event.shouldCommit())
+		{
+			event.length = text.length();
+			event.result = ref == -1 ? -1 : 0;
+			event.commit();
+		}
 		if(ref == -1)
 		{
 			return null;
 		}
-		return new WhisperGrammar(this, ref, text);
+		// Grammars with the same text share the native grammar and its ref
+		return new WhisperGrammar(this, ref, text).track(() -> freeGrammar(ref), grammarMemoryBytes(ref), true);
 	}
 	
 	/**
@@ -282,7 +452,13 @@ public class WhisperJNI {
 	public void initOpenVINO(WhisperContext context, String device)
 	{
 		WhisperJNIPointer.assertAvailable(context);
-		initOpenVINOEncoder(context.ref, device);
+		try
+		{
+			initOpenVINOEncoder(context.ref, device);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
 	}
 	
 	/**
@@ -294,7 +470,13 @@ public class WhisperJNI {
 	public boolean isMultilingual(WhisperContext context)
 	{
 		WhisperJNIPointer.assertAvailable(context);
-		return isMultilingual(context.ref);
+		try
+		{
+			return isMultilingual(context.ref);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
 	}
 	
 	/**
@@ -313,7 +495,26 @@ public class WhisperJNI {
 		{
 			WhisperJNIPointer.assertAvailable(params.grammar);
 		}
-		return full(context.ref, params, samples, numSamples);
+		WhisperEvents.Full event = new WhisperEvents.Full();
+		event.begin();
+		int result;
+		int threads;
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			threads = threadCount(lease, params.nThreads);
+			result = full(context.ref, params, samples, numSamples, threads);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(params.grammar);
+		}
+		context.stats = lastFullStats(numSamples);
+		if(event.shouldCommit())
+		{
+			event.set(context, params, numSamples, threads, result);
+			event.commit();
+		}
+		return result;
 	}
 	
 	/**
@@ -334,217 +535,934 @@ public class WhisperJNI {
 		{
 			WhisperJNIPointer.assertAvailable(params.grammar);
 		}
-		return fullWithState(context.ref, state.ref, params, samples, numSamples);
-	}
-	
-	/**
-	 * Gets the tokens in the specified segment.
-	 * 
-	 * <p>
-	 * Whisper includes extra tokens like timestamps or start / end of segments. These are removed.
-	 * </p>
-	 * 
-	 * @param context the {@link WhisperContext} used to transcribe.
-	 * @param segment segment index
-	 * @return tokens in this segment
-	 */
-	public TokenData[] getTokens(WhisperContext context, int segment)
-	{
-		TokenData[] tokens = new TokenData[fullNTokens(context.ref, segment)];
-		for(int i = 0; i < tokens.length; i++)
+		WhisperEvents.Full event = new WhisperEvents.Full();
+		event.begin();
+		int result;
+		int threads;
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			threads = threadCount(lease, params.nThreads);
+			result = fullWithState(context.ref, state.ref, params, samples, numSamples, threads);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+			Reference.reachabilityFence(params.grammar);
+		}
+		state.encodedSamples = -1;
+		state.stats = lastFullStats(numSamples);
+		if(event.shouldCommit())
 		{
-			tokens[i] = getTokenData(context.ref, segment, i);
+			event.set(context, params, numSamples, threads, result);
+			event.withState = true;
+			event.commit();
 		}
-		return filterTokens(tokens);
+		return result;
 	}
 	
 	/**
-	 * Gets the tokens in the specified segment.
-	 * 
-	 * <p>
-	 * Whisper includes extra tokens like timestamps or start / end of segments. These are removed.
-	 * </p>
-	 * 
-	 * @param context the {@link WhisperContext} used to transcribe
-	 * @param state   the {@link WhisperState} used to transcribe
-	 * @param segment segment index
-	 * @return tokens in this segment
+	 * Run whisper.cpp full audio transcription on a range of the samples. Only the range is copied to native memory, into a buffer reused by the
+	 * calls of the context, so transcribing a window of a long recording costs the size of the window, not of the recording. A buffer grown past
+	 * 30 s of audio is released after the call. Timestamps are relative to the start of the range.
+	 *
+	 * @param context   the {@link WhisperContext} used to transcribe.
+	 * @param params    a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples   the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param fromIndex the index of the first sample of the range.
+	 * @param length    the number of samples of the range.
+	 * @return a result code, values other than 0 indicates problems.
 	 */
-	public TokenData[] getTokensFromState(WhisperContext context, WhisperState state, int segment)
+	public int full(WhisperContext context, WhisperFullParams params, float[] samples, int fromIndex, int length)
 	{
-		// whisper_full_n_tokens
-		TokenData[] tokens = new TokenData[fullNTokensFromState(state.ref, segment)];
-		for(int i = 0; i < tokens.length; i++)
+		WhisperJNIPointer.assertAvailable(context);
+		if(params.grammar != null)
 		{
-			tokens[i] = getTokenDataFromState(context.ref, state.ref, segment, i);
+			WhisperJNIPointer.assertAvailable(params.grammar);
 		}
-		return filterTokens(tokens);
-	}
-	
-	private TokenData[] filterTokens(TokenData[] tokens)
-	{
-		// Check if it's a special token
-		// ... whisper does something similar so I feel less bad about it, but this is still ugly:
-		// if (text.rfind("[_", 0) == 0) {
-		// An alternative would be grabbing the special token IDs, either programatically or hard coding them
-		return Stream.of(tokens).filter(token -> !token.token.startsWith("[_") && !token.token.startsWith("<|")).toArray(TokenData[]::new);
-	}
-	
-	public String vadState(WhisperContext context, WhisperState state, WhisperFullParams params, WhisperVADContextParams vadContextParams, float[] samples, int numSamples)
-	{
-		return vadState(context.ref, state.ref, params, vadContextParams, samples, numSamples);
+		Objects.checkFromIndexSize(fromIndex, length, samples.length);
+		WhisperEvents.Full event = new WhisperEvents.Full();
+		event.begin();
+		int result;
+		int threads;
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			threads = threadCount(lease, params.nThreads);
+			result = fullRange(context.ref, params, samples, fromIndex, length, threads);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(params.grammar);
+		}
+		context.stats = lastFullStats(length);
+		if(event.shouldCommit())
+		{
+			event.set(context, params, length, threads, result);
+			event.commit();
+		}
+		return result;
 	}
 	
 	/**
-	 * Gets the available number of text segments.
+	 * Run whisper.cpp full audio transcription on a range of the samples. Only the range is copied to native memory, into a buffer reused by the
+	 * calls of the state, so transcribing a window of a long recording costs the size of the window, not of the recording. A buffer grown past
+	 * 30 s of audio is released after the call. Timestamps are relative to the start of the range.
 	 *
-	 * @param state the {@link WhisperState} used to transcribe
-	 * @return available number of segments
+	 * @param context   the {@link WhisperContext} used to transcribe.
+	 * @param state     the {@link WhisperState} used to transcribe.
+	 * @param params    a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples   the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param fromIndex the index of the first sample of the range.
+	 * @param length    the number of samples of the range.
+	 * @return a result code, values other than 0 indicates problems.
 	 */
-	public int fullNSegmentsFromState(WhisperState state)
+	public int fullWithState(WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples, int fromIndex, int length)
 	{
+		WhisperJNIPointer.assertAvailable(context);
 		WhisperJNIPointer.assertAvailable(state);
-		return fullNSegmentsFromState(state.ref);
+		if(params.grammar != null)
+		{
+			WhisperJNIPointer.assertAvailable(params.grammar);
+		}
+		Objects.checkFromIndexSize(fromIndex, length, samples.length);
+		WhisperEvents.Full event = new WhisperEvents.Full();
+		event.begin();
+		int result;
+		int threads;
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			threads = threadCount(lease, params.nThreads);
+			result = fullWithStateRange(context.ref, state.ref, params, samples, fromIndex, length, threads);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+			Reference.reachabilityFence(params.grammar);
+		}
+		state.encodedSamples = -1;
+		state.stats = lastFullStats(length);
+		if(event.shouldCommit())
+		{
+			event.set(context, params, length, threads, result);
+			event.withState = true;
+			event.commit();
+		}
+		return result;
 	}
 	
 	/**
-	 * Gets the available number of text segments.
+	 * Run whisper.cpp full audio transcription on one channel of interleaved multi-channel audio. The channel is extracted by the native side while
+	 * copying the samples into the buffer reused by the calls of the state, no de-interleaved array is created. A buffer grown past 30 s of audio
+	 * is released after the call.
 	 *
-	 * @param context the {@link WhisperContext} used to transcribe
-	 * @return available number of segments
+	 * @param context   the {@link WhisperContext} used to transcribe.
+	 * @param state     the {@link WhisperState} used to transcribe.
+	 * @param params    a {@link WhisperFullParams} instance with the desired configuration.
+	 * @param samples   the interleaved audio samples (f32 encoded samples with sample rate 16000), frame after frame.
+	 * @param channel   the channel to transcribe, from 0.
+	 * @param channels  the number of channels in a frame.
+	 * @param numFrames the number of frames provided.
+	 * @return a result code, values other than 0 indicates problems.
 	 */
-	public int fullNSegments(WhisperContext context)
+	public int fullWithStateInterleaved(WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples, int channel, int channels,
+			int numFrames)
 	{
 		WhisperJNIPointer.assertAvailable(context);
-		return fullNSegments(context.ref);
+		WhisperJNIPointer.assertAvailable(state);
+		if(params.grammar != null)
+		{
+			WhisperJNIPointer.assertAvailable(params.grammar);
+		}
+		if(channel < 0 || channel >= channels || numFrames < 0 || (long) numFrames * channels > samples.length)
+		{
+			throw new IndexOutOfBoundsException("Channel " + channel + " of " + numFrames + " frames of " + channels + " channels is out of "
+					+ samples.length + " samples");
+		}
+		WhisperEvents.Full event = new WhisperEvents.Full();
+		event.begin();
+		int result;
+		int threads;
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			threads = threadCount(lease, params.nThreads);
+			result = fullWithStateInterleaved(context.ref, state.ref, params, samples, channel, channels, numFrames, threads);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+			Reference.reachabilityFence(params.grammar);
+		}
+		state.encodedSamples = -1;
+		state.stats = lastFullStats(numFrames);
+		if(event.shouldCommit())
+		{
+			event.set(context, params, numFrames, threads, result);
+			event.withState = true;
+			event.commit();
+		}
+		return result;
 	}
 	
 	/**
-	 * Gets start timestamp of text segment by index.
+	 * Gets the timings of the last {@link #full(WhisperContext, WhisperFullParams, float[], int)} call made with the context.
 	 *
-	 * @param context a {@link WhisperContext} used to transcribe
-	 * @param index   the segment index
-	 * @return start timestamp of segment text, 800 -> 8s
+	 * @param context the {@link WhisperContext} used to transcribe
+	 * @return the {@link TranscriptionStats} of the last call, or <code>null</code> if the context was not used yet
 	 */
-	public long fullGetSegmentTimestamp0(WhisperContext context, int index)
+	public TranscriptionStats getStats(WhisperContext context)
 	{
-		WhisperJNIPointer.assertAvailable(context);
-		return fullGetSegmentTimestamp0(context.ref, index);
+		return context.stats;
 	}
 	
 	/**
-	 * Gets end timestamp of text segment by index.
+	 * Gets the timings of the last {@link #fullWithState(WhisperContext, WhisperState, WhisperFullParams, float[], int)} call made with the
+	 * state.
 	 *
-	 * @param context a {@link WhisperContext} used to transcribe
-	 * @param index   the segment index
-	 * @return end timestamp of segment text, 1050 -> 10.5s
+	 * @param state the {@link WhisperState} used to transcribe
+	 * @return the {@link TranscriptionStats} of the last call, or <code>null</code> if the state was not used yet
 	 */
-	public long fullGetSegmentTimestamp1(WhisperContext context, int index)
+	public TranscriptionStats getStats(WhisperState state)
 	{
-		WhisperJNIPointer.assertAvailable(context);
-		return fullGetSegmentTimestamp1(context.ref, index);
+		return state.stats;
 	}
 	
 	/**
-	 * Gets text segment by index.
+	 * Sets the {@link ThreadBudget} shared by the transcriptions of this instance. Calls whose {@link WhisperFullParams#nThreads} is 0 take
+	 * their thread count from it instead of the whisper.cpp default.
 	 *
-	 * @param context a {@link WhisperContext} used to transcribe
-	 * @param index   the segment index
-	 * @return the segment text
+	 * @param threadBudget the {@link ThreadBudget}, or <code>null</code> to let every call use its own thread count
 	 */
-	public String fullGetSegmentText(WhisperContext context, int index)
+	public void setThreadBudget(ThreadBudget threadBudget)
 	{
-		WhisperJNIPointer.assertAvailable(context);
-		return fullGetSegmentText(context.ref, index);
+		this.threadBudget = threadBudget;
 	}
 	
 	/**
-	 * Gets start timestamp of text segment by index.
+	 * Gets the {@link ThreadBudget} of this instance.
 	 *
-	 * @param state a {@link WhisperState} used to transcribe
-	 * @param index the segment index
-	 * @return start timestamp of segment text, 1050 -> 10.5s
+	 * @return the {@link ThreadBudget}, or <code>null</code> if there is none
 	 */
-	public long fullGetSegmentTimestamp0FromState(WhisperState state, int index)
+	public ThreadBudget getThreadBudget()
 	{
-		WhisperJNIPointer.assertAvailable(state);
-		return fullGetSegmentTimestamp0FromState(state.ref, index);
+		return threadBudget;
 	}
 	
-	/**
-	 * Gets end timestamp of text segment by index.
-	 *
-	 * @param state a {@link WhisperState} used to transcribe
-	 * @param index the segment index
-	 * @return end timestamp of segment text, 1050 -> 10.5s
-	 */
-	public long fullGetSegmentTimestamp1FromState(WhisperState state, int index)
+	private ThreadBudget.Lease acquireThreads(WhisperFullParams params)
 	{
-		WhisperJNIPointer.assertAvailable(state);
-		return fullGetSegmentTimestamp1FromState(state.ref, index);
+		return acquireThreads(params.nThreads);
 	}
 	
-	/**
-	 * Gets text segment by index.
-	 *
-	 * @param state a {@link WhisperState} used to transcribe
-	 * @param index the segment index
-	 * @return the segment text
-	 */
-	public String fullGetSegmentTextFromState(WhisperState state, int index)
+	private ThreadBudget.Lease acquireThreads(int nThreads)
 	{
-		WhisperJNIPointer.assertAvailable(state);
-		return fullGetSegmentTextFromState(state.ref, index);
+		ThreadBudget budget = threadBudget;
+		return budget == null ? null : budget.acquire(nThreads);
 	}
 	
 	/**
-	 * Release context memory in native implementation.
-	 *
-	 * @param context the {@link WhisperContext} to release
+	 * Thread count a call runs with: the one of the lease, else the requested one, else the whisper.cpp default of up to 4 threads.
 	 */
-	public void free(WhisperJNIPointer context)
+	private static int threadCount(ThreadBudget.Lease lease, int nThreads)
 	{
-		if(context.isReleased())
+		if(lease != null)
 		{
-			return;
+			return lease.threads();
 		}
-		freeContext(context.ref);
-		context.release();
+		return nThreads > 0 ? nThreads : Math.min(4, Runtime.getRuntime().availableProcessors());
 	}
-	
+
 	/**
-	 * Release state memory in native implementation.
-	 *
-	 * @param state the {@link WhisperState} to release
+	 * Entropy of the token counts in the last 32 tokens, as whisper.cpp computes it to detect repetition loops.
 	 */
-	public void free(WhisperState state)
+	private static double tailEntropy(int[] tokens)
 	{
-		if(state.isReleased())
+		int window = Math.min(32, tokens.length);
+		Map<Integer, Integer> counts = new HashMap<>();
+		for(int i = tokens.length - window; i < tokens.length; i++)
 		{
-			return;
+			counts.merge(tokens[i], 1, Integer::sum);
 		}
-		freeState(state.ref);
-		state.release();
+		double entropy = 0;
+		for(int count : counts.values())
+		{
+			double p = (double) count / window;
+			entropy -= p * Math.log(p);
+		}
+		return entropy;
 	}
-	
+
 	/**
-	 * Release grammar memory in native implementation.
-	 *
-	 * @param grammar the {@link WhisperGrammar} to release
+	 * Gets the tokens in the specified segment.
+	 * 
+	 * <p>
+	 * Whisper includes extra tokens like timestamps or start / end of segments. These are removed.
+	 * </p>
+	 * 
+	 * @param context the {@link WhisperContext} used to transcribe.
+	 * @param segment segment index
+	 * @return tokens in this segment
 	 */
-	public void free(WhisperGrammar grammar)
+	public TokenData[] getTokens(WhisperContext context, int segment)
 	{
-		if(grammar.isReleased())
+		WhisperJNIPointer.assertAvailable(context);
+		WhisperVocabulary vocabulary = getVocabulary(context);
+		TokenData[] tokens;
+		try
 		{
-			return;
+			tokens = new TokenData[fullNTokens(context.ref, segment)];
+			for(int i = 0; i < tokens.length; i++)
+			{
+				tokens[i] = getTokenData(context.ref, segment, i, vocabulary);
+			}
+		} finally
+		{
+			Reference.reachabilityFence(context);
 		}
-		freeGrammar(grammar.ref);
-		grammar.release();
+		return filterTokens(vocabulary, tokens);
 	}
 	
 	/**
-	 * Get whisper.cpp system info stream, to check enabled features in whisper.
-	 *
+	 * Gets the tokens in the specified segment.
+	 * 
+	 * <p>
+	 * Whisper includes extra tokens like timestamps or start / end of segments. These are removed.
+	 * </p>
+	 * 
+	 * @param context the {@link WhisperContext} used to transcribe
+	 * @param state   the {@link WhisperState} used to transcribe
+	 * @param segment segment index
+	 * @return tokens in this segment
+	 */
+	public TokenData[] getTokensFromState(WhisperContext context, WhisperState state, int segment)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		WhisperJNIPointer.assertAvailable(state);
+		WhisperVocabulary vocabulary = getVocabulary(context);
+		TokenData[] tokens;
+		try
+		{
+			// whisper_full_n_tokens
+			tokens = new TokenData[fullNTokensFromState(state.ref, segment)];
+			for(int i = 0; i < tokens.length; i++)
+			{
+				tokens[i] = getTokenDataFromState(context.ref, state.ref, segment, i, vocabulary);
+			}
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+		}
+		return filterTokens(vocabulary, tokens);
+	}
+	
+	/**
+	 * Gets the token IDs in the specified segment, including special tokens. Use {@link #getVocabulary(WhisperContext)} to resolve their text.
+	 *
+	 * @param context the {@link WhisperContext} used to transcribe
+	 * @param segment segment index
+	 * @return token IDs in this segment
+	 */
+	public int[] getTokenIds(WhisperContext context, int segment)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return fullGetTokenIds(context.ref, segment);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets the token IDs in the specified segment, including special tokens. Use {@link #getVocabulary(WhisperContext)} to resolve their text.
+	 *
+	 * @param state   the {@link WhisperState} used to transcribe
+	 * @param segment segment index
+	 * @return token IDs in this segment
+	 */
+	public int[] getTokenIdsFromState(WhisperState state, int segment)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		try
+		{
+			return fullGetTokenIdsFromState(state.ref, segment);
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+	}
+	
+	TokenData[] filterTokens(WhisperVocabulary vocabulary, TokenData[] tokens)
+	{
+		// Timestamps, task, language and start / end tokens all come after the text tokens
+		return Stream.of(tokens).filter(token -> !vocabulary.isSpecial(token.id)).toArray(TokenData[]::new);
+	}
+	
+	/**
+	 * Gets the vocabulary of the model. The token table is copied from the native side on first use and cached in the context.
+	 *
+	 * @param context a {@link WhisperContext} instance
+	 * @return the model {@link WhisperVocabulary}
+	 */
+	public WhisperVocabulary getVocabulary(WhisperContext context)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		WhisperVocabulary vocabulary = context.vocabulary;
+		if(vocabulary == null)
+		{
+			synchronized(context)
+			{
+				vocabulary = context.vocabulary;
+				if(vocabulary == null)
+				{
+					try
+					{
+						vocabulary = new WhisperVocabulary(getVocabularyBytes(context.ref), getSpecialTokens(context.ref));
+					} finally
+					{
+						Reference.reachabilityFence(context);
+					}
+					context.vocabulary = vocabulary;
+				}
+			}
+		}
+		return vocabulary;
+	}
+	
+	/**
+	 * Gets the vocabulary size of the model.
+	 *
+	 * @param context a {@link WhisperContext} instance
+	 * @return number of tokens known by the model
+	 */
+	public int nVocab(WhisperContext context)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return nVocab(context.ref);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Converts text into token IDs using the model tokenizer.
+	 *
+	 * @param context a {@link WhisperContext} instance
+	 * @param text    the text to tokenize
+	 * @return token IDs
+	 */
+	public int[] tokenize(WhisperContext context, String text)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return tokenize(context.ref, text.getBytes(StandardCharsets.UTF_8));
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets the text of a token. Resolved from the cached {@link WhisperVocabulary}, no native call is made after the first one.
+	 *
+	 * @param context a {@link WhisperContext} instance
+	 * @param token   token ID
+	 * @return token text
+	 */
+	public String tokenToString(WhisperContext context, int token)
+	{
+		return getVocabulary(context).getString(token);
+	}
+	
+	/**
+	 * Gets the raw UTF-8 text of a token, see {@link WhisperVocabulary#getUtf8(int)}.
+	 *
+	 * @param context a {@link WhisperContext} instance
+	 * @param token   token ID
+	 * @return token text as {@link Utf8Text}
+	 */
+	public Utf8Text tokenToUtf8(WhisperContext context, int token)
+	{
+		return getVocabulary(context).getUtf8(token);
+	}
+	
+	public String vadState(WhisperContext context, WhisperState state, WhisperFullParams params, WhisperVADContextParams vadContextParams, float[] samples, int numSamples)
+	{
+		WhisperEvents.VAD event = new WhisperEvents.VAD();
+		event.begin();
+		int result = -1;
+		int threads = 0;
+		// Runs the encoder on the state, whatever encode kept there is gone
+		state.encodedSamples = -1;
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			threads = threadCount(lease, params.nThreads);
+			byte[] text = vadStateBytes(context.ref, state.ref, params, vadContextParams, samples, numSamples, threads);
+			result = 0;
+			return text == null ? null : new String(text, StandardCharsets.UTF_8);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+			Reference.reachabilityFence(params.grammar);
+			if(event.shouldCommit())
+			{
+				event.set(context, params, vadContextParams, numSamples, threads, result);
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Detects the speech in the samples with the VAD model, without transcribing.
+	 *
+	 * <p>
+	 * The VAD model is loaded from {@link WhisperFullParams#vad_model_path} on every call and configured with {@link WhisperFullParams#vadParams}.
+	 * </p>
+	 *
+	 * @param params           a {@link WhisperFullParams} instance with the VAD configuration.
+	 * @param vadContextParams the {@link WhisperVADContextParams} used to load the VAD model.
+	 * @param samples          the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param numSamples       the number of audio samples provided.
+	 * @return the speech segments, empty if there is no speech
+	 */
+	public WhisperVADSegment[] detectSpeech(WhisperFullParams params, WhisperVADContextParams vadContextParams, float[] samples, int numSamples)
+	{
+		float[] bounds = vadSegments(params, vadContextParams, samples, numSamples);
+		WhisperVADSegment[] segments = new WhisperVADSegment[bounds.length / 2];
+		for(int i = 0; i < segments.length; i++)
+		{
+			// whisper.cpp reports centiseconds
+			segments[i] = new WhisperVADSegment(bounds[i * 2] / 100f, bounds[i * 2 + 1] / 100f);
+		}
+		return segments;
+	}
+	
+	/**
+	 * Gets the available number of text segments.
+	 *
+	 * @param state the {@link WhisperState} used to transcribe
+	 * @return available number of segments
+	 */
+	public int fullNSegmentsFromState(WhisperState state)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		try
+		{
+			return fullNSegmentsFromState(state.ref);
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+	}
+	
+	/**
+	 * Gets the available number of text segments.
+	 *
+	 * @param context the {@link WhisperContext} used to transcribe
+	 * @return available number of segments
+	 */
+	public int fullNSegments(WhisperContext context)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return fullNSegments(context.ref);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets start timestamp of text segment by index.
+	 *
+	 * @param context a {@link WhisperContext} used to transcribe
+	 * @param index   the segment index
+	 * @return start timestamp of segment text, 800 -> 8s
+	 */
+	public long fullGetSegmentTimestamp0(WhisperContext context, int index)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return fullGetSegmentTimestamp0(context.ref, index);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets end timestamp of text segment by index.
+	 *
+	 * @param context a {@link WhisperContext} used to transcribe
+	 * @param index   the segment index
+	 * @return end timestamp of segment text, 1050 -> 10.5s
+	 */
+	public long fullGetSegmentTimestamp1(WhisperContext context, int index)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return fullGetSegmentTimestamp1(context.ref, index);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets text segment by index.
+	 *
+	 * @param context a {@link WhisperContext} used to transcribe
+	 * @param index   the segment index
+	 * @return the segment text
+	 */
+	public String fullGetSegmentText(WhisperContext context, int index)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return new String(fullGetSegmentTextBytes(context.ref, index), StandardCharsets.UTF_8);
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets the raw UTF-8 text of a segment by index, the {@link String} is only created if asked for.
+	 *
+	 * @param context a {@link WhisperContext} used to transcribe
+	 * @param index   the segment index
+	 * @return the segment text as {@link Utf8Text}
+	 */
+	public Utf8Text fullGetSegmentUtf8(WhisperContext context, int index)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		try
+		{
+			return new Utf8Text(fullGetSegmentTextBytes(context.ref, index));
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+	}
+	
+	/**
+	 * Gets start timestamp of text segment by index.
+	 *
+	 * @param state a {@link WhisperState} used to transcribe
+	 * @param index the segment index
+	 * @return start timestamp of segment text, 1050 -> 10.5s
+	 */
+	public long fullGetSegmentTimestamp0FromState(WhisperState state, int index)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		try
+		{
+			return fullGetSegmentTimestamp0FromState(state.ref, index);
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+	}
+	
+	/**
+	 * Gets end timestamp of text segment by index.
+	 *
+	 * @param state a {@link WhisperState} used to transcribe
+	 * @param index the segment index
+	 * @return end timestamp of segment text, 1050 -> 10.5s
+	 */
+	public long fullGetSegmentTimestamp1FromState(WhisperState state, int index)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		try
+		{
+			return fullGetSegmentTimestamp1FromState(state.ref, index);
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+	}
+	
+	/**
+	 * Gets text segment by index.
+	 *
+	 * @param state a {@link WhisperState} used to transcribe
+	 * @param index the segment index
+	 * @return the segment text
+	 */
+	public String fullGetSegmentTextFromState(WhisperState state, int index)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		try
+		{
+			return new String(fullGetSegmentTextBytesFromState(state.ref, index), StandardCharsets.UTF_8);
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+	}
+	
+	/**
+	 * Gets the raw UTF-8 text of a segment by index, the {@link String} is only created if asked for.
+	 *
+	 * @param state a {@link WhisperState} used to transcribe
+	 * @param index the segment index
+	 * @return the segment text as {@link Utf8Text}
+	 */
+	public Utf8Text fullGetSegmentUtf8FromState(WhisperState state, int index)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		try
+		{
+			return new Utf8Text(fullGetSegmentTextBytesFromState(state.ref, index));
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+	}
+	
+	/**
+	 * Gets every text segment of the last transcription.
+	 *
+	 * @param context the {@link WhisperContext} used to transcribe
+	 * @return the segments, in order
+	 */
+	public WhisperSegment[] getSegments(WhisperContext context)
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		WhisperSegment[] segments;
+		try
+		{
+			segments = new WhisperSegment[fullNSegments(context.ref)];
+			for(int i = 0; i < segments.length; i++)
+			{
+				segments[i] = new WhisperSegment(fullGetSegmentTimestamp0(context.ref, i), fullGetSegmentTimestamp1(context.ref, i),
+						new String(fullGetSegmentTextBytes(context.ref, i), StandardCharsets.UTF_8));
+			}
+		} finally
+		{
+			Reference.reachabilityFence(context);
+		}
+		return segments;
+	}
+	
+	/**
+	 * Gets every text segment of the last transcription.
+	 *
+	 * @param state the {@link WhisperState} used to transcribe
+	 * @return the segments, in order
+	 */
+	public WhisperSegment[] getSegmentsFromState(WhisperState state)
+	{
+		WhisperJNIPointer.assertAvailable(state);
+		WhisperSegment[] segments;
+		try
+		{
+			segments = new WhisperSegment[fullNSegmentsFromState(state.ref)];
+			for(int i = 0; i < segments.length; i++)
+			{
+				segments[i] = new WhisperSegment(fullGetSegmentTimestamp0FromState(state.ref, i), fullGetSegmentTimestamp1FromState(state.ref, i),
+						new String(fullGetSegmentTextBytesFromState(state.ref, i), StandardCharsets.UTF_8));
+			}
+		} finally
+		{
+			Reference.reachabilityFence(state);
+		}
+		return segments;
+	}
+	
+	/**
+	 * Runs the encoder once on an audio window and keeps its output in the state, for {@link #decode(WhisperContext, WhisperState, WhisperFullParams)}.
+	 *
+	 * <p>
+	 * The encoder dominates the cost of larger models, so getting a transcript and a translation, or transcripts with different prompts, from one
+	 * encode is much cheaper than as many full calls. The output is kept until the next encode, full or VAD call on the state.
+	 * </p>
+	 *
+	 * @param context   the {@link WhisperContext} of the state.
+	 * @param state     the {@link WhisperState} keeping the encoder output.
+	 * @param samples   the audio samples (f32 encoded samples with sample rate 16000).
+	 * @param fromIndex the index of the first sample of the window.
+	 * @param length    the number of samples of the window, at most 30 seconds.
+	 * @param nThreads  number of threads, 0 for the whisper.cpp default or the {@link ThreadBudget} share.
+	 * @throws IOException if the encoder fails
+	 */
+	public void encode(WhisperContext context, WhisperState state, float[] samples, int fromIndex, int length, int nThreads) throws IOException
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		WhisperJNIPointer.assertAvailable(state);
+		Objects.checkFromIndexSize(fromIndex, length, samples.length);
+		if(length > ENCODER_WINDOW)
+		{
+			throw new IllegalArgumentException("The encoder window is 30 seconds, got " + length + " samples");
+		}
+		state.encodedSamples = -1;
+		int result;
+		try(ThreadBudget.Lease lease = acquireThreads(nThreads))
+		{
+			result = encodeRange(context.ref, state.ref, samples, fromIndex, length, lease == null ? nThreads : lease.threads());
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+		}
+		if(result != 0)
+		{
+			throw new IOException("Encoding failed with code " + result);
+		}
+		state.encodedSamples = length;
+	}
+	
+	/**
+	 * Decodes the encoder output kept by {@link #encode(WhisperContext, WhisperState, float[], int, int, int)}, without running the encoder again.
+	 *
+	 * <p>
+	 * {@link WhisperFullParams#translate}, {@link WhisperFullParams#language} ("auto" detects it from the encoder output),
+	 * {@link WhisperFullParams#initialPrompt}, {@link WhisperFullParams#noTimestamps}, {@link WhisperFullParams#suppressBlank} and
+	 * {@link WhisperFullParams#maxInitialTs}, {@link WhisperFullParams#suppressNonSpeechTokens} apply, and like the full calls decoding stops
+	 * when the last 32 tokens repeat below {@link WhisperFullParams#entropyThold}, and a window above {@link WhisperFullParams#noSpeechThold} with
+	 * an average log probability below {@link WhisperFullParams#logprobThold} gives no segments.
+	 * Decoding is greedy at temperature 0: params using beam search, another temperature or a grammar are rejected. Where the full calls would fall
+	 * back to a higher temperature, because the result fails the entropy or log probability threshold and {@link WhisperFullParams#temperatureInc}
+	 * is set, an {@link IOException} is thrown instead; with {@code temperatureInc} 0 the greedy result is returned.
+	 * </p>
+	 *
+	 * @param context the {@link WhisperContext} of the state.
+	 * @param state   the {@link WhisperState} holding the encoder output.
+	 * @param params  a {@link WhisperFullParams} instance with the desired configuration, using {@link WhisperSamplingStrategy#GREEDY}.
+	 * @return the segments, with timestamps relative to the encoded window
+	 * @throws IOException if decoding fails, the language is unknown or the result would need the temperature fallback
+	 * @throws IllegalArgumentException if the params use beam search, a temperature other than 0 or a grammar
+	 */
+	public WhisperSegment[] decode(WhisperContext context, WhisperState state, WhisperFullParams params) throws IOException
+	{
+		WhisperJNIPointer.assertAvailable(context);
+		WhisperJNIPointer.assertAvailable(state);
+		if(params.grammar != null)
+		{
+			throw new IllegalArgumentException("Grammars are only supported by the full calls");
+		}
+		if(params.getStrategy() == WhisperSamplingStrategy.BEAM_SEARCH)
+		{
+			throw new IllegalArgumentException("Beam search is only supported by the full calls");
+		}
+		if(params.temperature != 0)
+		{
+			throw new IllegalArgumentException("Decoding is greedy at temperature 0, got " + params.temperature);
+		}
+		int encodedSamples = state.encodedSamples;
+		if(encodedSamples < 0)
+		{
+			throw new IllegalStateException("The state holds no encoder output, call encode first");
+		}
+		int[] tokens;
+		float[] scores = new float[2];
+		try(ThreadBudget.Lease lease = acquireThreads(params))
+		{
+			tokens = decodeEncoded(context.ref, state.ref, params, scores, lease == null ? 0 : lease.threads());
+		} finally
+		{
+			Reference.reachabilityFence(context);
+			Reference.reachabilityFence(state);
+		}
+		if(tokens == null)
+		{
+			throw new IOException("Decoding failed");
+		}
+		float avgLogprob = scores[0];
+		float noSpeechProb = scores[1];
+		// The checks whisper_full makes before falling back to the next temperature, which it has when temperatureInc keeps it at most 1
+		boolean failed = (tokens.length > 32 && tailEntropy(tokens) < params.entropyThold)
+			|| (avgLogprob < params.logprobThold && noSpeechProb < params.noSpeechThold);
+		if(failed && params.temperatureInc > 0 && params.temperatureInc <= 1)
+		{
+			throw new IOException("Greedy decoding failed the entropyThold or logprobThold check, use the full calls for the temperature fallback or set temperatureInc to 0");
+		}
+		if(noSpeechProb > params.noSpeechThold && avgLogprob < params.logprobThold)
+		{
+			return new WhisperSegment[0];
+		}
+		WhisperVocabulary vocabulary = getVocabulary(context);
+		List<WhisperSegment> segments = new ArrayList<>();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		long start = 0;
+		for(int token : tokens)
+		{
+			if(token >= vocabulary.beg)
+			{
+				// Timestamp tokens count 20 ms steps, segments use centiseconds
+				long time = (token - vocabulary.beg) * 2L;
+				if(text.size() > 0)
+				{
+					segments.add(new WhisperSegment(start, time, text.toString(StandardCharsets.UTF_8)));
+					text.reset();
+				}
+				start = time;
+			} else if(!vocabulary.isSpecial(token))
+			{
+				text.writeBytes(vocabulary.getBytes(token));
+			}
+		}
+		if(text.size() > 0)
+		{
+			segments.add(new WhisperSegment(start, encodedSamples * 100L / SAMPLE_RATE, text.toString(StandardCharsets.UTF_8)));
+		}
+		return segments.toArray(new WhisperSegment[0]);
+	}
+	
+	/**
+	 * Release context memory in native implementation.
+	 *
+	 * @param context the {@link WhisperContext} to release
+	 */
+	public void free(WhisperJNIPointer context)
+	{
+		if(context.isReleased())
+		{
+			return;
+		}
+		context.release();
+	}
+	
+	/**
+	 * Release state memory in native implementation.
+	 *
+	 * @param state the {@link WhisperState} to release
+	 */
+	public void free(WhisperState state)
+	{
+		if(state.isReleased())
+		{
+			return;
+		}
+		state.release();
+	}
+	
+	/**
+	 * Release grammar memory in native implementation.
+	 *
+	 * @param grammar the {@link WhisperGrammar} to release
+	 */
+	public void free(WhisperGrammar grammar)
+	{
+		if(grammar.isReleased())
+		{
+			return;
+		}
+		grammar.release();
+	}
+	
+	/**
+	 * Get whisper.cpp system info stream, to check enabled features in whisper.
+	 *
 	 * @return the whisper.cpp system info stream.
 	 */
 	public String getSystemInfo()
@@ -552,19 +1470,55 @@ public class WhisperJNI {
 		return printSystemInfo();
 	}
 	
+	/**
+	 * Gets the approximated native memory held by the contexts, states and grammars that are not released yet, see
+	 * {@link WhisperJNIPointer#nativeMemoryBytes()}.
+	 *
+	 * @return native memory in bytes
+	 */
+	public static long getNativeMemoryBytes()
+	{
+		return WhisperJNIPointer.totalNativeMemoryBytes();
+	}
+	
+	/**
+	 * Gets the resident memory of the process as reported by the operating system.
+	 *
+	 * @return resident memory in bytes, or -1 if it is not available
+	 */
+	public static long getResidentMemoryBytes()
+	{
+		return residentMemoryBytes();
+	}
+	
 	/**
 	 * In order to avoid sharing pointers between the c++ and java, we use this util base class which holds a random integer id generated in the whisper.cpp
 	 * wrapper.
 	 *
+	 * <p>
+	 * Pointers should be closed explicitly. The ones that become unreachable while still open are released by a {@link Cleaner}, which logs a
+	 * warning, with the stack trace of their creation when {@link #TRACK_ALLOCATIONS_PROPERTY} is set. The natives only receive {@link #ref}, so every method passing it keeps the pointer
+	 * reachable with {@link Reference#reachabilityFence(Object)} until the native call returns, otherwise the {@link Cleaner} could free a
+	 * leaked pointer during its last call.
+	 * </p>
+	 *
 	 * @author Miguel Alvarez Díez - Initial contribution
 	 */
 	static abstract class WhisperJNIPointer implements AutoCloseable {
 		
+		private static final Cleaner CLEANER = Cleaner.create();
+		private static final AtomicLong NATIVE_MEMORY_BYTES = new AtomicLong();
+		/** Open pointers by ref, for the refs shared by several pointers, so their native memory is counted once */
+		private static final Map<Integer, Integer> SHARED_REFS = new HashMap<>();
+		private static final boolean TRACK_ALLOCATIONS = Boolean.getBoolean(TRACK_ALLOCATIONS_PROPERTY);
+		
 		/**
 		 * Native pointer reference identifier.
 		 */
 		protected final int ref;
-		private boolean released;
+		private volatile boolean released;
+		private NativeRelease nativeRelease;
+		private Cleaner.Cleanable cleanable;
 		
 		/**
 		 * Asserts the provided pointer is still available.
@@ -589,6 +1543,93 @@ public class WhisperJNI {
 			this.ref = ref;
 		}
 		
+		/**
+		 * Registers the native release of this pointer so it is freed by the {@link Cleaner} if the object becomes unreachable without being
+		 * closed.
+		 *
+		 * @param freeNative  action releasing the native data, must not reference this object
+		 * @param nativeBytes approximated native memory held by the pointer
+		 * @param <T>         pointer type
+		 * @return this pointer
+		 */
+		<T extends WhisperJNIPointer> T track(Runnable freeNative, long nativeBytes)
+		{
+			return track(freeNative, nativeBytes, false);
+		}
+		
+		/**
+		 * Registers the native release of this pointer, see {@link #track(Runnable, long)}.
+		 *
+		 * @param freeNative  action releasing the native data, must not reference this object
+		 * @param nativeBytes approximated native memory held by the pointer
+		 * @param shared      whether other pointers may have the same ref, the native memory is then only counted in the total while one of them is
+		 *                    open
+		 * @param <T>         pointer type
+		 * @return this pointer
+		 */
+		@SuppressWarnings("unchecked")
+		<T extends WhisperJNIPointer> T track(Runnable freeNative, long nativeBytes, boolean shared)
+		{
+			nativeRelease = new NativeRelease(getClass().getSimpleName(), ref, freeNative, Math.max(nativeBytes, 0), shared);
+			if(!shared || acquireSharedRef(ref))
+			{
+				NATIVE_MEMORY_BYTES.addAndGet(nativeRelease.bytes);
+			}
+			cleanable = CLEANER.register(this, nativeRelease);
+			return (T) this;
+		}
+		
+		/**
+		 * Counts a pointer opened on a shared ref.
+		 *
+		 * @return true if it is the only open pointer of the ref
+		 */
+		private static boolean acquireSharedRef(int ref)
+		{
+			synchronized(SHARED_REFS)
+			{
+				return SHARED_REFS.merge(ref, 1, Integer::sum) == 1;
+			}
+		}
+		
+		/**
+		 * Counts a pointer of a shared ref released.
+		 *
+		 * @return true if it was the last open pointer of the ref
+		 */
+		private static boolean releaseSharedRef(int ref)
+		{
+			synchronized(SHARED_REFS)
+			{
+				return SHARED_REFS.compute(ref, (key, count) -> count == 1 ? null : count - 1) == null;
+			}
+		}
+		
+		/**
+		 * Gets the approximated native memory held by this pointer.
+		 *
+		 * <p>
+		 * Contexts and states report the estimates of {@link ModelInfo} for their model, the same whatever else the process does. Grammars report
+		 * the size of the parsed rules, which are shared between grammars with the same text and counted once in {@link #totalNativeMemoryBytes()}.
+		 * </p>
+		 *
+		 * @return native memory in bytes, or 0 once the pointer is released
+		 */
+		public long nativeMemoryBytes()
+		{
+			return released || nativeRelease == null ? 0 : nativeRelease.bytes;
+		}
+		
+		/**
+		 * Gets the approximated native memory held by all the pointers that are not released yet.
+		 *
+		 * @return native memory in bytes
+		 */
+		static long totalNativeMemoryBytes()
+		{
+			return NATIVE_MEMORY_BYTES.get();
+		}
+		
 		/**
 		 * Return true if native memory is free
 		 *
@@ -600,12 +1641,155 @@ public class WhisperJNI {
 		}
 		
 		/**
-		 * Mark the point as released
+		 * Mark the point as released and free its native data
 		 */
 		void release()
 		{
 			released = true;
+			if(cleanable != null)
+			{
+				nativeRelease.closed = true;
+				// Cleanable.clean runs the release at most once
+				cleanable.clean();
+			}
+		}
+		
+		/**
+		 * Native release action, kept apart from the pointer so the {@link Cleaner} can run it once the pointer is unreachable.
+		 */
+		private static final class NativeRelease implements Runnable {
+			
+			private final String type;
+			private final int ref;
+			private final Runnable freeNative;
+			private final long bytes;
+			private final boolean shared;
+			private final Throwable allocationSite;
+			private volatile boolean closed;
+			
+			NativeRelease(String type, int ref, Runnable freeNative, long bytes, boolean shared)
+			{
+				this.type = type;
+				this.ref = ref;
+				this.freeNative = freeNative;
+				this.bytes = bytes;
+				this.shared = shared;
+				this.allocationSite = TRACK_ALLOCATIONS ? new Throwable("Allocation site of " + type + " " + ref) : null;
+			}
+			
+			@Override
+			public void run()
+			{
+				if(!closed && allocationSite != null)
+				{
+					LoggerFactory.getLogger(WhisperJNI.class).warn("{} {} was not closed, releasing {} native bytes", type, ref, bytes, allocationSite);
+				}
+				else if(!closed)
+				{
+					LoggerFactory.getLogger(WhisperJNI.class).warn("{} {} was not closed, releasing {} native bytes. Set -D{}=true to log where it was created",
+							type, ref, bytes, TRACK_ALLOCATIONS_PROPERTY);
+				}
+				// Counted before the native release, a pointer opened on the ref in between counts its memory again
+				boolean counted = !shared || releaseSharedRef(ref);
+				try
+				{
+					freeNative.run();
+				} finally
+				{
+					if(counted)
+					{
+						NATIVE_MEMORY_BYTES.addAndGet(-bytes);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Quantizes a ggml model file, like the quantize tool of whisper.cpp.
+	 *
+	 * @param input  the f32 or f16 model file
+	 * @param output the quantized model file, replaced if it exists, must not be the input
+	 * @param type   the {@link QuantType} of the weights
+	 * @return the {@link QuantizationReport} with the sizes before and after
+	 * @throws IOException if the input is missing or isn't a whisper model, or the output can't be written
+	 * @throws IllegalArgumentException if the model's rows don't fit the blocks of the type
+	 */
+	public QuantizationReport quantize(Path input, Path output, QuantType type) throws IOException
+	{
+		return quantize(input, output, type, null);
+	}
+	
+	/**
+	 * Quantizes a ggml model file, like the quantize tool of whisper.cpp.
+	 *
+	 * <p>
+	 * The progress listener is called on the calling thread, about every megabyte read, with the share of the input processed. An exception thrown
+	 * by the listener stops the quantization and is rethrown by this method.
+	 * </p>
+	 *
+	 * <p>
+	 * The model is written to a temporary file next to the output, which then atomically replaces it, so a failed or stopped run leaves an
+	 * existing output as it was.
+	 * </p>
+	 *
+	 * @param input    the f32 or f16 model file
+	 * @param output   the quantized model file, replaced if it exists, must not be the input
+	 * @param type     the {@link QuantType} of the weights
+	 * @param progress listener receiving the progress from 0 to 1, or <code>null</code>
+	 * @return the {@link QuantizationReport} with the sizes before and after
+	 * @throws IOException if the input is missing, isn't a whisper model or is the output, or the output can't be written
+	 * @throws IllegalArgumentException if the model's rows don't fit the blocks of the type, like the 384 wide tiny model with the k-quants
+	 */
+	public QuantizationReport quantize(Path input, Path output, QuantType type, DoubleConsumer progress) throws IOException
+	{
+		assertModelExists(input);
+		ModelInfo info = ModelInfo.inspect(input);
+		if(info.nAudioState % type.blockSize != 0 || info.nTextState % type.blockSize != 0)
+		{
+			throw new IllegalArgumentException(type + " needs rows that are a multiple of " + type.blockSize + ", the " + info.type
+					+ " model has " + info.nAudioState + " audio and " + info.nTextState + " text state");
 		}
+		if(Files.exists(output) && Files.isSameFile(input, output))
+		{
+			throw new IOException("The quantized model would overwrite its input: " + output);
+		}
+		long start = System.nanoTime();
+		// Same directory as the output, so the final move is a rename on the same file system
+		Path target = output.toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), ".quantize-", ".tmp");
+		boolean moved = false;
+		try
+		{
+			int result = quantize(input.toAbsolutePath().toString(), temp.toString(), type.ftype, progress);
+			if(result != 0)
+			{
+				throw new IOException(switch(result)
+				{
+					case -1 -> "Unable to open " + input + " or write next to " + output;
+					case -2 -> "Not a whisper model: " + input;
+					default -> "Quantization failed with code " + result;
+				});
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		} finally
+		{
+			if(!moved)
+			{
+				Files.deleteIfExists(temp);
+			}
+		}
+		return new QuantizationReport(type, Files.size(input), Files.size(output), (System.nanoTime() - start) / 1_000_000);
+	}
+	
+	/**
+	 * Identifies the weights of a model file: the same file replaced in place gets another size or modification time.
+	 */
+	private static String modelKey(Path model) throws IOException
+	{
+		Path file = model.toAbsolutePath().normalize();
+		return file + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file);
 	}
 	
 	private static void assertModelExists(Path model) throws IOException
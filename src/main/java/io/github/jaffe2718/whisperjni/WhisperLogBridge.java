@@ -0,0 +1,121 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+
+/**
+ * Forwards the whisper.cpp / ggml log lines queued by the natives to an SLF4J {@link Logger}.
+ *
+ * <p>
+ * The native log callback only copies messages into a lock-free ring buffer, so threads running inference never call into the JVM. A single daemon
+ * thread drains that buffer in batches and hands the messages to the logger.
+ * </p>
+ */
+final class WhisperLogBridge {
+	
+	// ggml_log_level values
+	private static final int LEVEL_DEBUG = 1;
+	private static final int LEVEL_INFO = 2;
+	private static final int LEVEL_WARN = 3;
+	private static final int LEVEL_ERROR = 4;
+	private static final int LEVEL_OFF = 6;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int WAIT_TIMEOUT_MS = 100;
+	
+	private static volatile Logger logger;
+	private static Thread drainThread;
+	
+	private WhisperLogBridge()
+	{
+		
+	}
+	
+	/**
+	 * Sets the logger, installs the native callback and starts the drain thread on first use.
+	 *
+	 * @param newLogger SLF4J {@link Logger}, or <code>null</code> to stop forwarding
+	 */
+	static synchronized void setLogger(Logger newLogger)
+	{
+		logger = newLogger;
+		// Filter on the native side so disabled levels are never queued
+		WhisperJNI.installLogProxy(minLevel(newLogger));
+		if(newLogger != null && drainThread == null)
+		{
+			drainThread = new Thread(WhisperLogBridge::drain, "whisper-jni-log");
+			drainThread.setDaemon(true);
+			drainThread.start();
+		}
+	}
+	
+	private static int minLevel(Logger logger)
+	{
+		if(logger == null)
+		{
+			return LEVEL_OFF;
+		}
+		if(logger.isDebugEnabled())
+		{
+			return LEVEL_DEBUG;
+		}
+		if(logger.isInfoEnabled())
+		{
+			return LEVEL_INFO;
+		}
+		if(logger.isWarnEnabled())
+		{
+			return LEVEL_WARN;
+		}
+		return logger.isErrorEnabled() ? LEVEL_ERROR : LEVEL_OFF;
+	}
+	
+	private static void drain()
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while(true)
+		{
+			int length = WhisperJNI.drainLog(buffer, WAIT_TIMEOUT_MS);
+			Logger current = logger;
+			int offset = 0;
+			// Records are [level:1][length:2, big endian][UTF-8 text]
+			while(offset < length)
+			{
+				int level = buffer[offset];
+				int textLength = ((buffer[offset + 1] & 0xFF) << 8) | (buffer[offset + 2] & 0xFF);
+				int textStart = offset + 3;
+				offset = textStart + textLength;
+				// Raw logs come with \n appended to them
+				int textEnd = offset;
+				while(textEnd > textStart && Character.isWhitespace(buffer[textEnd - 1]))
+				{
+					textEnd--;
+				}
+				if(current == null || textEnd == textStart)
+				{
+					continue;
+				}
+				String message = new String(buffer, textStart, textEnd - textStart, StandardCharsets.UTF_8);
+				try
+				{
+					log(current, level, message);
+				} catch(RuntimeException e)
+				{
+					// A failing appender must not kill the drain thread
+				}
+			}
+		}
+	}
+	
+	private static void log(Logger logger, int level, String message)
+	{
+		switch(level)
+		{
+			case LEVEL_ERROR -> logger.error(message);
+			case LEVEL_WARN -> logger.warn(message);
+			case LEVEL_DEBUG -> logger.debug(message);
+			default -> logger.info(message);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package io.github.jaffe2718.whisperjni;
+
+/**
+ * A transcribed text segment, see {@link WhisperJNI#getSegments(WhisperContext)} and {@link WhisperJNI#getSegmentsFromState(WhisperState)}.
+ */
+public class WhisperSegment {
+	
+	/** Start time of the segment in centiseconds, 800 -> 8s */
+	public final long t0;
+	/** End time of the segment in centiseconds, 1050 -> 10.5s */
+	public final long t1;
+	/** Text of the segment */
+	public final String text;
+	
+	public WhisperSegment(long t0, long t1, String text)
+	{
+		this.t0 = t0;
+		this.t1 = t1;
+		this.text = text;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "[" + t0 + " -> " + t1 + "]" + text;
+	}
+}
@@ -11,6 +11,8 @@ public class WhisperState extends WhisperJNI.WhisperJNIPointer {
 	
 	private final WhisperContext context;
 	private final WhisperJNI whisper;
+	volatile TranscriptionStats stats;
+	volatile int encodedSamples = -1;
 	
 	/**
 	 * The internal constructor for {@link WhisperState}
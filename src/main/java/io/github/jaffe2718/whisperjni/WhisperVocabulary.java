@@ -0,0 +1,144 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@link WhisperVocabulary} class is a Java side copy of the token table of a {@link WhisperContext}.
+ *
+ * <p>
+ * The vocabulary is fixed per model, so it is read once through the JNI and every lookup after that is a plain array
+ * access. Obtain an instance with {@link WhisperJNI#getVocabulary(WhisperContext)}.
+ * </p>
+ *
+ * <p>
+ * Token text is kept as the raw UTF-8 bytes produced by whisper.cpp. A single token may hold an incomplete multi-byte
+ * character, so prefer {@link #decode(int[])} over concatenating {@link #getString(int)} results when turning a
+ * sequence of ids back into text.
+ * </p>
+ */
+public class WhisperVocabulary {
+	
+	/** End of transcript token ID */
+	public final int eot;
+	/** Start of transcript token ID */
+	public final int sot;
+	/** Start of LM token ID */
+	public final int solm;
+	/** Previous text token ID */
+	public final int prev;
+	/** No speech token ID */
+	public final int nosp;
+	/** No timestamps token ID */
+	public final int not;
+	/** First timestamp token ID */
+	public final int beg;
+	/** Translate task token ID */
+	public final int translate;
+	/** Transcribe task token ID */
+	public final int transcribe;
+	
+	private final byte[][] tokenBytes;
+	private final String[] tokenStrings;
+	
+	/**
+	 * Internal vocabulary constructor
+	 *
+	 * @param tokenBytes    raw UTF-8 text of every token, indexed by token ID
+	 * @param specialTokens special token IDs in the order eot, sot, solm, prev, nosp, not, beg, translate, transcribe
+	 */
+	WhisperVocabulary(byte[][] tokenBytes, int[] specialTokens)
+	{
+		this.tokenBytes = tokenBytes;
+		this.tokenStrings = new String[tokenBytes.length];
+		this.eot = specialTokens[0];
+		this.sot = specialTokens[1];
+		this.solm = specialTokens[2];
+		this.prev = specialTokens[3];
+		this.nosp = specialTokens[4];
+		this.not = specialTokens[5];
+		this.beg = specialTokens[6];
+		this.translate = specialTokens[7];
+		this.transcribe = specialTokens[8];
+	}
+	
+	/**
+	 * Gets the vocabulary size.
+	 *
+	 * @return number of tokens known by the model
+	 */
+	public int size()
+	{
+		return tokenBytes.length;
+	}
+	
+	/**
+	 * Checks whether a token is a special token (end of transcript, task, language or timestamp tokens).
+	 *
+	 * @param token token ID
+	 * @return true if the token doesn't represent text
+	 */
+	public boolean isSpecial(int token)
+	{
+		return token >= eot;
+	}
+	
+	/**
+	 * Gets the raw UTF-8 text of a token. The returned array is shared, do not modify it.
+	 *
+	 * @param token token ID
+	 * @return token text as UTF-8 bytes
+	 */
+	public byte[] getBytes(int token)
+	{
+		return tokenBytes[token];
+	}
+	
+	/**
+	 * Gets the raw UTF-8 text of a token without decoding it.
+	 *
+	 * @param token token ID
+	 * @return token text as {@link Utf8Text}
+	 */
+	public Utf8Text getUtf8(int token)
+	{
+		return new Utf8Text(tokenBytes[token]);
+	}
+	
+	/**
+	 * Gets the text of a token. Strings are created on first use and cached afterwards.
+	 *
+	 * @param token token ID
+	 * @return token text
+	 */
+	public String getString(int token)
+	{
+		String text = tokenStrings[token];
+		if(text == null)
+		{
+			// Racing threads would create equal strings, so there is no need to synchronize
+			text = new String(tokenBytes[token], StandardCharsets.UTF_8);
+			tokenStrings[token] = text;
+		}
+		return text;
+	}
+	
+	/**
+	 * Decodes a sequence of token IDs into text. Special tokens are skipped.
+	 *
+	 * @param tokens token IDs
+	 * @return decoded text
+	 */
+	public String decode(int[] tokens)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(tokens.length * 4);
+		for(int token : tokens)
+		{
+			if(!isSpecial(token))
+			{
+				out.writeBytes(tokenBytes[token]);
+			}
+		}
+		return out.toString(StandardCharsets.UTF_8);
+	}
+}
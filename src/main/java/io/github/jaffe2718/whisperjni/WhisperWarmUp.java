@@ -0,0 +1,208 @@
+package io.github.jaffe2718.whisperjni;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link WhisperWarmUp} class primes contexts and states with synthetic transcriptions before they serve traffic.
+ *
+ * <p>
+ * The first transcription of a state allocates the compute buffers of the backend and runs with cold caches, so it is much slower than the
+ * following ones. Warming up runs that first call, and a few more to measure the warm latency, with the production {@link WhisperFullParams} on
+ * silence or on a clip given by the caller. Readiness probes can poll {@link #isReady()} or block on {@link #awaitReady(long, TimeUnit)}.
+ * </p>
+ */
+public class WhisperWarmUp {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(WhisperWarmUp.class);
+	
+	private final WhisperJNI whisper;
+	private final WhisperFullParams params;
+	private final float[] samples;
+	private final int runs;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile Report report;
+	
+	/**
+	 * Creates a warm up that transcribes two seconds of silence, once cold and twice warm.
+	 *
+	 * @param whisper the {@link WhisperJNI} instance to call
+	 * @param params  the {@link WhisperFullParams} used in production
+	 */
+	public WhisperWarmUp(WhisperJNI whisper, WhisperFullParams params)
+	{
+		this(whisper, params, new float[WhisperJNI.SAMPLE_RATE * 2], 3);
+	}
+	
+	/**
+	 * Creates a warm up.
+	 *
+	 * @param whisper the {@link WhisperJNI} instance to call
+	 * @param params  the {@link WhisperFullParams} used in production
+	 * @param samples the audio transcribed, at least one second since whisper.cpp skips shorter inputs
+	 * @param runs    number of transcriptions per state, the first one is the cold one
+	 */
+	public WhisperWarmUp(WhisperJNI whisper, WhisperFullParams params, float[] samples, int runs)
+	{
+		if(samples.length < WhisperJNI.SAMPLE_RATE)
+		{
+			throw new IllegalArgumentException("Warm up samples must last at least one second");
+		}
+		if(runs < 1)
+		{
+			throw new IllegalArgumentException("A warm up needs at least one run");
+		}
+		this.whisper = whisper;
+		this.params = params;
+		this.samples = samples;
+		this.runs = runs;
+	}
+	
+	/**
+	 * Warms up a context created with a state, using its default state.
+	 *
+	 * @param context the {@link WhisperContext} to warm up
+	 * @return the {@link Report}
+	 */
+	public Report warmUp(WhisperContext context)
+	{
+		return run(List.of(() -> whisper.full(context, params, samples, samples.length)));
+	}
+	
+	/**
+	 * Warms up every state of a pool.
+	 *
+	 * @param context the {@link WhisperContext} the states were created from
+	 * @param states  the {@link WhisperState} instances to warm up
+	 * @return the {@link Report}
+	 */
+	public Report warmUp(WhisperContext context, Collection<WhisperState> states)
+	{
+		return run(states.stream().<Transcription>map(state -> () -> whisper.fullWithState(context, state, params, samples, samples.length)).toList());
+	}
+	
+	private Report run(List<Transcription> targets)
+	{
+		long coldNanos = 0;
+		long warmNanos = 0;
+		int warmRuns = 0;
+		int failures = 0;
+		boolean completed = false;
+		try
+		{
+			for(Transcription target : targets)
+			{
+				for(int i = 0; i < runs; i++)
+				{
+					long start = System.nanoTime();
+					int result;
+					try
+					{
+						result = target.run();
+					} catch(RuntimeException e)
+					{
+						// e.g. a closed state
+						LOGGER.warn("Warm up transcription failed", e);
+						result = -1;
+					}
+					if(result != 0)
+					{
+						failures++;
+					}
+					long elapsed = System.nanoTime() - start;
+					if(i == 0)
+					{
+						coldNanos = Math.max(coldNanos, elapsed);
+					}
+					else
+					{
+						warmNanos += elapsed;
+						warmRuns++;
+					}
+				}
+			}
+			completed = true;
+		} finally
+		{
+			// An error escaping the runs must not leave the warm up ready
+			report = new Report(targets.size(), coldNanos / 1e6f, warmRuns == 0 ? Float.NaN : warmNanos / 1e6f / warmRuns,
+					completed ? failures : failures + 1);
+			done.countDown();
+		}
+		return report;
+	}
+	
+	/**
+	 * Checks whether the warm up finished without failures.
+	 *
+	 * @return true if ready to serve
+	 */
+	public boolean isReady()
+	{
+		Report current = report;
+		return current != null && current.failures == 0;
+	}
+	
+	/**
+	 * Waits for the warm up to finish.
+	 *
+	 * @param timeout maximum time to wait
+	 * @param unit    unit of the timeout
+	 * @return true if the warm up finished without failures, false if it failed or the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return done.await(timeout, unit) && isReady();
+	}
+	
+	/**
+	 * Gets the report of the last warm up.
+	 *
+	 * @return the {@link Report}, or <code>null</code> if no warm up finished yet
+	 */
+	public Report getReport()
+	{
+		return report;
+	}
+	
+	@FunctionalInterface
+	private interface Transcription {
+		int run();
+	}
+	
+	/**
+	 * Latencies measured by a warm up.
+	 */
+	public static final class Report {
+		
+		/** Number of states warmed up */
+		public final int states;
+		/** Latency of the slowest first call, in milliseconds */
+		public final float coldMs;
+		/** Average latency of the following calls, in milliseconds, {@link Float#NaN} with a single run */
+		public final float warmMs;
+		/** Number of calls that returned an error or threw */
+		public final int failures;
+		
+		Report(int states, float coldMs, float warmMs, int failures)
+		{
+			this.states = states;
+			this.coldMs = coldMs;
+			this.warmMs = warmMs;
+			this.failures = failures;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "WarmUp[states=%d, cold=%.1fms, warm=%.1fms, failures=%d]", states, coldMs, warmMs, failures);
+		}
+	}
+}
@@ -1,16 +1,63 @@
 #include <iostream>
+#include <cstdint>
+#include <cstdio>
 #include <cstring>
+#include <fstream>
 #include <queue>
+#include <atomic>
+#include <algorithm>
+#include <chrono>
+#include <cmath>
+#include <condition_variable>
 #include <map>
+#include <mutex>
+#include <string>
+#include <unordered_map>
+#include <vector>
 #include <jni.h>
+#if defined(_WIN32)
+#define WIN32_LEAN_AND_MEAN
+#define NOMINMAX
+// PSAPI_VERSION 2 maps GetProcessMemoryInfo to kernel32, no need to link psapi
+#define PSAPI_VERSION 2
+#include <windows.h>
+#include <psapi.h>
+#elif defined(__APPLE__)
+#include <mach/mach.h>
+#else
+#include <unistd.h>
+#endif
 #include "io_github_jaffe2718_whisperjni_WhisperJNI.h"
 #include "whisper.h"
 #include "grammar-parser.h"
+#include "common-ggml.h"
 
 
 std::map<int, whisper_context *> contextMap;
 std::map<int, whisper_state *> stateMap;
-std::map<int, grammar_parser::parse_state *> grammarMap;
+// Staging buffers of the ranged calls, one per state and one per context for its default state. They are reused, so a window only costs an
+// allocation when it is larger than the previous ones.
+std::map<int, std::vector<float>> stateStagingMap;
+std::map<int, std::vector<float>> contextStagingMap;
+// Guards contextMap, stateMap and the staging maps, handles can be freed from the Java cleaner thread
+std::mutex handleMutex;
+
+// A parsed grammar together with the rule pointers whisper_full expects, so they are built once instead of on every call.
+// Grammars are shared between identical texts and freed when the last Java reference is closed.
+struct whisper_jni_grammar
+{
+  grammar_parser::parse_state parsed;
+  std::vector<const whisper_grammar_element *> rules;
+  size_t startRule = 0;
+  bool hasRoot = false;
+  int refCount = 0;
+  std::string text;
+};
+
+std::map<int, whisper_jni_grammar *> grammarMap;
+// Grammar text -> grammar ref, the unordered_map hashes the content
+std::unordered_map<std::string, int> grammarCache;
+std::mutex grammarMutex;
 
 int getContextId()
 {
@@ -53,10 +100,83 @@ int getGrammarId()
 }
 int insertModel(whisper_context *ctx)
 {
+  std::lock_guard<std::mutex> lock(handleMutex);
   int ref = getContextId();
   contextMap.insert({ref, ctx});
   return ref;
 }
+int insertState(whisper_state *state)
+{
+  std::lock_guard<std::mutex> lock(handleMutex);
+  int ref = getStateId();
+  stateMap.insert({ref, state});
+  return ref;
+}
+whisper_context *getContext(int ref)
+{
+  std::lock_guard<std::mutex> lock(handleMutex);
+  return contextMap.at(ref);
+}
+whisper_state *getState(int ref)
+{
+  std::lock_guard<std::mutex> lock(handleMutex);
+  return stateMap.at(ref);
+}
+// References to std::map values stay valid while other entries are added or removed
+std::vector<float> &getStaging(std::map<int, std::vector<float>> &stagingMap, int ref, size_t size)
+{
+  std::vector<float> *buffer;
+  {
+    std::lock_guard<std::mutex> lock(handleMutex);
+    buffer = &stagingMap[ref];
+  }
+  if (buffer->size() < size)
+  {
+    buffer->resize(size);
+  }
+  return *buffer;
+}
+// Staging buffers only stay allocated up to a 30 s window, a single long range must not pin its size for the life of the handle
+const size_t MAX_KEPT_STAGING = 30 * WHISPER_SAMPLE_RATE;
+void trimStaging(std::vector<float> &staging)
+{
+  if (staging.capacity() > MAX_KEPT_STAGING)
+  {
+    std::vector<float>().swap(staging);
+  }
+}
+
+// Resident set size of the process, used to account the native memory taken by new handles
+int64_t residentMemoryBytes()
+{
+#if defined(_WIN32)
+  PROCESS_MEMORY_COUNTERS counters;
+  if (GetProcessMemoryInfo(GetCurrentProcess(), &counters, sizeof(counters)))
+  {
+    return static_cast<int64_t>(counters.WorkingSetSize);
+  }
+  return -1;
+#elif defined(__APPLE__)
+  mach_task_basic_info_data_t info;
+  mach_msg_type_number_t count = MACH_TASK_BASIC_INFO_COUNT;
+  if (task_info(mach_task_self(), MACH_TASK_BASIC_INFO, reinterpret_cast<task_info_t>(&info), &count) == KERN_SUCCESS)
+  {
+    return static_cast<int64_t>(info.resident_size);
+  }
+  return -1;
+#else
+  long pages = 0;
+  long residentPages = 0;
+  FILE *statm = fopen("/proc/self/statm", "r");
+  if (!statm)
+  {
+    return -1;
+  }
+  int read = fscanf(statm, "%ld %ld", &pages, &residentPages);
+  fclose(statm);
+  return read == 2 ? static_cast<int64_t>(residentPages) * sysconf(_SC_PAGESIZE) : -1;
+#endif
+}
 
 struct whisper_context_params newWhisperContextParams(JNIEnv *env, jobject jParams)
 {
@@ -86,6 +206,106 @@ void freeWhisperFullParams(JNIEnv *env, jobject jParams, whisper_full_params par
   }
 }
 
+// Per call timings, collected through the whisper.cpp callbacks so they are also available for calls made with a state.
+// The logits filter can be called concurrently by the decoder threads, hence the atomics.
+struct whisper_jni_call_stats
+{
+  int64_t startUs = 0;
+  int64_t endUs = 0;
+  std::atomic<int64_t> firstWindowUs{-1};
+  std::atomic<int64_t> windowStartUs{0};
+  std::atomic<int64_t> encodeUs{0};
+  std::atomic<int> windows{0};
+  std::atomic<int> attempts{0};
+  std::atomic<bool> encoding{false};
+  std::atomic<bool> attemptStarted{false};
+  float averages[5] = {NAN, NAN, NAN, NAN, NAN};
+};
+
+// Stats of the last call made by the current thread, read back by lastFullStats
+struct whisper_jni_last_stats
+{
+  float totalMs = 0;
+  float melMs = 0;
+  float encodeMs = 0;
+  float decodeMs = 0;
+  int windows = 0;
+  int fallbacks = 0;
+  float averages[5] = {NAN, NAN, NAN, NAN, NAN};
+};
+static thread_local whisper_jni_last_stats lastStats;
+
+static int64_t nowUs()
+{
+  return std::chrono::duration_cast<std::chrono::microseconds>(std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+static bool statsEncoderBegin(struct whisper_context *ctx, struct whisper_state *state, void *user_data)
+{
+  whisper_jni_call_stats *stats = static_cast<whisper_jni_call_stats *>(user_data);
+  int64_t now = nowUs();
+  int64_t unset = -1;
+  stats->firstWindowUs.compare_exchange_strong(unset, now);
+  stats->windowStartUs.store(now);
+  stats->windows.fetch_add(1);
+  stats->encoding.store(true);
+  stats->attemptStarted.store(false);
+  return true;
+}
+
+static void statsLogitsFilter(struct whisper_context *ctx, struct whisper_state *state, const whisper_token_data *tokens, int n_tokens, float *logits, void *user_data)
+{
+  whisper_jni_call_stats *stats = static_cast<whisper_jni_call_stats *>(user_data);
+  if (n_tokens > 0)
+  {
+    stats->attemptStarted.store(false);
+    return;
+  }
+  // Every decoder of an attempt starts with an empty sequence, only the first one marks a new attempt
+  if (!stats->attemptStarted.exchange(true))
+  {
+    stats->attempts.fetch_add(1);
+    if (stats->encoding.exchange(false))
+    {
+      stats->encodeUs.fetch_add(nowUs() - stats->windowStartUs.load());
+    }
+  }
+}
+
+// Thread count decided on the Java side (ThreadBudget), takes precedence over WhisperFullParams.nThreads
+void setWhisperFullParamsThreads(whisper_full_params &params, jint nThreads)
+{
+  if (nThreads > 0)
+  {
+    params.n_threads = nThreads;
+  }
+}
+
+void setWhisperFullParamsStats(whisper_full_params &params, whisper_jni_call_stats &stats)
+{
+  params.encoder_begin_callback = statsEncoderBegin;
+  params.encoder_begin_callback_user_data = &stats;
+  params.logits_filter_callback = statsLogitsFilter;
+  params.logits_filter_callback_user_data = &stats;
+  stats.startUs = nowUs();
+}
+
+void storeLastStats(whisper_jni_call_stats &stats)
+{
+  stats.endUs = nowUs();
+  int64_t firstWindowUs = stats.firstWindowUs.load();
+  int64_t totalUs = stats.endUs - stats.startUs;
+  int64_t melUs = firstWindowUs < 0 ? totalUs : firstWindowUs - stats.startUs;
+  int64_t encodeUs = stats.encodeUs.load();
+  lastStats.totalMs = totalUs / 1000.0f;
+  lastStats.melMs = melUs / 1000.0f;
+  lastStats.encodeMs = encodeUs / 1000.0f;
+  lastStats.decodeMs = std::max<int64_t>(totalUs - melUs - encodeUs, 0) / 1000.0f;
+  lastStats.windows = stats.windows.load();
+  lastStats.fallbacks = std::max(stats.attempts.load() - lastStats.windows, 0);
+  std::copy(std::begin(stats.averages), std::end(stats.averages), std::begin(lastStats.averages));
+}
+
 struct whisper_full_params newWhisperFullParams(JNIEnv *env, jobject jParams)
 {
   jclass paramsJClass = env->GetObjectClass(jParams);
@@ -171,6 +391,34 @@ struct whisper_full_params newWhisperFullParams(JNIEnv *env, jobject jParams)
   return params;
 }
 
+void setWhisperFullParamsGrammar(JNIEnv *env, jobject jParams, whisper_full_params &params)
+{
+  // The grammar field is a Java object, so it is handled apart from the plain values in newWhisperFullParams
+  jclass paramsJClass = env->GetObjectClass(jParams);
+  jobject jGrammar = env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "grammar", "Lio/github/jaffe2718/whisperjni/WhisperGrammar;"));
+  if (!jGrammar)
+  {
+    return;
+  }
+  jclass grammarJClass = env->GetObjectClass(jGrammar);
+  int grammarRef = env->GetIntField(jGrammar, env->GetFieldID(grammarJClass, "ref", "I"));
+  whisper_jni_grammar *grammar;
+  {
+    std::lock_guard<std::mutex> lock(grammarMutex);
+    grammar = grammarMap.at(grammarRef);
+  }
+  // The rule pointers are owned by the grammar, which outlives the call as the Java side holds a reference to it
+  if (grammar->hasRoot)
+  {
+    params.grammar_rules = grammar->rules.data();
+    params.n_grammar_rules = grammar->rules.size();
+    params.i_start_rule = grammar->startRule;
+    params.grammar_penalty = env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "grammarPenalty", "F"));
+  }
+}
+
+static void initLogRing();
+
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
   JNIEnv *env = NULL;
   jint result = -1;
@@ -179,6 +427,7 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     return result;
   }
 
+  initLogRing();
   ggml_backend_load_all();
   result = JNI_VERSION_1_4;
   return result;
@@ -267,59 +516,107 @@ JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_initNoStat
 
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_initState(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  int stateRef = getStateId();
-  whisper_state *state = whisper_init_state(contextMap.at(ctxRef));
+  whisper_state *state = whisper_init_state(getContext(ctxRef));
   if (!state)
   {
     return -1;
   }
-  stateMap.insert({stateRef, state});
-  return stateRef;
+  return insertState(state);
 }
 
 JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_initOpenVINOEncoder(JNIEnv *env, jobject thisObject, jint ctxRef, jstring deviceString)
 {
   const char *device = env->GetStringUTFChars(deviceString, NULL);
-  whisper_ctx_init_openvino_encoder(contextMap.at(ctxRef), nullptr, device, nullptr);
+  whisper_ctx_init_openvino_encoder(getContext(ctxRef), nullptr, device, nullptr);
   env->ReleaseStringUTFChars(deviceString, device);
 }
 
+// Hyperparameters in the order of the model header, after the magic
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_modelHparams(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context *ctx = getContext(ctxRef);
+  jint hparams[] = {
+      whisper_model_n_vocab(ctx), whisper_model_n_audio_ctx(ctx), whisper_model_n_audio_state(ctx), whisper_model_n_audio_head(ctx),
+      whisper_model_n_audio_layer(ctx), whisper_model_n_text_ctx(ctx), whisper_model_n_text_state(ctx), whisper_model_n_text_head(ctx),
+      whisper_model_n_text_layer(ctx), whisper_model_n_mels(ctx), whisper_model_ftype(ctx)};
+  jintArray result = env->NewIntArray(11);
+  env->SetIntArrayRegion(result, 0, 11, hparams);
+  return result;
+}
+
 JNIEXPORT jboolean JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_isMultilingual(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  return whisper_is_multilingual(contextMap.at(ctxRef));
+  return whisper_is_multilingual(getContext(ctxRef));
 }
 
-JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_full(JNIEnv *env, jobject thisObject, jint ctxRef, jobject jParams, jfloatArray samples, jint jNumSamples)
+// whisper_full on the default state of a context, with the timings only available there
+int fullWithContext(JNIEnv *env, jint ctxRef, jobject jParams, const float *samples, int numSamples, jint nThreads)
 {
-  int numSamples = static_cast<int>(jNumSamples);
   whisper_full_params params = newWhisperFullParams(env, jParams);
-  // I was unable to handle the grammar inside the newWhisperFullParams fn
-  jclass paramsJClass = env->GetObjectClass(jParams);
-  jobject jGrammar = env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "grammar", "Lio/github/jaffe2718/whisperjni/WhisperGrammar;"));
-  float grammarPenalty = env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "grammarPenalty", "F"));
-  std::vector<const whisper_grammar_element *> grammar_rules; // I don't know why, this one needs to be declared outside the 'if' statement.
-  if (jGrammar)
+  setWhisperFullParamsThreads(params, nThreads);
+  setWhisperFullParamsGrammar(env, jParams, params);
+  whisper_jni_call_stats stats;
+  setWhisperFullParamsStats(params, stats);
+  whisper_context *whisper_ctx = getContext(ctxRef);
+  // The averages of whisper.cpp accumulate over calls and are only available for the default state. They are not reset here, the callers of
+  // whisper_print_timings rely on them, and without the run counts they can't be turned into per call values
+  int result = whisper_full(whisper_ctx, params, samples, numSamples);
+  whisper_timings *timings = whisper_get_timings(whisper_ctx);
+  if (timings)
   {
-    jclass grammarJClass = env->GetObjectClass(jGrammar);
-    int grammarRef = env->GetIntField(jGrammar, env->GetFieldID(grammarJClass, "ref", "I"));
-    grammar_parser::parse_state *grammar_parsed = grammarMap.at(grammarRef);
-    grammar_rules = grammar_parsed->c_rules();
-    if (!grammar_parsed->rules.empty() && grammar_parsed->symbol_ids.find("root") != grammar_parsed->symbol_ids.end())
-    {
-      params.grammar_rules = grammar_rules.data();
-      params.n_grammar_rules = grammar_rules.size();
-      params.i_start_rule = grammar_parsed->symbol_ids.at("root");
-      params.grammar_penalty = grammarPenalty;
-    }
+    stats.averages[0] = timings->sample_ms;
+    stats.averages[1] = timings->encode_ms;
+    stats.averages[2] = timings->decode_ms;
+    stats.averages[3] = timings->batchd_ms;
+    stats.averages[4] = timings->prompt_ms;
+    // whisper_get_timings hands over a new allocation
+    delete timings;
   }
+  storeLastStats(stats);
+  freeWhisperFullParams(env, jParams, params);
+  return result;
+}
 
-  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
-  int result = whisper_full(contextMap.at(ctxRef), params, samplesPointer, numSamples);
+int fullWithState(JNIEnv *env, jint ctxRef, jint stateRef, jobject jParams, const float *samples, int numSamples, jint nThreads)
+{
+  whisper_full_params params = newWhisperFullParams(env, jParams);
+  setWhisperFullParamsThreads(params, nThreads);
+  setWhisperFullParamsGrammar(env, jParams, params);
+  whisper_jni_call_stats stats;
+  setWhisperFullParamsStats(params, stats);
+  int result = whisper_full_with_state(getContext(ctxRef), getState(stateRef), params, samples, numSamples);
+  storeLastStats(stats);
   freeWhisperFullParams(env, jParams, params);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_full(JNIEnv *env, jobject thisObject, jint ctxRef, jobject jParams, jfloatArray samples, jint jNumSamples, jint nThreads)
+{
+  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
+  int result = fullWithContext(env, ctxRef, jParams, samplesPointer, static_cast<int>(jNumSamples), nThreads);
   env->ReleaseFloatArrayElements(samples, samplesPointer, 0);
   return result;
 }
 
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullRange(JNIEnv *env, jobject thisObject, jint ctxRef, jobject jParams, jfloatArray samples, jint fromIndex, jint length, jint nThreads)
+{
+  // Only the range crosses JNI, the rest of the array is neither pinned nor copied
+  std::vector<float> &staging = getStaging(contextStagingMap, ctxRef, length);
+  env->GetFloatArrayRegion(samples, fromIndex, length, staging.data());
+  int result = fullWithContext(env, ctxRef, jParams, staging.data(), length, nThreads);
+  trimStaging(staging);
+  return result;
+}
+
+// Copies a C string into a Java byte array as is. NewStringUTF expects modified UTF-8, so it mangles 4 byte characters and incomplete sequences.
+static jbyteArray newUtf8Bytes(JNIEnv *env, const char *text)
+{
+  jsize length = text ? static_cast<jsize>(strlen(text)) : 0;
+  jbyteArray jBytes = env->NewByteArray(length);
+  env->SetByteArrayRegion(jBytes, 0, length, reinterpret_cast<const jbyte *>(text));
+  return jBytes;
+}
+
 // Ripped from whisper.cpp (not exposed in header file)
 // Time conversion utility functions for whisper VAD
 static int cs_to_samples(int64_t cs)
@@ -327,13 +624,8 @@ static int cs_to_samples(int64_t cs)
   return (int)((cs / 100.0) * WHISPER_SAMPLE_RATE + 0.5);
 }
 
-JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jobject jVADCxtParams, jfloatArray samples, jint jNumSamples)
+static whisper_vad_context_params newWhisperVADContextParams(JNIEnv *env, jobject jVADCxtParams)
 {
-  // Setup
-  whisper_full_params params = newWhisperFullParams(env, jParams);
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
-  whisper_state *state = stateMap.at(stateRef);
-
   // VAD context init with default params
   whisper_vad_context_params vadCtxParams = whisper_vad_default_context_params();
   // Fill from java class
@@ -347,6 +639,57 @@ JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadStat
   vadCtxParams.n_threads = env->GetIntField(jVADCxtParams, fid_n_threads);
   vadCtxParams.use_gpu = env->GetBooleanField(jVADCxtParams, fid_use_gpu);
   vadCtxParams.gpu_device = env->GetIntField(jVADCxtParams, fid_gpu_device);
+  return vadCtxParams;
+}
+
+JNIEXPORT jfloatArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadSegments(JNIEnv *env, jobject thisObject, jobject jParams, jobject jVADCxtParams, jfloatArray samples, jint jNumSamples)
+{
+  whisper_full_params params = newWhisperFullParams(env, jParams);
+  whisper_vad_context *vadCtx = whisper_vad_init_from_file_with_params(params.vad_model_path, newWhisperVADContextParams(env, jVADCxtParams));
+  if(!vadCtx)
+  {
+    freeWhisperFullParams(env, jParams, params);
+    env->ThrowNew(env->FindClass("java/lang/RuntimeException"), "Unable to load the VAD model");
+    return NULL;
+  }
+
+  // The samples are only read, no need to copy them back
+  jfloat *nativeSamples = env->GetFloatArrayElements(samples, NULL);
+  whisper_vad_segments *segments = whisper_vad_segments_from_samples(vadCtx, params.vad_params, nativeSamples, static_cast<int>(jNumSamples));
+  env->ReleaseFloatArrayElements(samples, nativeSamples, JNI_ABORT);
+  freeWhisperFullParams(env, jParams, params);
+  if(!segments)
+  {
+    whisper_vad_free(vadCtx);
+    env->ThrowNew(env->FindClass("java/lang/RuntimeException"), "VAD failed");
+    return NULL;
+  }
+
+  // Start and end of every segment, in centiseconds
+  int numSegments = whisper_vad_segments_n_segments(segments);
+  std::vector<jfloat> bounds(numSegments * 2);
+  for(int i = 0; i < numSegments; i++)
+  {
+    bounds[i * 2] = whisper_vad_segments_get_segment_t0(segments, i);
+    bounds[i * 2 + 1] = whisper_vad_segments_get_segment_t1(segments, i);
+  }
+  whisper_vad_free_segments(segments);
+  whisper_vad_free(vadCtx);
+  jfloatArray result = env->NewFloatArray(numSegments * 2);
+  env->SetFloatArrayRegion(result, 0, numSegments * 2, bounds.data());
+  return result;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadStateBytes(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jobject jVADCxtParams, jfloatArray samples, jint jNumSamples, jint nThreads)
+{
+  // Setup
+  whisper_full_params params = newWhisperFullParams(env, jParams);
+  setWhisperFullParamsThreads(params, nThreads);
+  whisper_context *whisper_ctx = getContext(ctxRef);
+  whisper_state *state = getState(stateRef);
+
+  // VAD context init with params from java class
+  whisper_vad_context_params vadCtxParams = newWhisperVADContextParams(env, jVADCxtParams);
 
   // Init VAD context using the params
   whisper_vad_context *vadCtx = whisper_vad_init_from_file_with_params(params.vad_model_path, vadCtxParams);
@@ -454,60 +797,486 @@ JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadStat
   env->ReleaseFloatArrayElements(samples, nativeSamples, 0);
   whisper_vad_free_segments(segments);
   whisper_vad_free(vadCtx);
-  return output.empty() ? NULL : env->NewStringUTF(output.c_str());
+  return output.empty() ? NULL : newUtf8Bytes(env, output.c_str());
 }
 
-JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint jNumSamples)
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint jNumSamples, jint nThreads)
 {
-  int numSamples = static_cast<int>(jNumSamples);
-  whisper_full_params params = newWhisperFullParams(env, jParams);
-  // I was unable to handle the grammar inside the newWhisperFullParams fn
-  jclass paramsJClass = env->GetObjectClass(jParams);
-  jobject jGrammar = env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "grammar", "Lio/github/jaffe2718/whisperjni/WhisperGrammar;"));
-  float grammarPenalty = env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "grammarPenalty", "F"));
-  std::vector<const whisper_grammar_element *> grammar_rules; // I don't know why, this one needs to be declared outside the 'if' statement.
-  if (jGrammar)
+  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
+  int result = fullWithState(env, ctxRef, stateRef, jParams, samplesPointer, static_cast<int>(jNumSamples), nThreads);
+  env->ReleaseFloatArrayElements(samples, samplesPointer, 0);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithStateRange(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint fromIndex, jint length, jint nThreads)
+{
+  // Only the range crosses JNI, the rest of the array is neither pinned nor copied
+  std::vector<float> &staging = getStaging(stateStagingMap, stateRef, length);
+  env->GetFloatArrayRegion(samples, fromIndex, length, staging.data());
+  int result = fullWithState(env, ctxRef, stateRef, jParams, staging.data(), length, nThreads);
+  trimStaging(staging);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithStateInterleaved(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint channel, jint channels, jint numFrames, jint nThreads)
+{
+  // De-interleave straight from the Java array into the staging buffer of the state, the only copy made
+  std::vector<float> &staging = getStaging(stateStagingMap, stateRef, numFrames);
+  jfloat *interleaved = static_cast<jfloat *>(env->GetPrimitiveArrayCritical(samples, NULL));
+  for (int i = 0; i < numFrames; i++)
+  {
+    staging[i] = interleaved[static_cast<size_t>(i) * channels + channel];
+  }
+  env->ReleasePrimitiveArrayCritical(samples, interleaved, JNI_ABORT);
+  int result = fullWithState(env, ctxRef, stateRef, jParams, staging.data(), numFrames, nThreads);
+  trimStaging(staging);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_encodeRange(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jfloatArray samples, jint fromIndex, jint length, jint nThreads)
+{
+  whisper_context *whisper_ctx = getContext(ctxRef);
+  whisper_state *state = getState(stateRef);
+  std::vector<float> &staging = getStaging(stateStagingMap, stateRef, length);
+  env->GetFloatArrayRegion(samples, fromIndex, length, staging.data());
+  int threads = nThreads > 0 ? nThreads : whisper_full_default_params(WHISPER_SAMPLING_GREEDY).n_threads;
+  int melResult = whisper_pcm_to_mel_with_state(whisper_ctx, state, staging.data(), length, threads);
+  trimStaging(staging);
+  if (melResult != 0)
   {
-    jclass grammarJClass = env->GetObjectClass(jGrammar);
-    int grammarRef = env->GetIntField(jGrammar, env->GetFieldID(grammarJClass, "ref", "I"));
-    grammar_parser::parse_state *grammar_parsed = grammarMap.at(grammarRef);
-    grammar_rules = grammar_parsed->c_rules();
-    if (!grammar_parsed->rules.empty() && grammar_parsed->symbol_ids.find("root") != grammar_parsed->symbol_ids.end())
+    return -1;
+  }
+  // The encoder output stays in the state, as the cross attention cache, until the next encode or full call
+  return whisper_encode_with_state(whisper_ctx, state, 0, threads) == 0 ? 0 : -2;
+}
+
+// The non_speech_tokens of whisper.cpp, suppressed along with their spaced variants when suppress_nst is set
+static const char *const NON_SPEECH_TOKENS[] = {
+    "\"", "#", "(", ")", "*", "+", "/", ":", ";", "<", "=", ">", "@", "[", "\\", "]", "^", "_", "`", "{", "|", "}", "~",
+    "\xe3\x80\x8c", "\xe3\x80\x8d", "\xe3\x80\x8e", "\xe3\x80\x8f", "<<", ">>", "<<<", ">>>", "--", "---", "-(", "-[", "('", "(\"", "((",
+    "))", "(((", ")))", "[[", "]]", "{{", "}}", "\xe2\x99\xaa\xe2\x99\xaa", "\xe2\x99\xaa\xe2\x99\xaa\xe2\x99\xaa", "\xe2\x99\xa9",
+    "\xe2\x99\xaa", "\xe2\x99\xab", "\xe2\x99\xac", "\xe2\x99\xad", "\xe2\x99\xae", "\xe2\x99\xaf"};
+
+// The tokens of the non speech strings that the vocabulary encodes as a single token
+std::vector<whisper_token> nonSpeechTokens(whisper_context *ctx)
+{
+  std::vector<whisper_token> result;
+  whisper_token buffer[4];
+  auto add = [&](const std::string &text)
+  {
+    if (whisper_tokenize(ctx, text.c_str(), buffer, 4) == 1)
     {
-      params.grammar_rules = grammar_rules.data();
-      params.n_grammar_rules = grammar_rules.size();
-      params.i_start_rule = grammar_parsed->symbol_ids.at("root");
-      params.grammar_penalty = grammarPenalty;
+      result.push_back(buffer[0]);
     }
+  };
+  for (const char *text : NON_SPEECH_TOKENS)
+  {
+    add(text);
+    add(std::string(" ") + text);
   }
-  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
-  int result = whisper_full_with_state(contextMap.at(ctxRef), stateMap.at(stateRef), params, samplesPointer, numSamples);
+  add(" -");
+  add(" '");
+  return result;
+}
+
+// Entropy of the token counts in the last 32 tokens, whisper_full counts a decoder as failed when it is below entropy_thold
+float tailEntropy(const std::vector<whisper_token> &tokens)
+{
+  const size_t window = std::min<size_t>(32, tokens.size());
+  std::map<whisper_token, int> counts;
+  for (size_t i = tokens.size() - window; i < tokens.size(); i++)
+  {
+    counts[tokens[i]]++;
+  }
+  double entropy = 0;
+  for (const auto &count : counts)
+  {
+    double p = static_cast<double>(count.second) / window;
+    entropy -= p * std::log(p);
+  }
+  return static_cast<float>(entropy);
+}
+
+// Greedy decoding against the encoder output already in the state. Follows the prompt layout, the token suppression and the timestamp rules
+// of whisper_full, without temperature fallback, beam search or grammar. Reports the average log probability of the sampled tokens and the
+// no speech probability, so the caller can apply the thresholds of whisper_full. Stops early when the last 32 tokens repeat below entropy_thold.
+bool decodeEncodedTokens(whisper_context *ctx, whisper_state *state, const whisper_full_params &params, std::vector<whisper_token> &tokens,
+                         float &avgLogprob, float &noSpeechProb)
+{
+  const int nVocab = whisper_n_vocab(ctx);
+  const int nMax = whisper_n_text_ctx(ctx) / 2 - 4;
+  const whisper_token eot = whisper_token_eot(ctx);
+  const whisper_token beg = whisper_token_beg(ctx);
+  const bool multilingual = whisper_is_multilingual(ctx);
+  std::vector<whisper_token> prompt;
+  if (params.initial_prompt && params.initial_prompt[0] != '\0')
+  {
+    std::vector<whisper_token> promptTokens(whisper_n_text_ctx(ctx));
+    int n = whisper_tokenize(ctx, params.initial_prompt, promptTokens.data(), static_cast<int>(promptTokens.size()));
+    if (n < 0)
+    {
+      return false;
+    }
+    // Like whisper_full, only the end of a long prompt is kept
+    int keep = std::min(n, nMax);
+    prompt.push_back(whisper_token_prev(ctx));
+    prompt.insert(prompt.end(), promptTokens.begin() + (n - keep), promptTokens.begin() + n);
+  }
+  prompt.push_back(whisper_token_sot(ctx));
+  int nPast = 0;
+  int langId = 0;
+  if (multilingual)
+  {
+    bool detect = params.language == nullptr || params.language[0] == '\0' || strcmp(params.language, "auto") == 0;
+    langId = detect ? -1 : whisper_lang_id(params.language);
+    if (!detect && langId < 0)
+    {
+      return false;
+    }
+    if (detect)
+    {
+      // The most likely language token after the start of transcript, the encoder output is reused
+      if (whisper_decode_with_state(ctx, state, prompt.data(), static_cast<int>(prompt.size()), 0, params.n_threads) != 0)
+      {
+        return false;
+      }
+      const float *logits = whisper_get_logits_from_state(state) + static_cast<size_t>(prompt.size() - 1) * nVocab;
+      langId = 0;
+      for (int i = 1; i <= whisper_lang_max_id(); i++)
+      {
+        if (logits[whisper_token_lang(ctx, i)] > logits[whisper_token_lang(ctx, langId)])
+        {
+          langId = i;
+        }
+      }
+      nPast = static_cast<int>(prompt.size());
+      prompt.clear();
+    }
+    prompt.push_back(whisper_token_lang(ctx, langId));
+    prompt.push_back(params.translate ? whisper_token_translate(ctx) : whisper_token_transcribe(ctx));
+  }
+  if (params.no_timestamps)
+  {
+    prompt.push_back(whisper_token_not(ctx));
+  }
+  if (whisper_decode_with_state(ctx, state, prompt.data(), static_cast<int>(prompt.size()), nPast, params.n_threads) != 0)
+  {
+    return false;
+  }
+  nPast += static_cast<int>(prompt.size());
+  const float *logits = whisper_get_logits_from_state(state) + static_cast<size_t>(prompt.size() - 1) * nVocab;
+  {
+    // Like whisper_full, from the logits before any suppression
+    const float maxLogit = *std::max_element(logits, logits + nVocab);
+    double total = 0;
+    for (int i = 0; i < nVocab; i++)
+    {
+      total += std::exp(logits[i] - maxLogit);
+    }
+    noSpeechProb = static_cast<float>(std::exp(logits[whisper_token_nosp(ctx)] - maxLogit) / total);
+  }
+  const std::vector<whisper_token> suppressed = params.suppress_nst ? nonSpeechTokens(ctx) : std::vector<whisper_token>();
+  double sumLogprob = 0;
+  int nSampled = 0;
+  avgLogprob = 0;
+  whisper_token space = -1;
+  whisper_tokenize(ctx, " ", &space, 1);
+  const int maxInitial = params.max_initial_ts > 0 ? std::min(beg + static_cast<int>(std::round(params.max_initial_ts / 0.02f)), nVocab - 1) : nVocab - 1;
+  const float minusInf = -INFINITY;
+  std::vector<float> scores(nVocab);
+  whisper_token lastTimestamp = beg;
+  while (static_cast<int>(tokens.size()) < nMax)
+  {
+    std::copy(logits, logits + nVocab, scores.begin());
+    bool initial = tokens.empty();
+    // Tokens between the end of transcript and the timestamps are task, language and control tokens
+    std::fill(scores.begin() + eot + 1, scores.begin() + beg, minusInf);
+    for (whisper_token id : suppressed)
+    {
+      scores[id] = minusInf;
+    }
+    if (initial && params.suppress_blank)
+    {
+      scores[eot] = minusInf;
+      if (space >= 0)
+      {
+        scores[space] = minusInf;
+      }
+    }
+    if (params.no_timestamps)
+    {
+      std::fill(scores.begin() + beg, scores.end(), minusInf);
+    }
+    else
+    {
+      bool lastWasTimestamp = !initial && tokens.back() >= beg;
+      bool penultimateWasTimestamp = tokens.size() < 2 || tokens[tokens.size() - 2] >= beg;
+      if (lastWasTimestamp)
+      {
+        // Timestamps come in pairs around text, except right before the end of transcript
+        if (penultimateWasTimestamp)
+        {
+          std::fill(scores.begin() + beg, scores.end(), minusInf);
+        }
+        else
+        {
+          std::fill(scores.begin(), scores.begin() + eot, minusInf);
+        }
+      }
+      if (initial)
+      {
+        std::fill(scores.begin(), scores.begin() + beg, minusInf);
+        std::fill(scores.begin() + maxInitial + 1, scores.end(), minusInf);
+      }
+      std::fill(scores.begin() + beg, scores.begin() + lastTimestamp, minusInf);
+      // Force a timestamp when they are together more likely than any text token
+      float maxScore = *std::max_element(scores.begin(), scores.end());
+      double textMax = minusInf;
+      double timestampSum = 0;
+      double total = 0;
+      for (int i = 0; i < nVocab; i++)
+      {
+        double weight = std::exp(scores[i] - maxScore);
+        total += weight;
+        if (i >= beg)
+        {
+          timestampSum += weight;
+        }
+        else if (scores[i] > textMax)
+        {
+          textMax = scores[i];
+        }
+      }
+      if (timestampSum > 0 && std::log(timestampSum / total) > textMax - maxScore - std::log(total))
+      {
+        std::fill(scores.begin(), scores.begin() + beg, minusInf);
+      }
+    }
+    whisper_token token = static_cast<whisper_token>(std::max_element(scores.begin(), scores.end()) - scores.begin());
+    {
+      const float maxScore = scores[token];
+      double total = 0;
+      for (int i = 0; i < nVocab; i++)
+      {
+        total += std::exp(scores[i] - maxScore);
+      }
+      sumLogprob -= std::log(total);
+      avgLogprob = static_cast<float>(sumLogprob / ++nSampled);
+    }
+    if (token == eot)
+    {
+      break;
+    }
+    tokens.push_back(token);
+    if (token >= beg)
+    {
+      lastTimestamp = token;
+    }
+    if (tokens.size() > 32 && tailEntropy(tokens) < params.entropy_thold)
+    {
+      // A repetition loop, whisper_full would discard this decoder
+      break;
+    }
+    if (whisper_decode_with_state(ctx, state, &token, 1, nPast++, params.n_threads) != 0)
+    {
+      return false;
+    }
+    logits = whisper_get_logits_from_state(state);
+  }
+  return true;
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_decodeEncoded(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray jScores, jint nThreads)
+{
+  whisper_full_params params = newWhisperFullParams(env, jParams);
+  setWhisperFullParamsThreads(params, nThreads);
+  std::vector<whisper_token> tokens;
+  float scores[2] = {0, 0};
+  bool decoded = decodeEncodedTokens(getContext(ctxRef), getState(stateRef), params, tokens, scores[0], scores[1]);
   freeWhisperFullParams(env, jParams, params);
-  env->ReleaseFloatArrayElements(samples, samplesPointer, 0);
+  if (!decoded)
+  {
+    return NULL;
+  }
+  env->SetFloatArrayRegion(jScores, 0, 2, scores);
+  jintArray result = env->NewIntArray(static_cast<jsize>(tokens.size()));
+  env->SetIntArrayRegion(result, 0, static_cast<jsize>(tokens.size()), tokens.data());
+  return result;
+}
+
+// Forwards the reads of the quantizer to the model file and reports how far it got, ggml_common_quantize_0 reads sequentially.
+// Returning end of file stops the quantizer, which is how an exception thrown by the listener aborts it.
+class QuantizeProgressBuffer : public std::streambuf
+{
+public:
+  QuantizeProgressBuffer(JNIEnv *env, jobject listener, std::streambuf *source, int64_t total)
+      : env(env), listener(listener), source(source), total(total), buffer(1 << 20)
+  {
+    if (listener)
+    {
+      accept = env->GetMethodID(env->GetObjectClass(listener), "accept", "(D)V");
+    }
+  }
+  bool aborted = false;
+
+protected:
+  int_type underflow() override
+  {
+    if (aborted)
+    {
+      return traits_type::eof();
+    }
+    std::streamsize n = source->sgetn(buffer.data(), static_cast<std::streamsize>(buffer.size()));
+    if (n <= 0)
+    {
+      return traits_type::eof();
+    }
+    setg(buffer.data(), buffer.data(), buffer.data() + n);
+    consumed += n;
+    if (listener)
+    {
+      env->CallVoidMethod(listener, accept, total > 0 ? static_cast<jdouble>(consumed) / total : 0.0);
+      if (env->ExceptionCheck())
+      {
+        aborted = true;
+        return traits_type::eof();
+      }
+    }
+    return traits_type::to_int_type(buffer[0]);
+  }
+
+private:
+  JNIEnv *env;
+  jobject listener;
+  jmethodID accept = nullptr;
+  std::streambuf *source;
+  int64_t total;
+  int64_t consumed = 0;
+  std::vector<char> buffer;
+};
+
+// Adapted from whisper_model_quantize of the whisper.cpp quantize example: copies the header, mel filters and vocabulary, then quantizes the
+// tensors with the ggml helper
+int quantizeModel(JNIEnv *env, const char *inputPath, const char *outputPath, ggml_ftype ftype, jobject listener)
+{
+  std::ifstream finp(inputPath, std::ios::binary | std::ios::ate);
+  if (!finp)
+  {
+    return -1;
+  }
+  int64_t total = finp.tellg();
+  finp.seekg(0);
+  std::ofstream fout(outputPath, std::ios::binary);
+  if (!fout)
+  {
+    return -1;
+  }
+  QuantizeProgressBuffer progress(env, listener, finp.rdbuf(), total);
+  static_cast<std::istream &>(finp).rdbuf(&progress);
+  uint32_t magic = 0;
+  finp.read(reinterpret_cast<char *>(&magic), sizeof(magic));
+  if (magic != GGML_FILE_MAGIC)
+  {
+    return progress.aborted ? -4 : -2;
+  }
+  fout.write(reinterpret_cast<char *>(&magic), sizeof(magic));
+  // n_vocab, n_audio_ctx, n_audio_state, n_audio_head, n_audio_layer, n_text_ctx, n_text_state, n_text_head, n_text_layer, n_mels, ftype
+  int32_t hparams[11];
+  finp.read(reinterpret_cast<char *>(hparams), sizeof(hparams));
+  hparams[10] = GGML_QNT_VERSION * GGML_QNT_VERSION_FACTOR + ftype;
+  fout.write(reinterpret_cast<char *>(hparams), sizeof(hparams));
+  int32_t nMel = 0;
+  int32_t nFft = 0;
+  finp.read(reinterpret_cast<char *>(&nMel), sizeof(nMel));
+  finp.read(reinterpret_cast<char *>(&nFft), sizeof(nFft));
+  if (!finp || nMel < 0 || nFft < 0)
+  {
+    return progress.aborted ? -4 : -2;
+  }
+  fout.write(reinterpret_cast<char *>(&nMel), sizeof(nMel));
+  fout.write(reinterpret_cast<char *>(&nFft), sizeof(nFft));
+  std::vector<float> filters(static_cast<size_t>(nMel) * nFft);
+  finp.read(reinterpret_cast<char *>(filters.data()), filters.size() * sizeof(float));
+  fout.write(reinterpret_cast<char *>(filters.data()), filters.size() * sizeof(float));
+  int32_t nVocab = 0;
+  finp.read(reinterpret_cast<char *>(&nVocab), sizeof(nVocab));
+  fout.write(reinterpret_cast<char *>(&nVocab), sizeof(nVocab));
+  std::string word;
+  for (int i = 0; i < nVocab && finp; i++)
+  {
+    uint32_t length = 0;
+    finp.read(reinterpret_cast<char *>(&length), sizeof(length));
+    word.resize(length);
+    finp.read(word.data(), length);
+    fout.write(reinterpret_cast<char *>(&length), sizeof(length));
+    fout.write(word.data(), length);
+  }
+  if (!finp)
+  {
+    return progress.aborted ? -4 : -2;
+  }
+  // Kept in full precision, like the quantize example
+  const std::vector<std::string> toSkip = {"encoder.conv1.bias", "encoder.conv2.bias", "encoder.positional_embedding", "decoder.positional_embedding"};
+  bool quantized = ggml_common_quantize_0(finp, fout, ftype, {".*"}, toSkip);
+  if (progress.aborted)
+  {
+    return -4;
+  }
+  fout.close();
+  return quantized && fout ? 0 : -3;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_quantize(JNIEnv *env, jclass thisClass, jstring input, jstring output, jint ftype, jobject listener)
+{
+  const char *inputPath = env->GetStringUTFChars(input, NULL);
+  const char *outputPath = env->GetStringUTFChars(output, NULL);
+  int result = quantizeModel(env, inputPath, outputPath, static_cast<ggml_ftype>(ftype), listener);
+  env->ReleaseStringUTFChars(input, inputPath);
+  env->ReleaseStringUTFChars(output, outputPath);
   return result;
 }
 
 // START SUPASULLEY EPIC METHODS
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullNTokens(JNIEnv *env, jobject thisObject, jint ctxRef, jint segment)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(ctxRef);
   return whisper_full_n_tokens(whisper_ctx, segment);
 }
 
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullNTokensFromState(JNIEnv *env, jobject thisObject, jint stateRef, jint segment)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(stateRef);
   return whisper_full_n_tokens_from_state(state, segment);
 }
 
-static jobject createTokenData(JNIEnv *env, const char *tokenText, whisper_token_data td)
+JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_lastFullStats(JNIEnv *env, jclass thisClass, jint numSamples)
+{
+  jclass cls = env->FindClass("io/github/jaffe2718/whisperjni/TranscriptionStats");
+  jmethodID ctor = env->GetMethodID(cls, "<init>", "(IFFFFIIFFFFF)V");
+  jobject obj = env->NewObject(cls, ctor,
+                               numSamples,
+                               (jfloat)lastStats.totalMs,
+                               (jfloat)lastStats.melMs,
+                               (jfloat)lastStats.encodeMs,
+                               (jfloat)lastStats.decodeMs,
+                               (jint)lastStats.windows,
+                               (jint)lastStats.fallbacks,
+                               (jfloat)lastStats.averages[0],
+                               (jfloat)lastStats.averages[1],
+                               (jfloat)lastStats.averages[2],
+                               (jfloat)lastStats.averages[3],
+                               (jfloat)lastStats.averages[4]);
+  env->DeleteLocalRef(cls);
+  return obj;
+}
+
+static jobject createTokenData(JNIEnv *env, jobject jVocabulary, whisper_token_data td)
 {
-  jstring jTok = env->NewStringUTF(tokenText);
-  // Build the java wrapper
+  // The text is resolved on the Java side from the cached vocabulary, so no string is created here
   jclass cls = env->FindClass("io/github/jaffe2718/whisperjni/TokenData");
-  jmethodID ctor = env->GetMethodID(cls, "<init>", "(Ljava/lang/String;IIFFFFJJJF)V");
+  jmethodID ctor = env->GetMethodID(cls, "<init>", "(Lio/github/jaffe2718/whisperjni/WhisperVocabulary;IIFFFFJJJF)V");
   jobject obj = env->NewObject(cls, ctor,
-                               jTok,
+                               jVocabulary,
                                (jint)td.id,
                                (jint)td.tid,
                                (jfloat)td.p,
@@ -519,45 +1288,129 @@ static jobject createTokenData(JNIEnv *env, const char *tokenText, whisper_token
                                (jlong)td.t_dtw,
                                (jfloat)td.vlen);
   // Prevent ref buildup
-  env->DeleteLocalRef(jTok);
+  env->DeleteLocalRef(cls);
   return obj;
 }
 
-JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getTokenData(JNIEnv *env, jobject thisObject, jint ctxRef, jint segment, jint token)
+JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getTokenData(JNIEnv *env, jobject thisObject, jint ctxRef, jint segment, jint token, jobject jVocabulary)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(ctxRef);
   whisper_token_data td = whisper_full_get_token_data(whisper_ctx, segment, token);
-  // Get the text of this token
-  const char *tokenText = whisper_full_get_token_text(whisper_ctx, segment, token);
-  return createTokenData(env, tokenText, td);
+  return createTokenData(env, jVocabulary, td);
 }
 
-JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getTokenDataFromState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jint segment, jint token)
+JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getTokenDataFromState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jint segment, jint token, jobject jVocabulary)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
-  whisper_state *state = stateMap.at(stateRef);
-  // God knows why this doesn't require the context but the text does...
+  whisper_state *state = getState(stateRef);
   whisper_token_data td = whisper_full_get_token_data_from_state(state, segment, token);
-  // Get the text of this token
-  const char *tokenText = whisper_full_get_token_text_from_state(whisper_ctx, state, segment, token);
-  return createTokenData(env, tokenText, td);
+  return createTokenData(env, jVocabulary, td);
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetTokenIds(JNIEnv *env, jobject thisObject, jint ctxRef, jint segment)
+{
+  whisper_context *whisper_ctx = getContext(ctxRef);
+  int nTokens = whisper_full_n_tokens(whisper_ctx, segment);
+  std::vector<jint> ids(nTokens);
+  for (int i = 0; i < nTokens; i++)
+  {
+    ids[i] = whisper_full_get_token_id(whisper_ctx, segment, i);
+  }
+  jintArray result = env->NewIntArray(nTokens);
+  env->SetIntArrayRegion(result, 0, nTokens, ids.data());
+  return result;
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetTokenIdsFromState(JNIEnv *env, jobject thisObject, jint stateRef, jint segment)
+{
+  whisper_state *state = getState(stateRef);
+  int nTokens = whisper_full_n_tokens_from_state(state, segment);
+  std::vector<jint> ids(nTokens);
+  for (int i = 0; i < nTokens; i++)
+  {
+    ids[i] = whisper_full_get_token_id_from_state(state, segment, i);
+  }
+  jintArray result = env->NewIntArray(nTokens);
+  env->SetIntArrayRegion(result, 0, nTokens, ids.data());
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_nVocab(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  return whisper_n_vocab(getContext(ctxRef));
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_tokenize(JNIEnv *env, jobject thisObject, jint ctxRef, jbyteArray jText)
+{
+  // The text comes as real UTF-8 bytes, GetStringUTFChars would hand us modified UTF-8
+  jsize length = env->GetArrayLength(jText);
+  std::string text(length, '\0');
+  env->GetByteArrayRegion(jText, 0, length, reinterpret_cast<jbyte *>(text.data()));
+  // There can't be more tokens than bytes
+  std::vector<whisper_token> tokens(length + 1);
+  int nTokens = whisper_tokenize(getContext(ctxRef), text.c_str(), tokens.data(), static_cast<int>(tokens.size()));
+  if (nTokens < 0)
+  {
+    jclass exClass = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exClass, "Unable to tokenize text");
+    return NULL;
+  }
+  jintArray result = env->NewIntArray(nTokens);
+  env->SetIntArrayRegion(result, 0, nTokens, reinterpret_cast<const jint *>(tokens.data()));
+  return result;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getVocabularyBytes(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context *whisper_ctx = getContext(ctxRef);
+  int nVocab = whisper_n_vocab(whisper_ctx);
+  jclass byteArrayClass = env->FindClass("[B");
+  jobjectArray result = env->NewObjectArray(nVocab, byteArrayClass, NULL);
+  env->DeleteLocalRef(byteArrayClass);
+  for (int i = 0; i < nVocab; i++)
+  {
+    // Raw bytes, tokens can hold incomplete UTF-8 sequences which NewStringUTF would mangle
+    jbyteArray jBytes = newUtf8Bytes(env, whisper_token_to_str(whisper_ctx, i));
+    env->SetObjectArrayElement(result, i, jBytes);
+    env->DeleteLocalRef(jBytes);
+  }
+  return result;
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getSpecialTokens(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context *whisper_ctx = getContext(ctxRef);
+  // Keep in sync with the WhisperVocabulary constructor
+  jint tokens[] = {
+      whisper_token_eot(whisper_ctx),
+      whisper_token_sot(whisper_ctx),
+      whisper_token_solm(whisper_ctx),
+      whisper_token_prev(whisper_ctx),
+      whisper_token_nosp(whisper_ctx),
+      whisper_token_not(whisper_ctx),
+      whisper_token_beg(whisper_ctx),
+      whisper_token_translate(whisper_ctx),
+      whisper_token_transcribe(whisper_ctx)};
+  jsize nTokens = sizeof(tokens) / sizeof(tokens[0]);
+  jintArray result = env->NewIntArray(nTokens);
+  env->SetIntArrayRegion(result, 0, nTokens, tokens);
+  return result;
 }
 
 // END TOKEN SCHENANIGANS
 
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullNSegments(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  return whisper_full_n_segments(contextMap.at(ctxRef));
+  return whisper_full_n_segments(getContext(ctxRef));
 }
 
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullNSegmentsFromState(JNIEnv *env, jobject thisObject, jint stateRef)
 {
-  return whisper_full_n_segments_from_state(stateMap.at(stateRef));
+  return whisper_full_n_segments_from_state(getState(stateRef));
 }
 
 JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTimestamp0(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(ctxRef);
   int nSegments = whisper_full_n_segments(whisper_ctx);
   if (nSegments < index + 1)
   {
@@ -570,7 +1423,7 @@ JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSe
 
 JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTimestamp1(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(ctxRef);
   int nSegments = whisper_full_n_segments(whisper_ctx);
   if (nSegments < index + 1)
   {
@@ -581,9 +1434,9 @@ JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSe
   return whisper_full_get_segment_t1(whisper_ctx, index);
 }
 
-JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentText(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
+JNIEXPORT jbyteArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTextBytes(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(ctxRef);
   int nSegments = whisper_full_n_segments(whisper_ctx);
   if (nSegments < index + 1)
   {
@@ -591,13 +1444,12 @@ JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGet
     env->ThrowNew(exClass, "Index out of range");
     return NULL;
   }
-  const char *text = whisper_full_get_segment_text(whisper_ctx, index);
-  return env->NewStringUTF(text);
+  return newUtf8Bytes(env, whisper_full_get_segment_text(whisper_ctx, index));
 }
 
 JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTimestamp0FromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(stateRef);
   int nSegments = whisper_full_n_segments_from_state(state);
   if (nSegments < index + 1)
   {
@@ -610,7 +1462,7 @@ JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSe
 
 JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTimestamp1FromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(stateRef);
   int nSegments = whisper_full_n_segments_from_state(state);
   if (nSegments < index + 1)
   {
@@ -621,9 +1473,9 @@ JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSe
   return whisper_full_get_segment_t1_from_state(state, index);
 }
 
-JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTextFromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
+JNIEXPORT jbyteArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTextBytesFromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(stateRef);
   int nSegments = whisper_full_n_segments_from_state(state);
   if (nSegments < index + 1)
   {
@@ -631,28 +1483,46 @@ JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGet
     env->ThrowNew(exClass, "Index out of range");
     return NULL;
   }
-  const char *text = whisper_full_get_segment_text_from_state(state, index);
-  return env->NewStringUTF(text);
+  return newUtf8Bytes(env, whisper_full_get_segment_text_from_state(state, index));
 }
 
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_loadGrammar(JNIEnv *env, jobject thisObject, jstring grammarText)
 {
   const char *grammarChars = env->GetStringUTFChars(grammarText, NULL);
-  grammar_parser::parse_state *grammarPointer = new grammar_parser::parse_state{};
+  std::string text(grammarChars);
+  env->ReleaseStringUTFChars(grammarText, grammarChars);
+
+  std::lock_guard<std::mutex> lock(grammarMutex);
+  auto cached = grammarCache.find(text);
+  if (cached != grammarCache.end())
+  {
+    // Same text, share the already parsed grammar
+    grammarMap.at(cached->second)->refCount++;
+    return cached->second;
+  }
+
+  whisper_jni_grammar *grammar = new whisper_jni_grammar{};
   try
   {
-    *grammarPointer = grammar_parser::parse(grammarChars);
+    grammar->parsed = grammar_parser::parse(text.c_str());
   }
   catch (const std::exception &e)
   {
-    env->ReleaseStringUTFChars(grammarText, grammarChars);
+    delete grammar;
     jclass exClass = env->FindClass("java/io/IOException");
     env->ThrowNew(exClass, e.what());
     return -1;
   }
-  env->ReleaseStringUTFChars(grammarText, grammarChars);
+  grammar->rules = grammar->parsed.c_rules();
+  auto root = grammar->parsed.symbol_ids.find("root");
+  grammar->hasRoot = !grammar->parsed.rules.empty() && root != grammar->parsed.symbol_ids.end();
+  grammar->startRule = grammar->hasRoot ? root->second : 0;
+  grammar->refCount = 1;
+  grammar->text = text;
+
   int grammarRef = getGrammarId();
-  grammarMap.insert({grammarRef, grammarPointer});
+  grammarMap.insert({grammarRef, grammar});
+  grammarCache.insert({text, grammarRef});
   return grammarRef;
 }
 
@@ -663,114 +1533,233 @@ JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_printSy
 }
 JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_freeContext(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  whisper_free(contextMap.at(ctxRef));
-  contextMap.erase(ctxRef);
+  whisper_context *ctx;
+  {
+    std::lock_guard<std::mutex> lock(handleMutex);
+    ctx = contextMap.at(ctxRef);
+    contextMap.erase(ctxRef);
+    contextStagingMap.erase(ctxRef);
+  }
+  whisper_free(ctx);
 }
 
 JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_freeState(JNIEnv *env, jobject thisObject, jint stateRef)
 {
-  whisper_free_state(stateMap.at(stateRef));
-  stateMap.erase(stateRef);
+  whisper_state *state;
+  {
+    std::lock_guard<std::mutex> lock(handleMutex);
+    state = stateMap.at(stateRef);
+    stateMap.erase(stateRef);
+    stateStagingMap.erase(stateRef);
+  }
+  whisper_free_state(state);
+}
+
+JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_residentMemoryBytes(JNIEnv *env, jclass thisClass)
+{
+  return residentMemoryBytes();
+}
+
+JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_grammarMemoryBytes(JNIEnv *env, jobject thisObject, jint grammarRef)
+{
+  std::lock_guard<std::mutex> lock(grammarMutex);
+  whisper_jni_grammar *grammar = grammarMap.at(grammarRef);
+  size_t bytes = sizeof(whisper_jni_grammar) + grammar->text.capacity() + grammar->rules.capacity() * sizeof(const whisper_grammar_element *);
+  for (const auto &rule : grammar->parsed.rules)
+  {
+    bytes += rule.capacity() * sizeof(whisper_grammar_element);
+  }
+  for (const auto &symbol : grammar->parsed.symbol_ids)
+  {
+    bytes += sizeof(symbol) + symbol.first.capacity();
+  }
+  return static_cast<jlong>(bytes);
 }
 JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_freeGrammar(JNIEnv *env, jobject thisClass, jint grammarRef)
 {
-  free(grammarMap.at(grammarRef));
-  stateMap.erase(grammarRef);
+  std::lock_guard<std::mutex> lock(grammarMutex);
+  whisper_jni_grammar *grammar = grammarMap.at(grammarRef);
+  if (--grammar->refCount > 0)
+  {
+    return;
+  }
+  grammarCache.erase(grammar->text);
+  grammarMap.erase(grammarRef);
+  delete grammar;
 }
 
 // Logging
-static jobject globalLoggerRef = NULL;
-static JavaVM *jvm = NULL;
+// whisper.cpp / ggml log from any thread, including inference threads, so the callback never calls into the JVM. Messages are
+// filtered by level, copied into a bounded lock-free ring (Vyukov MPMC queue) and drained in batches by a Java daemon thread.
+#define LOG_RING_SIZE 1024 // must be a power of two
+#define LOG_MESSAGE_SIZE 1024
+// Appended to the messages cut at LOG_MESSAGE_SIZE
+#define LOG_TRUNCATED " [truncated]"
+
+struct log_slot
+{
+  std::atomic<size_t> sequence;
+  int level;
+  int length;
+  char text[LOG_MESSAGE_SIZE];
+};
+
+static log_slot logRing[LOG_RING_SIZE];
+static std::atomic<size_t> logEnqueuePos{0};
+static std::atomic<size_t> logDequeuePos{0};
+static std::atomic<int> logMinLevel{GGML_LOG_LEVEL_CONT + 1}; // nothing until a logger is set
+static std::atomic<long> logDropped{0};
+static std::atomic<bool> logConsumerWaiting{false};
+static std::mutex logMutex;
+static std::condition_variable logCondition;
+// Level of the last message of this thread, GGML_LOG_LEVEL_CONT continues it
+static thread_local int logLastLevel = GGML_LOG_LEVEL_INFO;
+
+static void initLogRing()
+{
+  for (size_t i = 0; i < LOG_RING_SIZE; i++)
+  {
+    logRing[i].sequence.store(i, std::memory_order_relaxed);
+  }
+}
 
 static void whisper_log_proxy(enum ggml_log_level level, const char *text, void *user_data)
 {
-  if (!jvm || !globalLoggerRef || !text)
+  if (!text)
     return;
 
-  JNIEnv *env;
-  if (jvm->AttachCurrentThread((void **)&env, NULL) != JNI_OK)
+  int effectiveLevel = level;
+  if (level == GGML_LOG_LEVEL_CONT)
   {
-    return;
+    effectiveLevel = logLastLevel;
   }
-
-  jclass loggerClass = env->GetObjectClass(globalLoggerRef);
-  if (!loggerClass)
+  else if (level == GGML_LOG_LEVEL_NONE)
   {
-    jvm->DetachCurrentThread();
-    return;
+    effectiveLevel = GGML_LOG_LEVEL_INFO;
   }
-
-  jstring jMessage = env->NewStringUTF(text);
-  if (!jMessage)
+  logLastLevel = effectiveLevel;
+  if (effectiveLevel < logMinLevel.load(std::memory_order_relaxed))
   {
-    env->DeleteLocalRef(loggerClass);
-    jvm->DetachCurrentThread();
     return;
   }
 
-  jmethodID logMethod = NULL;
-
-  switch (level)
+  // Claim a slot, drop the message instead of waiting if the ring is full
+  log_slot *slot;
+  size_t pos = logEnqueuePos.load(std::memory_order_relaxed);
+  for (;;)
   {
-  case GGML_LOG_LEVEL_ERROR:
-    logMethod = env->GetMethodID(loggerClass, "error", "(Ljava/lang/String;)V");
-    break;
-  case GGML_LOG_LEVEL_WARN:
-    logMethod = env->GetMethodID(loggerClass, "warn", "(Ljava/lang/String;)V");
-    break;
-  case GGML_LOG_LEVEL_INFO:
-    logMethod = env->GetMethodID(loggerClass, "info", "(Ljava/lang/String;)V");
-    break;
-  case GGML_LOG_LEVEL_DEBUG:
-    logMethod = env->GetMethodID(loggerClass, "debug", "(Ljava/lang/String;)V");
-    break;
-  case GGML_LOG_LEVEL_CONT:
-  case GGML_LOG_LEVEL_NONE:
-  default:
-    // Treat CONT and NONE as INFO or skip
-    logMethod = env->GetMethodID(loggerClass, "info", "(Ljava/lang/String;)V");
-    break;
+    slot = &logRing[pos & (LOG_RING_SIZE - 1)];
+    size_t sequence = slot->sequence.load(std::memory_order_acquire);
+    intptr_t diff = (intptr_t)sequence - (intptr_t)pos;
+    if (diff == 0)
+    {
+      if (logEnqueuePos.compare_exchange_weak(pos, pos + 1, std::memory_order_relaxed))
+      {
+        break;
+      }
+    }
+    else if (diff < 0)
+    {
+      logDropped.fetch_add(1, std::memory_order_relaxed);
+      return;
+    }
+    else
+    {
+      pos = logEnqueuePos.load(std::memory_order_relaxed);
+    }
   }
+  size_t length = strnlen(text, LOG_MESSAGE_SIZE + 1);
+  if (length > LOG_MESSAGE_SIZE)
+  {
+    // Cut before the UTF-8 sequence the marker would split, continuation bytes are 10xxxxxx
+    size_t cut = LOG_MESSAGE_SIZE - (sizeof(LOG_TRUNCATED) - 1);
+    while (cut > 0 && (static_cast<unsigned char>(text[cut]) & 0xC0) == 0x80)
+    {
+      cut--;
+    }
+    memcpy(slot->text, text, cut);
+    memcpy(slot->text + cut, LOG_TRUNCATED, sizeof(LOG_TRUNCATED) - 1);
+    length = cut + sizeof(LOG_TRUNCATED) - 1;
+  }
+  else
+  {
+    memcpy(slot->text, text, length);
+  }
+  slot->length = static_cast<int>(length);
+  slot->level = effectiveLevel;
+  slot->sequence.store(pos + 1, std::memory_order_release);
 
-  if (logMethod)
+  if (logConsumerWaiting.load(std::memory_order_acquire))
   {
-    // Raw logs come with \n bs appended to them so we're going to call Java's .stripTrailing
-    jclass stringClass = env->FindClass("java/lang/String");
-    jmethodID stripTrailingMethod = env->GetMethodID(stringClass, "stripTrailing", "()Ljava/lang/String;");
-    jobject strippedMessage = env->CallObjectMethod(jMessage, stripTrailingMethod);
-    // Pass the stripped message to the logger
-    env->CallVoidMethod(globalLoggerRef, logMethod, strippedMessage);
-    env->DeleteLocalRef(strippedMessage);
-    env->DeleteLocalRef(stringClass);
+    logCondition.notify_one();
   }
+}
 
-  env->DeleteLocalRef(jMessage);
-  env->DeleteLocalRef(loggerClass);
+// Appends a [level:1][length:2, big endian][text] record
+static void appendLogRecord(std::vector<char> &out, int level, const char *text, int length)
+{
+  out.push_back(static_cast<char>(level));
+  out.push_back(static_cast<char>((length >> 8) & 0xFF));
+  out.push_back(static_cast<char>(length & 0xFF));
+  out.insert(out.end(), text, text + length);
+}
 
-  jvm->DetachCurrentThread();
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    installLogProxy
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_installLogProxy(JNIEnv *env, jclass thisClass, jint minLevel)
+{
+  logMinLevel.store(minLevel, std::memory_order_relaxed);
+  whisper_log_set(whisper_log_proxy, nullptr);
 }
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
- * Method:    setLogger
- * Signature: (Lorg/slf4j/Logger;)V
+ * Method:    drainLog
+ * Signature: ([BI)I
  */
-JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_setLogger(JNIEnv *env, jclass thisClass, jobject logger)
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_drainLog(JNIEnv *env, jclass thisClass, jbyteArray jBuffer, jint timeoutMs)
 {
-  // We need this for later
-  if (!jvm && env->GetJavaVM(&jvm) != JNI_OK)
+  // Only called from the single Java drain thread
+  size_t capacity = static_cast<size_t>(env->GetArrayLength(jBuffer));
+  std::vector<char> out;
+  out.reserve(capacity);
+
+  long dropped = logDropped.exchange(0, std::memory_order_relaxed);
+  if (dropped > 0)
   {
-    jclass exClass = env->FindClass("java/lang/RuntimeException");
-    env->ThrowNew(exClass, "Failed getting reference to Java VM");
-    return;
+    char text[64];
+    int length = snprintf(text, sizeof(text), "Dropped %ld whisper.cpp log messages", dropped);
+    appendLogRecord(out, GGML_LOG_LEVEL_WARN, text, length);
   }
-  // Clean up previous logger reference
-  if (globalLoggerRef != NULL)
+
+  for (int attempt = 0; attempt < 2; attempt++)
   {
-    env->DeleteGlobalRef(globalLoggerRef);
+    size_t pos = logDequeuePos.load(std::memory_order_relaxed);
+    for (;;)
+    {
+      log_slot *slot = &logRing[pos & (LOG_RING_SIZE - 1)];
+      if (slot->sequence.load(std::memory_order_acquire) != pos + 1 || out.size() + 3 + slot->length > capacity)
+      {
+        break;
+      }
+      appendLogRecord(out, slot->level, slot->text, slot->length);
+      slot->sequence.store(pos + LOG_RING_SIZE, std::memory_order_release);
+      logDequeuePos.store(++pos, std::memory_order_relaxed);
+    }
+    if (!out.empty() || attempt > 0 || timeoutMs <= 0)
+    {
+      break;
+    }
+    // Nothing queued, sleep until a producer wakes us up or the timeout expires
+    std::unique_lock<std::mutex> lock(logMutex);
+    logConsumerWaiting.store(true, std::memory_order_release);
+    logCondition.wait_for(lock, std::chrono::milliseconds(timeoutMs));
+    logConsumerWaiting.store(false, std::memory_order_release);
   }
-  // Store new logger as a global reference
-  globalLoggerRef = env->NewGlobalRef(logger);
-  // Register the proxy log function
-  whisper_log_set(whisper_log_proxy, nullptr);
-}
\ No newline at end of file
+
+  env->SetByteArrayRegion(jBuffer, 0, static_cast<jsize>(out.size()), reinterpret_cast<const jbyte *>(out.data()));
+  return static_cast<jint>(out.size());
+}
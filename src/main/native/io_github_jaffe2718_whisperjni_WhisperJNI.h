@@ -7,6 +7,10 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef io_github_jaffe2718_whisperjni_WhisperJNI_SAMPLE_RATE
+#define io_github_jaffe2718_whisperjni_WhisperJNI_SAMPLE_RATE 16000L
+#undef io_github_jaffe2718_whisperjni_WhisperJNI_ENCODER_WINDOW
+#define io_github_jaffe2718_whisperjni_WhisperJNI_ENCODER_WINDOW 480000L
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    init
@@ -18,7 +22,7 @@ JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_init
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    initFromInputStream
- * Signature: (Ljava/io/InputStream;Lio/github/jaffe2718/whisperjni/WhisperContextParams;)I
+ * Signature: (Ljava/io/InputStream;Lio/github/jaffe2718/whisperjni/WhisperContextParams;Z)I
  */
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_initFromInputStream
   (JNIEnv *, jobject, jobject, jobject, jboolean);
@@ -63,22 +67,78 @@ JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_initOpenVI
 JNIEXPORT jboolean JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_isMultilingual
   (JNIEnv *, jobject, jint);
 
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    modelHparams
+ * Signature: (I)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_modelHparams
+  (JNIEnv *, jobject, jint);
+
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    full
- * Signature: (ILio/github/jaffe2718/whisperjni/WhisperFullParams;[FI)I
+ * Signature: (ILio/github/jaffe2718/whisperjni/WhisperFullParams;[FII)I
  */
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_full
-  (JNIEnv *, jobject, jint, jobject, jfloatArray, jint);
+  (JNIEnv *, jobject, jint, jobject, jfloatArray, jint, jint);
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    fullWithState
- * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;[FI)I
+ * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;[FII)I
  */
 JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithState
+  (JNIEnv *, jobject, jint, jint, jobject, jfloatArray, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    fullRange
+ * Signature: (ILio/github/jaffe2718/whisperjni/WhisperFullParams;[FIII)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullRange
+  (JNIEnv *, jobject, jint, jobject, jfloatArray, jint, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    fullWithStateRange
+ * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;[FIII)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithStateRange
+  (JNIEnv *, jobject, jint, jint, jobject, jfloatArray, jint, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    fullWithStateInterleaved
+ * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;[FIIII)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullWithStateInterleaved
+  (JNIEnv *, jobject, jint, jint, jobject, jfloatArray, jint, jint, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    encodeRange
+ * Signature: (II[FIII)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_encodeRange
+  (JNIEnv *, jobject, jint, jint, jfloatArray, jint, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    decodeEncoded
+ * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;[FI)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_decodeEncoded
   (JNIEnv *, jobject, jint, jint, jobject, jfloatArray, jint);
 
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    lastFullStats
+ * Signature: (I)Lio/github/jaffe2718/whisperjni/TranscriptionStats;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_lastFullStats
+  (JNIEnv *, jclass, jint);
+
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    fullNTokens
@@ -98,26 +158,82 @@ JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullNToken
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    getTokenData
- * Signature: (III)Lio/github/jaffe2718/whisperjni/TokenData;
+ * Signature: (IIILio/github/jaffe2718/whisperjni/WhisperVocabulary;)Lio/github/jaffe2718/whisperjni/TokenData;
  */
 JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getTokenData
-  (JNIEnv *, jobject, jint, jint, jint);
+  (JNIEnv *, jobject, jint, jint, jint, jobject);
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    getTokenDataFromState
- * Signature: (IIII)Lio/github/jaffe2718/whisperjni/TokenData;
+ * Signature: (IIIILio/github/jaffe2718/whisperjni/WhisperVocabulary;)Lio/github/jaffe2718/whisperjni/TokenData;
  */
 JNIEXPORT jobject JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getTokenDataFromState
-  (JNIEnv *, jobject, jint, jint, jint, jint);
+  (JNIEnv *, jobject, jint, jint, jint, jint, jobject);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    fullGetTokenIds
+ * Signature: (II)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetTokenIds
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    fullGetTokenIdsFromState
+ * Signature: (II)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetTokenIdsFromState
+  (JNIEnv *, jobject, jint, jint);
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
- * Method:    vadState
- * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;Lio/github/jaffe2718/whisperjni/WhisperVADContextParams;[FI)Ljava/lang/String;
+ * Method:    nVocab
+ * Signature: (I)I
  */
-JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadState
-  (JNIEnv *, jobject, jint, jint, jobject, jobject, jfloatArray, jint);
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_nVocab
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    tokenize
+ * Signature: (I[B)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_tokenize
+  (JNIEnv *, jobject, jint, jbyteArray);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    getVocabularyBytes
+ * Signature: (I)[[B
+ */
+JNIEXPORT jobjectArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getVocabularyBytes
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    getSpecialTokens
+ * Signature: (I)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_getSpecialTokens
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    vadStateBytes
+ * Signature: (IILio/github/jaffe2718/whisperjni/WhisperFullParams;Lio/github/jaffe2718/whisperjni/WhisperVADContextParams;[FII)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadStateBytes
+  (JNIEnv *, jobject, jint, jint, jobject, jobject, jfloatArray, jint, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    vadSegments
+ * Signature: (Lio/github/jaffe2718/whisperjni/WhisperFullParams;Lio/github/jaffe2718/whisperjni/WhisperVADContextParams;[FI)[F
+ */
+JNIEXPORT jfloatArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_vadSegments
+  (JNIEnv *, jobject, jobject, jobject, jfloatArray, jint);
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
@@ -153,10 +269,10 @@ JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSe
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
- * Method:    fullGetSegmentText
- * Signature: (II)Ljava/lang/String;
+ * Method:    fullGetSegmentTextBytes
+ * Signature: (II)[B
  */
-JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentText
+JNIEXPORT jbyteArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTextBytes
   (JNIEnv *, jobject, jint, jint);
 
 /*
@@ -177,10 +293,10 @@ JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSe
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
- * Method:    fullGetSegmentTextFromState
- * Signature: (II)Ljava/lang/String;
+ * Method:    fullGetSegmentTextBytesFromState
+ * Signature: (II)[B
  */
-JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTextFromState
+JNIEXPORT jbyteArray JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_fullGetSegmentTextBytesFromState
   (JNIEnv *, jobject, jint, jint);
 
 /*
@@ -207,6 +323,30 @@ JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_freeState
 JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_freeGrammar
   (JNIEnv *, jobject, jint);
 
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    grammarMemoryBytes
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_grammarMemoryBytes
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    residentMemoryBytes
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_residentMemoryBytes
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    quantize
+ * Signature: (Ljava/lang/String;Ljava/lang/String;ILjava/util/function/DoubleConsumer;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_quantize
+  (JNIEnv *, jclass, jstring, jstring, jint, jobject);
+
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
  * Method:    printSystemInfo
@@ -217,11 +357,19 @@ JNIEXPORT jstring JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_printSy
 
 /*
  * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
- * Method:    setLogger
- * Signature: (Lorg/slf4j/Logger;)V
+ * Method:    installLogProxy
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_installLogProxy
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     io_github_jaffe2718_whisperjni_WhisperJNI
+ * Method:    drainLog
+ * Signature: ([BI)I
  */
-JNIEXPORT void JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_setLogger
-  (JNIEnv *, jclass, jobject);
+JNIEXPORT jint JNICALL Java_io_github_jaffe2718_whisperjni_WhisperJNI_drainLog
+  (JNIEnv *, jclass, jbyteArray, jint);
 
 #ifdef __cplusplus
 }
@@ -1,23 +1,56 @@
 package io.github.jaffe2718.whisperjni;
 
 import static io.github.jaffe2718.whisperjni.WhisperGrammar.assertValidGrammar;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
@@ -96,6 +129,95 @@ public class WhisperJNITest {
 		assertNotNull(ctx);
 		ctx.close();
 	}
+	
+	@Test
+	public void testLogBridge() throws Exception
+	{
+		// Info logger: the load messages arrive on the drain thread, the disabled debug level is filtered before it's queued
+		List<String[]> infoCalls = new CopyOnWriteArrayList<>();
+		// The model path is logged on load, nested directories of 2 byte characters push the line past the native message size. Windows paths
+		// are limited to 260 characters by default, so the truncation is only checked on the other systems
+		boolean longPaths = !System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows");
+		Path longDir = Files.createTempDirectory("whisper-log");
+		Path nested = longDir;
+		for(int i = 0; longPaths && i < 6; i++)
+		{
+			nested = nested.resolve("\u00e9".repeat(100));
+		}
+		Files.createDirectories(nested);
+		Path longModel = Files.copy(testModelPath, nested.resolve("ggml-tiny.bin"));
+		try
+		{
+			WhisperJNI.setLogger(recordingLogger(Set.of("info", "debug"), infoCalls));
+			try(var ctx = whisper.initNoState(longModel))
+			{
+				assertNotNull(ctx);
+			}
+			assertTrue(awaitCalls(infoCalls, call -> call[0].equals("info") && call[2].contains("loading model")));
+			assertTrue(infoCalls.stream().allMatch(call -> call[1].equals("whisper-jni-log")));
+			assertTrue(infoCalls.stream().noneMatch(call -> call[0].equals("debug")));
+			if(longPaths)
+			{
+				String[] truncated = infoCalls.stream().filter(call -> call[2].contains("\u00e9\u00e9")).findFirst().orElseThrow();
+				assertTrue(truncated[2].endsWith(" [truncated]"), truncated[2]);
+				assertFalse(truncated[2].contains("\uFFFD"), truncated[2]);
+			}
+			// Warn logger: nothing of the load is queued
+			List<String[]> warnCalls = new CopyOnWriteArrayList<>();
+			WhisperJNI.setLogger(recordingLogger(Set.of(), warnCalls));
+			try(var ctx = whisper.initNoState(testModelPath))
+			{
+				assertNotNull(ctx);
+			}
+			assertFalse(awaitCalls(warnCalls, call -> call[0].equals("info")));
+		} finally
+		{
+			WhisperJNI.setLogger(logger);
+			Files.walk(longDir).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+	
+	/**
+	 * Creates a logger recording [level, thread, message] for its calls, with warn and error always enabled.
+	 */
+	private static Logger recordingLogger(Set<String> enabled, List<String[]> calls)
+	{
+		return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class }, (proxy, method, args) ->
+		{
+			String name = method.getName();
+			if(name.startsWith("is") && name.endsWith("Enabled"))
+			{
+				String level = name.substring(2, name.length() - 7).toLowerCase(Locale.ROOT);
+				return level.equals("warn") || level.equals("error") || enabled.contains(level);
+			}
+			if(name.equals("getName"))
+			{
+				return "recording";
+			}
+			if(method.getReturnType() == void.class && args != null && args.length == 1 && args[0] instanceof String message)
+			{
+				calls.add(new String[] { name, Thread.currentThread().getName(), message });
+			}
+			return null;
+		});
+	}
+	
+	/**
+	 * Waits up to 2 seconds, well over the drain interval, for a matching call.
+	 */
+	private static boolean awaitCalls(List<String[]> calls, Predicate<String[]> match) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		while(System.nanoTime() < deadline)
+		{
+			if(calls.stream().anyMatch(match))
+			{
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return false;
+	}
 
     @Test
 	public void testInitFromInputStream() throws IOException
@@ -137,6 +259,431 @@ public class WhisperJNITest {
 		}
 	}
 	
+	@Test
+	public void testNativeMemory() throws IOException
+	{
+		long before = WhisperJNI.getNativeMemoryBytes();
+		// Accounted from the model hyperparameters, whatever is loaded concurrently
+		ModelInfo info = ModelInfo.inspect(testModelPath);
+		var ctx = whisper.init(testModelPath);
+		long contextBytes = ctx.nativeMemoryBytes();
+		assertEquals(info.getEstimatedBytes(), contextBytes);
+		assertEquals(before + contextBytes, WhisperJNI.getNativeMemoryBytes());
+		ctx.close();
+		assertEquals(0, ctx.nativeMemoryBytes());
+		assertEquals(before, WhisperJNI.getNativeMemoryBytes());
+		try(var noState = whisper.initNoState(testModelPath); var state = whisper.initState(noState); var in = Files.newInputStream(testModelPath);
+				var stream = whisper.init(in, null, false))
+		{
+			assertEquals(info.getEstimatedContextBytes(), noState.nativeMemoryBytes());
+			assertEquals(info.getEstimatedStateBytes(), state.nativeMemoryBytes());
+			assertEquals(info.getEstimatedContextBytes(), stream.nativeMemoryBytes());
+			assertEquals(before + 2 * info.getEstimatedContextBytes() + info.getEstimatedStateBytes(), WhisperJNI.getNativeMemoryBytes());
+		}
+	}
+	
+	@Test
+	public void testLeakedHandlesSurviveTheirLastCall() throws Exception
+	{
+		float[] speech = readFileSamples(samplePath);
+		// A few repetitions, so every call lasts long enough for several collections
+		float[] samples = new float[speech.length * 3];
+		for(int i = 0; i < 3; i++)
+		{
+			System.arraycopy(speech, 0, samples, i * speech.length, speech.length);
+		}
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread collector = new Thread(() ->
+		{
+			while(running.get())
+			{
+				System.gc();
+				Thread.onSpinWait();
+			}
+		});
+		collector.start();
+		try
+		{
+			for(int i = 0; i < 3; i++)
+			{
+				assertEquals(0, fullOnLeakedContext(samples));
+			}
+			try(var ctx = whisper.initNoState(testModelPath))
+			{
+				assertEquals(0, fullOnLeakedState(ctx, samples));
+			}
+		} finally
+		{
+			running.set(false);
+			collector.join();
+		}
+	}
+	
+	private static int fullOnLeakedContext(float[] samples) throws IOException
+	{
+		// Nothing references the context once the native call started
+		return whisper.full(whisper.init(testModelPath), new WhisperFullParams(WhisperSamplingStrategy.GREEDY), samples, samples.length);
+	}
+	
+	private static int fullOnLeakedState(WhisperContext ctx, float[] samples)
+	{
+		return whisper.fullWithState(ctx, whisper.initState(ctx), new WhisperFullParams(WhisperSamplingStrategy.GREEDY), samples, samples.length);
+	}
+	
+	@Test
+	public void testThreadBudget()
+	{
+		assertTrue(ThreadBudget.availableCores() >= 1);
+		
+		var throughput = new ThreadBudget(8, 4, ThreadBudget.Policy.THROUGHPUT);
+		var first = throughput.acquire(0);
+		var second = throughput.acquire(0);
+		assertEquals(4, first.threads());
+		assertEquals(4, second.threads());
+		assertTrue(throughput.getThreadsInUse() <= throughput.getCores());
+		// Every core is taken, a new call still runs on a single thread
+		var third = throughput.acquire(0);
+		assertEquals(1, third.threads());
+		first.close();
+		first.close();
+		assertEquals(2, throughput.getInFlight());
+		assertEquals(5, throughput.getThreadsInUse());
+		// An even split between the three calls
+		var fourth = throughput.acquire(0);
+		assertEquals(2, fourth.threads());
+		assertTrue(throughput.getThreadsInUse() <= throughput.getCores());
+		// The even split would be 2 threads, only one core is free
+		var fifth = throughput.acquire(0);
+		assertEquals(1, fifth.threads());
+		assertTrue(throughput.getThreadsInUse() <= throughput.getCores());
+		second.close();
+		third.close();
+		fourth.close();
+		fifth.close();
+		assertEquals(0, throughput.getThreadsInUse());
+		
+		var latency = new ThreadBudget(8, 6, ThreadBudget.Policy.LATENCY);
+		var fast = latency.acquire(0);
+		var rest = latency.acquire(0);
+		var starved = latency.acquire(0);
+		var explicit = latency.acquire(3);
+		assertEquals(6, fast.threads());
+		assertEquals(2, rest.threads());
+		assertEquals(1, starved.threads());
+		assertEquals(3, explicit.threads());
+		assertEquals(12, latency.getThreadsInUse());
+	}
+	
+	@Test
+	public void testFullWithThreadBudget() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		var budget = new ThreadBudget(4, 4, ThreadBudget.Policy.THROUGHPUT);
+		whisper.setThreadBudget(budget);
+		try(var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+			assertEquals(0, budget.getInFlight());
+			assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentTextFromState(state, 0));
+		} finally
+		{
+			whisper.setThreadBudget(null);
+		}
+	}
+	
+	@Test
+	public void testModelRegistry() throws Exception
+	{
+		// A budget smaller than one model: idle models are evicted as soon as their last lease is closed
+		try(var registry = new ModelRegistry(whisper, null, 1))
+		{
+			registry.register("tiny", testModelPath);
+			assertThrows(IOException.class, () -> registry.acquire("missing"));
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			try
+			{
+				List<Future<ModelRegistry.Lease>> leases = new ArrayList<>();
+				for(int i = 0; i < 4; i++)
+				{
+					leases.add(executor.submit(() -> registry.acquire("tiny")));
+				}
+				Set<WhisperContext> contexts = ConcurrentHashMap.newKeySet();
+				for(Future<ModelRegistry.Lease> lease : leases)
+				{
+					contexts.add(lease.get().context());
+				}
+				// Concurrent acquisitions share one load
+				assertEquals(1, contexts.size());
+				WhisperContext context = contexts.iterator().next();
+				for(int i = 0; i < 3; i++)
+				{
+					leases.get(i).get().close();
+				}
+				assertTrue(registry.isLoaded(testModelPath));
+				assertTrue(registry.getLoadedBytes() > registry.getMemoryBudget());
+				// Deterministic, whatever else the process loads at the same time
+				assertEquals(ModelInfo.inspect(testModelPath).getEstimatedContextBytes(), registry.getLoadedBytes());
+				leases.get(3).get().close();
+				leases.get(3).get().close();
+				assertFalse(registry.isLoaded(testModelPath));
+				assertEquals(0, registry.getLoadedBytes());
+				assertThrows(RuntimeException.class, () -> whisper.initState(context));
+			} finally
+			{
+				executor.shutdownNow();
+			}
+		}
+	}
+	
+	@Test
+	public void testHotSwapUnderLoad() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		int workers = 4;
+		int swaps = 5;
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicInteger transcriptions = new AtomicInteger();
+		Set<Integer> generations = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try(var swappable = new SwappableContext(whisper, testModelPath, null))
+		{
+			List<Future<?>> results = new ArrayList<>();
+			for(int i = 0; i < workers; i++)
+			{
+				results.add(executor.submit(() ->
+				{
+					var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+					params.nThreads = 1;
+					while(running.get())
+					{
+						try(var lease = swappable.acquire(); var state = whisper.initState(lease.context()))
+						{
+							assertEquals(0, whisper.fullWithState(lease.context(), state, params, samples, samples.length));
+							assertTrue(whisper.fullNSegmentsFromState(state) > 0);
+							generations.add(lease.generation());
+							transcriptions.incrementAndGet();
+						}
+					}
+					return null;
+				}));
+			}
+			long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+			for(int i = 0; i < swaps; i++)
+			{
+				// Let every swap happen with transcriptions in flight
+				int before = transcriptions.get();
+				while(transcriptions.get() < before + workers)
+				{
+					// A failed worker stops counting, fail with its exception instead of waiting forever
+					for(Future<?> result : results)
+					{
+						if(result.isDone())
+						{
+							result.get();
+						}
+					}
+					assertTrue(System.nanoTime() < deadline, "Timed out waiting for transcriptions");
+					Thread.sleep(10);
+				}
+				swappable.swap(testModelPath);
+			}
+			running.set(false);
+			for(Future<?> result : results)
+			{
+				result.get(1, TimeUnit.MINUTES);
+			}
+			assertEquals(swaps + 1, swappable.getGeneration());
+			assertTrue(generations.size() > 1);
+			logger.info("{} transcriptions over {} models", transcriptions.get(), generations.size());
+			swappable.close();
+			assertThrows(IllegalStateException.class, swappable::acquire);
+		} finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testWarmUp() throws Exception
+	{
+		var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+		try(var ctx = whisper.initNoState(testModelPath); var first = whisper.initState(ctx); var second = whisper.initState(ctx))
+		{
+			var warmUp = new WhisperWarmUp(whisper, params, readFileSamples(samplePath), 2);
+			assertFalse(warmUp.isReady());
+			assertFalse(warmUp.awaitReady(1, TimeUnit.MILLISECONDS));
+			var report = warmUp.warmUp(ctx, List.of(first, second));
+			logger.info("{}", report);
+			assertTrue(warmUp.awaitReady(1, TimeUnit.SECONDS));
+			assertEquals(2, report.states);
+			assertEquals(0, report.failures);
+			assertTrue(report.coldMs > 0);
+			assertTrue(report.warmMs > 0);
+		}
+		assertThrows(IllegalArgumentException.class, () -> new WhisperWarmUp(whisper, params, new float[100], 1));
+	}
+	
+	@Test
+	public void testFailedWarmUpIsNotReady() throws Exception
+	{
+		var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+		try(var ctx = whisper.initNoState(testModelPath))
+		{
+			var closed = whisper.initState(ctx);
+			closed.close();
+			var warmUp = new WhisperWarmUp(whisper, params);
+			var report = warmUp.warmUp(ctx, List.of(closed));
+			assertEquals(3, report.failures);
+			assertFalse(warmUp.isReady());
+			assertFalse(warmUp.awaitReady(1, TimeUnit.SECONDS));
+		}
+	}
+	
+	@Test
+	public void testTranscriptionCache() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+		Path diskFile = Files.createTempFile("whisper-cache", ".bin");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try(var ctx = whisper.initNoState(testModelPath))
+		{
+			var key = TranscriptionCache.key(ctx, params, samples, samples.length);
+			assertEquals(key, TranscriptionCache.key(ctx, params, samples.clone(), samples.length));
+			assertFalse(key.equals(TranscriptionCache.key(ctx, params, samples, samples.length - 1)));
+			var translated = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			translated.translate = true;
+			assertFalse(key.equals(TranscriptionCache.key(ctx, translated, samples, samples.length)));
+			// The same file name in another directory is another model
+			Path otherDir = Files.createTempDirectory("whisper-model");
+			Path otherModel = Files.copy(testModelPath, otherDir.resolve(testModelPath.getFileName()));
+			try(var other = whisper.initNoState(otherModel))
+			{
+				assertFalse(key.equals(TranscriptionCache.key(other, params, samples, samples.length)));
+			} finally
+			{
+				Files.delete(otherModel);
+				Files.delete(otherDir);
+			}
+			// Models loaded from a stream can't be identified and are never cached
+			try(var cache = new TranscriptionCache(whisper, 16); var in = Files.newInputStream(testModelPath);
+					var stream = whisper.init(in))
+			{
+				cache.transcribe(stream, null, params, samples, samples.length);
+				cache.transcribe(stream, null, params, samples, samples.length);
+				assertEquals(2, cache.getMisses());
+				assertEquals(0, cache.size());
+			}
+			
+			try(var cache = new TranscriptionCache(whisper, 16, diskFile, 1 << 20))
+			{
+				// Identical concurrent requests run one transcription
+				List<Future<WhisperSegment[]>> results = new ArrayList<>();
+				for(int i = 0; i < 4; i++)
+				{
+					results.add(executor.submit(() ->
+					{
+						try(var state = whisper.initState(ctx))
+						{
+							return cache.transcribe(ctx, state, params, samples, samples.length);
+						}
+					}));
+				}
+				for(Future<WhisperSegment[]> result : results)
+				{
+					assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", result.get()[0].text);
+				}
+				assertEquals(1, cache.getMisses());
+				assertEquals(3, cache.getHits() + cache.getCoalesced());
+				logger.info("{}", cache);
+			}
+			// The disk tier outlives the cache
+			try(var cache = new TranscriptionCache(whisper, 16, diskFile, 1 << 20); var state = whisper.initState(ctx))
+			{
+				var segments = cache.transcribe(ctx, state, params, samples, samples.length);
+				assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", segments[0].text);
+				assertEquals(1, cache.getDiskHits());
+				assertEquals(0, cache.getMisses());
+				assertEquals(1.0, cache.getHitRate());
+			}
+		} finally
+		{
+			executor.shutdownNow();
+			Files.deleteIfExists(diskFile);
+		}
+	}
+	
+	@Test
+	public void testAudioPreFilter() throws Exception
+	{
+		var filter = new AudioPreFilter();
+		var silence = filter.analyze(new float[WhisperJNI.SAMPLE_RATE * 3], WhisperJNI.SAMPLE_RATE * 3);
+		assertFalse(silence.speech);
+		assertEquals("silence", silence.reason);
+		var random = new Random(42);
+		float[] noise = new float[WhisperJNI.SAMPLE_RATE * 3];
+		for(int i = 0; i < noise.length; i++)
+		{
+			noise[i] = random.nextFloat() - 0.5f;
+		}
+		assertEquals("noise", filter.analyze(noise, noise.length).reason);
+		// A low level hum: every frame is above silenceRms and has a peak above minPeak, only the RMS gate rejects it
+		float[] hum = new float[WhisperJNI.SAMPLE_RATE * 3];
+		for(int i = 0; i < hum.length; i++)
+		{
+			hum[i] = i % 320 == 0 ? 0.05f : 0.012f;
+		}
+		var quiet = filter.analyze(hum, hum.length);
+		assertFalse(quiet.speech);
+		assertEquals("silence", quiet.reason);
+		assertTrue(quiet.rms > filter.silenceRms && quiet.rms < filter.minRms);
+		assertTrue(quiet.peak >= filter.minPeak);
+		assertTrue(quiet.zeroCrossingRate <= filter.maxZeroCrossingRate);
+		var lowerGate = new AudioPreFilter();
+		lowerGate.minRms = 0.011f;
+		assertTrue(lowerGate.analyze(hum, hum.length).speech);
+		
+		// Three seconds of silence on each side of the speech
+		float[] speech = readFileSamples(samplePath);
+		int padding = WhisperJNI.SAMPLE_RATE * 3;
+		float[] padded = new float[speech.length + padding * 2];
+		System.arraycopy(speech, 0, padded, padding, speech.length);
+		var result = filter.analyze(padded, padded.length);
+		logger.info("{}", result);
+		assertTrue(result.speech);
+		assertTrue(result.from >= padding - WhisperJNI.SAMPLE_RATE / 5 - 320);
+		assertTrue(result.to <= padding + speech.length + WhisperJNI.SAMPLE_RATE / 5 + 320);
+		
+		// The speech in the middle of 30 seconds of low hiss, the hiss alone is quieter than silenceRms but crosses zero all the time
+		float[] bed = new float[WhisperJNI.SAMPLE_RATE * 30];
+		for(int i = 0; i < bed.length; i++)
+		{
+			bed[i] = (random.nextFloat() - 0.5f) * 0.012f;
+		}
+		int offset = (bed.length - speech.length) / 2;
+		for(int i = 0; i < speech.length; i++)
+		{
+			bed[offset + i] += speech[i];
+		}
+		var inBed = filter.analyze(bed, bed.length);
+		logger.info("{}", inBed);
+		assertTrue(inBed.speech);
+		assertTrue(inBed.from >= offset - WhisperJNI.SAMPLE_RATE / 5 - 320);
+		assertTrue(inBed.to <= offset + speech.length + WhisperJNI.SAMPLE_RATE / 5 + 320);
+		
+		try(var ctx = whisper.init(testModelPath))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			assertEquals(0, filter.transcribe(whisper, ctx, null, params, noise, noise.length).length);
+			assertTrue(filter.transcribe(whisper, ctx, null, params, bed, bed.length)[0].text.contains("ask not what your country can do for you"));
+			var segments = filter.transcribe(whisper, ctx, null, params, padded, padded.length);
+			assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", segments[0].text);
+			// Timestamps are relative to the padded input
+			assertTrue(segments[0].t0 >= 250);
+		}
+	}
+	
 	@Test
 	public void testSegmentIndexException() throws IOException
 	{
@@ -236,6 +783,326 @@ public class WhisperJNITest {
 		}
 	}
 	
+	@Test
+	public void testVocabulary() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.init(testModelPath))
+		{
+			assertNotNull(ctx);
+			WhisperVocabulary vocabulary = whisper.getVocabulary(ctx);
+			assertEquals(whisper.nVocab(ctx), vocabulary.size());
+			// Cached per context
+			assertTrue(vocabulary == whisper.getVocabulary(ctx));
+			assertTrue(vocabulary.isSpecial(vocabulary.eot));
+			assertTrue(vocabulary.isSpecial(vocabulary.beg));
+			
+			int[] tokens = whisper.tokenize(ctx, " ask not what your country can do for you");
+			assertTrue(tokens.length > 0);
+			assertEquals(" ask not what your country can do for you", vocabulary.decode(tokens));
+			assertEquals(vocabulary.getString(tokens[0]), whisper.tokenToString(ctx, tokens[0]));
+			
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			int result = whisper.full(ctx, params, samples, samples.length);
+			if(result != 0)
+			{
+				throw new RuntimeException("Transcription failed with code " + result);
+			}
+			int[] ids = whisper.getTokenIds(ctx, 0);
+			assertEquals(whisper.fullGetSegmentText(ctx, 0), vocabulary.decode(ids));
+			TokenData[] tokenData = whisper.getTokens(ctx, 0);
+			assertEquals(IntStream.of(ids).filter(id -> !vocabulary.isSpecial(id)).count(), tokenData.length);
+		}
+	}
+	
+	@Test
+	public void testUtf8Text() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+			Utf8Text text = whisper.fullGetSegmentUtf8FromState(state, 0);
+			assertEquals(whisper.fullGetSegmentTextFromState(state, 0), text.toString());
+			assertTrue(text.toString() == text.toString());
+			assertEquals(text.length(), text.asByteBuffer().remaining());
+			assertTrue(text.asByteBuffer().isReadOnly());
+			TokenData token = whisper.getTokensFromState(ctx, state, 0)[0];
+			assertEquals(token.token, token.utf8().toString());
+			assertEquals(token.utf8(), whisper.tokenToUtf8(ctx, token.id));
+		}
+		// 4 byte characters survive, modified UTF-8 would have split them into surrogates
+		String emoji = "🎙 mic";
+		assertEquals(emoji, new Utf8Text(emoji.getBytes(StandardCharsets.UTF_8)).toString());
+	}
+	
+	@Test
+	public void testChannelTranscriber() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		// Right channel is the left one delayed by 2 seconds
+		int delay = 2 * WhisperJNI.SAMPLE_RATE;
+		int numFrames = samples.length + delay;
+		float[] interleaved = new float[numFrames * 2];
+		for(int i = 0; i < samples.length; i++)
+		{
+			interleaved[i * 2] = samples[i];
+			interleaved[(i + delay) * 2 + 1] = samples[i];
+		}
+		try(var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx); var executor = new WhisperExecutor(whisper, 2);
+				var transcriber = new ChannelTranscriber(executor, ctx, "agent", "customer"))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			ChannelSegment[] segments = transcriber.transcribe(params, interleaved, numFrames);
+			assertTrue(segments.length >= 2);
+			assertEquals("agent", segments[0].label);
+			assertEquals(0, segments[0].channel);
+			for(int i = 1; i < segments.length; i++)
+			{
+				assertTrue(segments[i - 1].t0 <= segments[i].t0);
+			}
+			String agent = "";
+			String customer = "";
+			for(ChannelSegment segment : segments)
+			{
+				if(segment.channel == 0)
+				{
+					agent += segment.text;
+				} else
+				{
+					assertEquals("customer", segment.label);
+					customer += segment.text;
+				}
+			}
+			assertEquals(agent, customer);
+			assertThrows(IndexOutOfBoundsException.class, () -> whisper.fullWithStateInterleaved(ctx, state, params, interleaved, 2, 2, numFrames));
+		}
+	}
+	
+	@Test
+	public void testBatchTranscriber() throws Exception
+	{
+		Path dir = Files.createTempDirectory("whisper-batch");
+		Path manifest = dir.resolve("manifest.txt");
+		Path output = dir.resolve("out.jsonl");
+		Path journal = dir.resolve("journal.log");
+		Files.writeString(dir.resolve("broken.wav"), "not audio");
+		Files.writeString(manifest, "# archive\n" + samplePath.toAbsolutePath() + "\n\nbroken.wav\n");
+		try(var ctx = whisper.initNoState(testModelPath))
+		{
+			var batch = new BatchTranscriber(whisper, ctx, new WhisperFullParams(WhisperSamplingStrategy.GREEDY));
+			batch.states = 2;
+			BatchTranscriber.Report report = batch.run(manifest, output, journal);
+			assertEquals(1, report.transcribed);
+			assertEquals(1, report.failed);
+			List<String> lines = Files.readAllLines(output);
+			assertEquals(2, lines.size());
+			assertTrue(lines.stream().anyMatch(line -> line.contains("\"error\"") && line.contains("broken.wav")));
+			assertTrue(lines.stream().anyMatch(line -> line.contains("And so my fellow Americans")));
+			// A line written after the last checkpoint is dropped on resume, and nothing is transcribed again
+			Files.writeString(output, "{\"torn\"", StandardOpenOption.APPEND);
+			report = batch.run(manifest, output, journal);
+			assertEquals(0, report.transcribed);
+			assertEquals(2, report.skipped);
+			assertEquals(lines, Files.readAllLines(output));
+		}
+	}
+	
+	@Test
+	public void testFullRange() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		// The recording sits in the middle of a larger buffer
+		int offset = 3 * WhisperJNI.SAMPLE_RATE;
+		float[] buffer = new float[samples.length + 2 * offset];
+		System.arraycopy(samples, 0, buffer, offset, samples.length);
+		try(var ctx = whisper.init(testModelPath); var state = whisper.initState(ctx))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+			String expected = whisper.fullGetSegmentTextFromState(state, 0);
+			assertEquals(0, whisper.fullWithState(ctx, state, params, buffer, offset, samples.length));
+			assertEquals(expected, whisper.fullGetSegmentTextFromState(state, 0));
+			assertEquals(0, whisper.full(ctx, params, buffer, offset, samples.length));
+			assertEquals(expected, whisper.fullGetSegmentText(ctx, 0));
+			assertThrows(IndexOutOfBoundsException.class, () -> whisper.full(ctx, params, buffer, buffer.length - 10, 20));
+		}
+	}
+	
+	@Test
+	public void testEncodeOnceDecodeMany() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			assertThrows(IllegalStateException.class, () -> whisper.decode(ctx, state, params));
+			whisper.encode(ctx, state, samples, 0, samples.length, 0);
+			WhisperSegment[] transcript = whisper.decode(ctx, state, params);
+			assertTrue(transcript.length > 0);
+			assertTrue(transcript[0].text.contains("fellow Americans"));
+			assertTrue(transcript[transcript.length - 1].t1 <= 1100);
+			params.noTimestamps = true;
+			params.initialPrompt = "President Kennedy";
+			WhisperSegment[] prompted = whisper.decode(ctx, state, params);
+			assertEquals(1, prompted.length);
+			assertTrue(prompted[0].text.contains("your country"));
+			params.language = "auto";
+			params.translate = true;
+			assertTrue(whisper.decode(ctx, state, params)[0].text.contains("country"));
+			params.language = "klingon";
+			assertThrows(IOException.class, () -> whisper.decode(ctx, state, params));
+			assertEquals(0, whisper.fullWithState(ctx, state, new WhisperFullParams(WhisperSamplingStrategy.GREEDY), samples, samples.length));
+			assertThrows(IllegalStateException.class, () -> whisper.decode(ctx, state, params));
+			// The VAD call runs the encoder on the state as well
+			whisper.encode(ctx, state, samples, 0, samples.length, 0);
+			var vadParams = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			vadParams.vad = true;
+			vadParams.vad_model_path = tempVAD.toAbsolutePath().toString();
+			whisper.vadState(ctx, state, vadParams, new WhisperVADContextParams(), samples, samples.length);
+			assertThrows(IllegalStateException.class, () -> whisper.decode(ctx, state, params));
+			assertThrows(IllegalArgumentException.class, () -> whisper.encode(ctx, state, new float[31 * WhisperJNI.SAMPLE_RATE], 0,
+					31 * WhisperJNI.SAMPLE_RATE, 0));
+		}
+	}
+
+	@Test
+	public void testDecodeMatchesFull() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			params.language = "en";
+			assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+			StringBuilder full = new StringBuilder();
+			for(int i = 0; i < whisper.fullNSegmentsFromState(state); i++)
+			{
+				full.append(whisper.fullGetSegmentTextFromState(state, i));
+			}
+			whisper.encode(ctx, state, samples, 0, samples.length, 0);
+			StringBuilder decoded = new StringBuilder();
+			for(WhisperSegment segment : whisper.decode(ctx, state, params))
+			{
+				decoded.append(segment.text);
+			}
+			assertEquals(full.toString().trim(), decoded.toString().trim());
+			// The params the greedy decoder cannot honour are rejected instead of ignored
+			assertThrows(IllegalArgumentException.class, () -> whisper.decode(ctx, state, new WhisperFullParams(WhisperSamplingStrategy.BEAM_SEARCH)));
+			params.temperature = 0.2f;
+			assertThrows(IllegalArgumentException.class, () -> whisper.decode(ctx, state, params));
+		}
+	}
+
+	@Test
+	public void testQuantize() throws Exception
+	{
+		Path quantized = Files.createTempFile("ggml-tiny-q8_0", ".bin");
+		List<Double> progress = new ArrayList<>();
+		QuantizationReport report = whisper.quantize(testModelPath, quantized, QuantType.Q8_0, progress::add);
+		assertEquals(Files.size(testModelPath), report.inputBytes);
+		assertEquals(Files.size(quantized), report.outputBytes);
+		assertTrue(report.outputBytes < report.inputBytes);
+		assertFalse(progress.isEmpty());
+		assertEquals(1.0, progress.get(progress.size() - 1), 1e-9);
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.init(quantized))
+		{
+			assertEquals(0, whisper.full(ctx, new WhisperFullParams(WhisperSamplingStrategy.GREEDY), samples, samples.length));
+			assertTrue(whisper.fullGetSegmentText(ctx, 0).contains("fellow Americans"));
+		}
+		// A stopped or failed run leaves the previous output and no temporary file
+		byte[] previous = Files.readAllBytes(quantized);
+		assertThrows(IllegalStateException.class, () -> whisper.quantize(testModelPath, quantized, QuantType.Q5_0, value ->
+		{
+			throw new IllegalStateException("cancelled");
+		}));
+		assertArrayEquals(previous, Files.readAllBytes(quantized));
+		assertThrows(IOException.class, () -> whisper.quantize(samplePath, quantized, QuantType.Q5_0));
+		assertArrayEquals(previous, Files.readAllBytes(quantized));
+		try(Stream<Path> siblings = Files.list(quantized.toAbsolutePath().getParent()))
+		{
+			assertFalse(siblings.anyMatch(path -> path.getFileName().toString().startsWith(".quantize-")));
+		}
+		// The input is never its own output, even through another path
+		long modelBytes = Files.size(testModelPath);
+		assertThrows(IOException.class, () -> whisper.quantize(testModelPath, testModelPath, QuantType.Q8_0));
+		assertThrows(IOException.class, () -> whisper.quantize(testModelPath, testModelPath.toAbsolutePath().getParent().resolve(".")
+				.resolve(testModelPath.getFileName()), QuantType.Q8_0));
+		assertEquals(modelBytes, Files.size(testModelPath));
+		assertEquals("f16", ModelInfo.inspect(testModelPath).getFtypeName());
+		// The 384 wide tiny model doesn't fit the 256 weight blocks of the k-quants, it is rejected before the native call
+		assertThrows(IllegalArgumentException.class, () -> whisper.quantize(testModelPath, quantized, QuantType.Q4_K));
+		assertArrayEquals(previous, Files.readAllBytes(quantized));
+		try(Stream<Path> siblings = Files.list(quantized.toAbsolutePath().getParent()))
+		{
+			assertFalse(siblings.anyMatch(path -> path.getFileName().toString().startsWith(".quantize-")));
+		}
+		assertEquals(modelBytes, Files.size(testModelPath));
+		Files.delete(quantized);
+	}
+	
+	@Test
+	public void testInspectModel() throws Exception
+	{
+		ModelInfo info = ModelInfo.inspect(testModelPath);
+		assertEquals("tiny", info.type);
+		assertEquals(51865, info.nVocab);
+		assertTrue(info.multilingual);
+		assertEquals(4, info.nAudioLayer);
+		assertEquals(4, info.nTextLayer);
+		assertEquals(384, info.nAudioState);
+		assertEquals(1500, info.nAudioCtx);
+		assertEquals(80, info.nMels);
+		assertEquals("f16", info.getFtypeName());
+		assertEquals(null, info.getQuantType());
+		assertEquals(Files.size(testModelPath), info.fileBytes);
+		assertTrue(info.getEstimatedBytes() > info.fileBytes);
+		Path quantized = Files.createTempFile("ggml-tiny-q5_0", ".bin");
+		whisper.quantize(testModelPath, quantized, QuantType.Q5_0);
+		assertEquals(QuantType.Q5_0, ModelInfo.inspect(quantized).getQuantType());
+		Files.delete(quantized);
+		assertThrows(IOException.class, () -> ModelInfo.inspect(samplePath));
+	}
+	
+	@Test
+	public void testAudioResampler() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.init(testModelPath))
+		{
+			// Telephony and studio rates, read back through the streaming API with uneven chunks
+			for(int rate : new int[] { 8000, 44100, 48000 })
+			{
+				AudioResampler up = new AudioResampler(WhisperJNI.SAMPLE_RATE, rate);
+				float[] head = up.process(samples, 0, samples.length);
+				float[] tail = up.flush();
+				float[] input = Arrays.copyOf(head, head.length + tail.length);
+				System.arraycopy(tail, 0, input, head.length, tail.length);
+				assertEquals((long) samples.length * rate / WhisperJNI.SAMPLE_RATE, input.length);
+				AudioResampler down = new AudioResampler(rate);
+				float[] output = new float[samples.length + down.getMaxOutput(0)];
+				int length = 0;
+				Random random = new Random(42);
+				for(int i = 0; i < input.length;)
+				{
+					int chunk = Math.min(input.length - i, 1 + random.nextInt(4000));
+					length += down.process(input, i, chunk, output, length);
+					i += chunk;
+				}
+				float[] last = down.flush();
+				System.arraycopy(last, 0, output, length, last.length);
+				length += last.length;
+				assertEquals(samples.length, length);
+				assertArrayEquals(AudioResampler.resample(input, rate), Arrays.copyOf(output, length));
+				assertEquals(0, whisper.full(ctx, new WhisperFullParams(WhisperSamplingStrategy.GREEDY), output, length));
+				assertTrue(whisper.fullGetSegmentText(ctx, 0).contains("fellow Americans"));
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> new AudioResampler(0));
+	}
+	
 	@Test
 	public void testVADFull() throws Exception
 	{
@@ -408,6 +1275,159 @@ public class WhisperJNITest {
 		}
 	}
 	
+	@Test
+	public void testTranscriptionStats() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		try(var ctx = whisper.init(testModelPath))
+		{
+			var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+			assertEquals(0, whisper.full(ctx, params, samples, samples.length));
+			var stats = whisper.getStats(ctx);
+			assertNotNull(stats);
+			assertEquals(samples.length, stats.samples);
+			assertEquals(1, stats.windows);
+			assertEquals(0, stats.fallbacks);
+			assertTrue(stats.encodeMs > 0);
+			assertTrue(stats.decodeMs > 0);
+			assertTrue(stats.avgEncodeMs > 0);
+			assertTrue(stats.realTimeFactor() > 0);
+			try(var state = whisper.initState(ctx))
+			{
+				assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+				var stateStats = whisper.getStats(state);
+				assertEquals(1, stateStats.windows);
+				assertTrue(stateStats.encodeMs > 0);
+				assertTrue(Float.isNaN(stateStats.avgEncodeMs));
+			}
+		}
+	}
+	
+	@Test
+	public void testFlightRecorderEvents() throws Exception
+	{
+		float[] samples = readFileSamples(samplePath);
+		Path dump = Files.createTempFile("whisper", ".jfr");
+		try(var recording = new Recording())
+		{
+			recording.enable("io.github.jaffe2718.whisperjni.Init");
+			recording.enable("io.github.jaffe2718.whisperjni.Full");
+			recording.start();
+			try(var ctx = whisper.init(testModelPath))
+			{
+				var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+				params.nThreads = 2;
+				assertEquals(0, whisper.full(ctx, params, samples, samples.length));
+				// The threads the calls run with: the whisper.cpp default, then the lease of the budget
+				params.nThreads = 0;
+				assertEquals(0, whisper.full(ctx, params, samples, samples.length));
+				whisper.setThreadBudget(new ThreadBudget(3, 3, ThreadBudget.Policy.THROUGHPUT));
+				try
+				{
+					assertEquals(0, whisper.full(ctx, params, samples, samples.length));
+				} finally
+				{
+					whisper.setThreadBudget(null);
+				}
+			}
+			recording.stop();
+			recording.dump(dump);
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		Files.delete(dump);
+		assertEquals(4, events.size());
+		RecordedEvent init = events.get(0);
+		assertEquals("io.github.jaffe2718.whisperjni.Init", init.getEventType().getName());
+		assertEquals(testModelPath.getFileName().toString(), init.getString("model"));
+		RecordedEvent full = events.get(1);
+		assertEquals("io.github.jaffe2718.whisperjni.Full", full.getEventType().getName());
+		assertEquals(samples.length, full.getInt("samples"));
+		assertEquals(2, full.getInt("threads"));
+		assertEquals("greedy", full.getString("strategy"));
+		assertEquals(0, full.getInt("result"));
+		assertTrue(full.getDuration().toMillis() > 0);
+		assertEquals(Math.min(4, Runtime.getRuntime().availableProcessors()), events.get(2).getInt("threads"));
+		assertEquals(3, events.get(3).getInt("threads"));
+	}
+	
+	@Test
+	public void testExecutorDoesNotPinCarriers() throws Exception
+	{
+		// Virtual threads need Java 21, the library targets 17 so they are created reflectively
+		Method newVirtualExecutor;
+		Method isVirtual;
+		try
+		{
+			newVirtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch(NoSuchMethodException e)
+		{
+			assumeTrue(false, "Virtual threads are not available");
+			return;
+		}
+		float[] samples = readFileSamples(samplePath);
+		int callers = Runtime.getRuntime().availableProcessors() * 2;
+		Path dump = Files.createTempFile("whisper", ".jfr");
+		Set<Thread> nativeThreads = ConcurrentHashMap.newKeySet();
+		AtomicInteger ticks = new AtomicInteger();
+		try(var recording = new Recording(); var ctx = whisper.initNoState(testModelPath); var executor = new WhisperExecutor(whisper, 2))
+		{
+			recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+			recording.start();
+			var virtualThreads = (ExecutorService) newVirtualExecutor.invoke(null);
+			// One caller per carrier and more: if the callers pinned their carriers the ticker would stall
+			AtomicBoolean transcribing = new AtomicBoolean(true);
+			virtualThreads.submit(() ->
+			{
+				while(transcribing.get())
+				{
+					Thread.sleep(10);
+					ticks.incrementAndGet();
+				}
+				return null;
+			});
+			long start = System.nanoTime();
+			List<Future<Integer>> results = new ArrayList<>();
+			for(int i = 0; i < callers; i++)
+			{
+				results.add(virtualThreads.submit(() ->
+				{
+					assertTrue((boolean) isVirtual.invoke(Thread.currentThread()));
+					var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+					params.nThreads = 1;
+					return executor.call(() ->
+					{
+						nativeThreads.add(Thread.currentThread());
+						try(var state = whisper.initState(ctx))
+						{
+							return whisper.fullWithState(ctx, state, params, samples, samples.length);
+						}
+					});
+				}));
+			}
+			for(var result : results)
+			{
+				assertEquals(0, (int) result.get());
+			}
+			long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+			transcribing.set(false);
+			virtualThreads.shutdown();
+			assertTrue(virtualThreads.awaitTermination(1, TimeUnit.MINUTES));
+			recording.stop();
+			recording.dump(dump);
+			
+			assertEquals(2, nativeThreads.size());
+			for(Thread thread : nativeThreads)
+			{
+				assertFalse((boolean) isVirtual.invoke(thread));
+			}
+			assertTrue(ticks.get() > elapsedMs / 40, "ticker stalled: " + ticks.get() + " ticks in " + elapsedMs + "ms");
+		}
+		List<RecordedEvent> pinned = RecordingFile.readAllEvents(dump);
+		Files.delete(dump);
+		assertEquals(List.of(), pinned);
+	}
+	
 	@Test
 	public void testFullWithStateBeamSearch() throws Exception
 	{
@@ -460,6 +1480,101 @@ public class WhisperJNITest {
 		}
 	}
 	
+	@Test
+	public void testSharedGrammar() throws Exception
+	{
+		String grammarText = "root ::= \" And so, my fellow American, ask not what your country can do for you, ask what you can do for your country.\"";
+		float[] samples = readFileSamples(samplePath);
+		long before = WhisperJNI.getNativeMemoryBytes();
+		WhisperGrammar first = whisper.parseGrammar(grammarText);
+		try(WhisperGrammar second = whisper.parseGrammar(grammarText))
+		{
+			assertNotNull(first);
+			assertNotNull(second);
+			// The shared native grammar is counted once
+			assertTrue(second.nativeMemoryBytes() > 0);
+			assertEquals(before + second.nativeMemoryBytes(), WhisperJNI.getNativeMemoryBytes());
+			// Identical text shares the native grammar, closing one handle must keep the other usable
+			first.close();
+			assertEquals(before + second.nativeMemoryBytes(), WhisperJNI.getNativeMemoryBytes());
+			try(var ctx = whisper.init(testModelPath))
+			{
+				assertNotNull(ctx);
+				var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+				params.grammar = second;
+				int result = whisper.full(ctx, params, samples, samples.length);
+				if(result != 0)
+				{
+					throw new RuntimeException("Transcription failed with code " + result);
+				}
+				String text = whisper.fullGetSegmentText(ctx, 0);
+				assertEquals(" And so, my fellow American, ask not what your country can do for you, ask what you can do for your country.", text);
+			}
+		}
+		assertEquals(before, WhisperJNI.getNativeMemoryBytes());
+	}
+	
+	@Test
+	public void testCachedVADExport() throws Exception
+	{
+		Path first = LibraryUtils.exportVADModel(logger);
+		Path second = LibraryUtils.exportVADModel(logger);
+		// The second export reuses the cached copy
+		assertEquals(first, second);
+		assertTrue(Files.isRegularFile(first));
+		assertEquals(-1, Files.mismatch(first, tempVAD));
+		// Exporting again to the same destination leaves it untouched
+		LibraryUtils.exportVADModel(logger, tempVAD);
+		assertEquals(-1, Files.mismatch(first, tempVAD));
+	}
+	
+	@Test
+	public void testExtractionCacheChecksContent() throws Exception
+	{
+		Path cacheDir = Files.createTempDirectory("whisper-jni-cache-test");
+		var vadModel = LibraryUtils.class.getClassLoader().getResource("ggml-silero-v6.2.0.bin").toURI();
+		System.setProperty(LibraryUtils.CACHE_DIR_PROPERTY, cacheDir.toString());
+		try
+		{
+			// Other versions of the resource, unused for two days, one of them still locked by a running JVM
+			FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+			Path unused = Files.createDirectories(cacheDir.resolve("ggml-silero-v6.2.0.bin-0000000000000000"));
+			Path inUse = Files.createDirectories(cacheDir.resolve("ggml-silero-v6.2.0.bin-1111111111111111"));
+			for(Path version : List.of(unused, inUse))
+			{
+				Files.setLastModifiedTime(Files.createFile(version.resolve(".complete")), old);
+			}
+			Path cached;
+			try(FileChannel lock = FileChannel.open(cacheDir.resolve(inUse.getFileName() + ".lock"), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				lock.lock(0, Long.MAX_VALUE, true);
+				cached = LibraryUtils.extractResourceCached(logger, vadModel);
+			}
+			assertEquals(-1, Files.mismatch(cached, tempVAD));
+			assertFalse(Files.exists(unused));
+			assertTrue(Files.exists(inUse));
+			// The marker lists the SHA-256 of the extraction
+			assertTrue(Files.readString(cached.resolveSibling(".complete")).endsWith("  ggml-silero-v6.2.0.bin\n"));
+			// An incomplete copy is extracted again
+			Files.write(cached, new byte[16]);
+			cached = LibraryUtils.extractResourceCached(logger, vadModel);
+			assertEquals(-1, Files.mismatch(cached, tempVAD));
+			if(cacheDir.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			{
+				Files.setPosixFilePermissions(cacheDir, PosixFilePermissions.fromString("rwxrwxrwx"));
+				assertThrows(IOException.class, () -> LibraryUtils.extractResourceCached(logger, vadModel));
+			}
+		} finally
+		{
+			System.clearProperty(LibraryUtils.CACHE_DIR_PROPERTY);
+			try(var paths = Files.walk(cacheDir))
+			{
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+	
 	@Test
 	public void printSystemInfo() throws Exception
 	{
@@ -486,6 +1601,56 @@ public class WhisperJNITest {
 		assertValidGrammar(sampleChessGrammar);
 	}
 	
+	@Test
+	public void validateInvalidGrammar()
+	{
+		// Offsets are the same ones the native parser reports
+		assertEquals(5, assertThrows(ParseException.class, () -> assertValidGrammar("root := \"x.\"")).getErrorOffset());
+		assertEquals(14, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= (\"x.\"")).getErrorOffset());
+		assertEquals(11, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= \"x\\q.\"")).getErrorOffset());
+		// Graph checks
+		assertEquals(9, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= item \".\"")).getErrorOffset());
+		assertEquals(27, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= item \".\"\nitem ::= item \"x\" | \"y\"")).getErrorOffset());
+		assertThrows(ParseException.class, () -> assertValidGrammar("root ::= \"x\" [a-z]"));
+		assertThrows(ParseException.class, () -> assertValidGrammar("item ::= \"x.\""));
+		// Right recursion is fine
+		assertDoesNotThrow(() -> assertValidGrammar("root ::= item\nitem ::= \"y\" item | \"y.\""));
+	}
+	
+	@Test
+	public void validateLargeGrammarInLinearTime() throws ParseException
+	{
+		// The timings of the sizes are in the jmh GrammarBenchmark, this only guards against a quadratic validator
+		String small = catalogueGrammar(10_000);
+		String large = catalogueGrammar(40_000);
+		long smallNanos = Long.MAX_VALUE;
+		long largeNanos = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++)
+		{
+			long start = System.nanoTime();
+			assertValidGrammar(small);
+			smallNanos = Math.min(smallNanos, System.nanoTime() - start);
+			start = System.nanoTime();
+			assertValidGrammar(large);
+			largeNanos = Math.min(largeNanos, System.nanoTime() - start);
+		}
+		logger.info("Validated 10000 rules in {} ms, 40000 rules in {} ms", smallNanos / 1_000_000.0, largeNanos / 1_000_000.0);
+		// 4 times the rules, linear is about 4 times slower and quadratic 16 times
+		assertTrue(largeNanos < smallNanos * 10, "Validation doesn't scale linearly: " + smallNanos + " ns -> " + largeNanos + " ns");
+	}
+	
+	private static String catalogueGrammar(int numRules)
+	{
+		// Synthetic catalogue like grammar, every rule references the next one
+		StringBuilder grammar = new StringBuilder("root ::= \" Order \" item0 \".\"\n");
+		for(int i = 0; i < numRules; i++)
+		{
+			String next = i + 1 < numRules ? " | item" + (i + 1) : "";
+			grammar.append("item").append(i).append(" ::= \"product ").append(i).append("\" (\", \" [a-z]+)?").append(next).append("\n");
+		}
+		return grammar.toString();
+	}
+	
 	private float[] readFileSamples(Path samplePath) throws UnsupportedAudioFileException, IOException
 	{
 		// sample is a 16 bit int 16000hz little endian wav file